@@ -0,0 +1,78 @@
+package com.oncolens.fhirengine.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.BundleUtil;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Turning one page of a search into resources, the client side work behind every page the bridges load: parsing the
+ * Bundle JSON with a new parser as HAPI's client and FhirUtilBase.getResourceForJson do, and
+ * BundleUtil.toListOfResources on the parsed Bundle as BundlePager does.
+ * Page sizes cover Epic's usual page and a large one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class BundleParsingBenchmark {
+
+    @Param({"R4", "DSTU2"})
+    private String fhirVersion;
+
+    @Param({"50", "1000"})
+    private int entries;
+
+    private FhirContext fhirContext;
+    private Class<? extends IBaseBundle> bundleClass;
+    private String bundleJson;
+    private IBaseBundle parsedBundle;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("R4".equals(fhirVersion)) {
+            fhirContext = FhirContext.forR4();
+            bundleClass = org.hl7.fhir.r4.model.Bundle.class;
+            parsedBundle = SyntheticBundles.r4SearchPage(entries, "eBenchmarkPatient", 42, false);
+        } else {
+            fhirContext = FhirContext.forDstu2();
+            bundleClass = ca.uhn.fhir.model.dstu2.resource.Bundle.class;
+            parsedBundle = SyntheticBundles.dstu2SearchPage(entries, "eBenchmarkPatient", 42, false);
+        }
+        bundleJson = fhirContext.newJsonParser().encodeResourceToString(parsedBundle);
+        parsedBundle = fhirContext.newJsonParser().parseResource(bundleClass, bundleJson);
+    }
+
+    @Benchmark
+    public IBaseBundle parseBundle() {
+        return fhirContext.newJsonParser().parseResource(bundleClass, bundleJson);
+    }
+
+    @Benchmark
+    public List<IBaseResource> toListOfResources() {
+        return BundleUtil.toListOfResources(fhirContext, parsedBundle);
+    }
+
+    @Benchmark
+    public List<IBaseResource> parseAndList() {
+        return BundleUtil.toListOfResources(fhirContext, fhirContext.newJsonParser().parseResource(bundleClass,
+                bundleJson));
+    }
+}
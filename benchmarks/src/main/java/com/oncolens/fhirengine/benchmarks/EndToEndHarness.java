@@ -0,0 +1,228 @@
+package com.oncolens.fhirengine.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.github.luben.zstd.ZstdInputStream;
+import com.oncolens.fhirengine.FhirProcessor;
+import com.oncolens.fhirengine.model.CompressionCodec;
+import com.oncolens.fhirengine.model.FhirBridgeType;
+import com.oncolens.fhirengine.model.TraceSpan;
+import com.oncolens.fhirengine.util.FhirConfig;
+import com.oncolens.fhirengine.util.FhirUtilBase;
+import com.oncolens.fhirengine.util.Metrics;
+import com.oncolens.fhirengine.util.S3Access;
+import com.oncolens.fhirengine.util.Tracer;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Runs FhirProcessor end to end against MockFhirServer in the same JVM, with the R4EPIC bridge and every extract, and
+ * reports patients/sec, requests/sec, p50/p99 per-patient latency and peak heap. Throughput changes can so be
+ * measured offline, from the cohort lookup to the last upload, with the server's latency held fixed.
+ *
+ *   AWS_ACCESS_KEY_ID=mock AWS_SECRET_ACCESS_KEY=mock \
+ *     java -Dpatients=200 -DpatientWorkers=8 -cp target/benchmarks.jar \
+ *     com.oncolens.fhirengine.benchmarks.EndToEndHarness
+ *
+ * The server takes the settings documented on MockFhirServer.main. The engine gets patientWorkers,
+ * resourceFetchWorkers, resourceFetchBuffer and pagePrefetchDepth from system properties, and anything else from a
+ * YAML file in the format of CONFIG_FILE given as -Dconfig, read over the harness's settings. Output and state (conformance cache,
+ * journal, patient id cache) go to a new temporary directory, or -DworkDir, so runs do not resume from each other.
+ * Uploads go to the mock server through s3EndPoint, S3Access still reads credentials from the environment but
+ * they are not checked.
+ *
+ * Per-patient latency is taken from the patient spans of the trace, so tracing is on unless the config turns it
+ * off, in which case the fhir_patient_seconds bucket bounds are reported. Peak heap is sampled every 10 ms and
+ * includes the mock server's few page templates. The engine keeps process wide state, so every run needs its own
+ * JVM.
+ */
+public class EndToEndHarness {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new YAMLFactory());
+    private static final List<String> EXTRACTS = Arrays.asList("observation", "servicerequest", "condition",
+            "careteam", "familymemberhistory", "encounter", "diagnosticreport", "medicationrequest", "careplan",
+            "goal", "allergyintolerance", "immunization", "procedure", "documentreference", "operationccd");
+
+    public static void main(String[] args) throws Exception {
+        // Before the engine creates its loggers, its per search info lines would otherwise dominate the run
+        if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+            System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        }
+        if (System.getenv("AWS_ACCESS_KEY_ID") == null || System.getenv("AWS_SECRET_ACCESS_KEY") == null) {
+            System.err.println("Set AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY (any value, uploads go to the mock"
+                    + " server)");
+            System.exit(2);
+        }
+        if (System.getenv("AWS_REGION") == null && System.getProperty("aws.region") == null) {
+            System.setProperty("aws.region", "us-east-1");
+        }
+        int patients = Integer.getInteger("patients", 100);
+        Path workDir = (System.getProperty("workDir") != null)
+                ? Files.createDirectories(Path.of(System.getProperty("workDir")))
+                : Files.createTempDirectory("fhir-harness");
+
+        MockFhirServer server = MockFhirServer.fromSystemProperties();
+        server.start(0);
+        FhirConfig fc = createConfig(server, workDir, patients);
+        if (System.getProperty("config") != null) {
+            MAPPER.readerForUpdating(fc).readValue(new File(System.getProperty("config")));
+        }
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        AtomicLong peakHeap = new AtomicLong();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "heap-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                0, 10, TimeUnit.MILLISECONDS);
+
+        long requestsBefore = server.getRequests();
+        long start = System.nanoTime();
+        new FhirProcessor().run(fc);
+        S3Access.getInstance(fc).awaitUploads();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long requests = server.getRequests() - requestsBefore;
+        sampler.shutdownNow();
+        File trace = Tracer.getInstance(fc).close();
+        if (fc.getMetricsFile() != null) {
+            Metrics.getInstance().writeTo(new File(fc.getMetricsFile()));
+        }
+
+        long extracted = patientsCounter("extracted");
+        System.out.println("End to end run against " + server.getBaseURL());
+        System.out.printf("  cohort            %d patients, %d extracted, %d failed, %d audit events%n", patients,
+                extracted, patientsCounter("failed"), FhirProcessor.auditEventList.size());
+        System.out.printf("  elapsed           %.2f s%n", seconds);
+        System.out.printf("  patients/sec      %.2f%n", extracted / seconds);
+        System.out.printf("  requests/sec      %.1f (%d requests, %.1f MB served)%n", requests / seconds, requests,
+                server.getBytesServed() / 1e6);
+        List<Long> latencies = (trace != null) ? patientMillis(trace, fc) : Collections.emptyList();
+        if (!latencies.isEmpty()) {
+            System.out.printf("  patient latency   p50 %d ms, p99 %d ms, max %d ms%n", percentile(latencies, 0.5),
+                    percentile(latencies, 0.99), latencies.get(latencies.size() - 1));
+        } else {
+            Metrics.Histogram patientSeconds = Metrics.getInstance().histogram("fhir_patient_seconds",
+                    "Time to extract a patient, up to queueing its upload");
+            System.out.printf("  patient latency   p50 <= %s s, p99 <= %s s (histogram buckets, tracing off)%n",
+                    patientSeconds.quantile(0.5), patientSeconds.quantile(0.99));
+        }
+        System.out.printf("  peak heap         %.1f MB (max %.1f MB)%n", peakHeap.get() / 1e6,
+                memory.getHeapMemoryUsage().getMax() / 1e6);
+        System.out.printf("  uploaded          %d objects, %.1f MB%n", server.getObjectsStored(),
+                server.getBytesStored() / 1e6);
+        System.out.println("  work dir          " + workDir);
+        server.close();
+        // The engine's executors are not all daemon threads
+        System.exit(0);
+    }
+
+    static FhirConfig createConfig(MockFhirServer server, Path workDir, int patients) throws Exception {
+        File cohort = workDir.resolve("cohort.csv").toFile();
+        List<String> cohortLines = new ArrayList<>();
+        for (int n = 0; n < patients; n++) {
+            cohortLines.add(MockFhirServer.MRN_SYSTEM + "," + MockFhirServer.mrn(n));
+        }
+        Files.write(cohort.toPath(), cohortLines, StandardCharsets.UTF_8);
+        Files.createDirectories(workDir.resolve("out"));
+
+        FhirConfig fc = new FhirConfig();
+        fc.setFhirBaseURL(server.getBaseURL());
+        fc.setFhirBridgeType(FhirBridgeType.R4EPIC);
+        fc.setFhirSourceSystem("EPIC");
+        fc.setFhirVersion("R4");
+        fc.setCustomer("harness");
+        fc.setSiteId("mock");
+        fc.setEnvironment("local");
+        fc.setGrantType("client_credentials");
+        fc.setClientId("harness-client");
+        fc.setClientSecret(privateKey());
+        fc.setFhirAuthNameSpace(MockFhirServer.OAUTH_URIS);
+        fc.setFhirAuthUrlKey("authorize");
+        fc.setFhirTokenUrlKey("token");
+        fc.setCohortSelectionType("patientid");
+        fc.setCohortListFile(cohort.getAbsolutePath());
+        fc.setExtracts(new ArrayList<>(EXTRACTS));
+        fc.setDocumentContentType("application/xml");
+        fc.setDataOutputFilePath(workDir.resolve("out/data").toString());
+        fc.setCcdOutputFilePath(workDir.resolve("out/ccd").toString());
+        fc.setAuditOutputFilePath(workDir.resolve("out/audit").toString());
+        fc.setConformanceCacheDir(workDir.resolve("cache").toString());
+        fc.setJournalDir(workDir.resolve("journal").toString());
+        fc.setBulkSpoolDir(workDir.resolve("bulk").toString());
+        fc.setMetricsFile(workDir.resolve("metrics.prom").toString());
+        fc.setS3EndPoint(server.getRootURL());
+        fc.setPatientWorkers(Integer.getInteger("patientWorkers", 4));
+        fc.setResourceFetchWorkers(Integer.getInteger("resourceFetchWorkers", 4));
+        fc.setResourceFetchBuffer(Integer.getInteger("resourceFetchBuffer", 1000));
+        fc.setPagePrefetchDepth(Integer.getInteger("pagePrefetchDepth", 1));
+        fc.setTracing(true);
+        return fc;
+    }
+
+    /*
+     * The base64 body of a PKCS#1 "RSA PRIVATE KEY" PEM, as the secrets hold it
+     */
+    private static String privateKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        byte[] pkcs1 = PrivateKeyInfo.getInstance(generator.generateKeyPair().getPrivate().getEncoded())
+                .parsePrivateKey().toASN1Primitive().getEncoded();
+        return Base64.getMimeEncoder().encodeToString(pkcs1);
+    }
+
+    private static long patientsCounter(String outcome) {
+        return Metrics.getInstance().counter("fhir_patients_total", "Patients of the cohort, by outcome",
+                "outcome", outcome).get();
+    }
+
+    /*
+     * Durations of the patient root spans, sorted
+     */
+    private static List<Long> patientMillis(File trace, FhirConfig fc) throws IOException {
+        List<Long> millis = new ArrayList<>();
+        InputStream in = Files.newInputStream(trace.toPath());
+        if (fc.getCompressionCodec() == CompressionCodec.GZIP) {
+            in = new GZIPInputStream(in);
+        } else if (fc.getCompressionCodec() == CompressionCodec.ZSTD) {
+            in = new ZstdInputStream(in);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                TraceSpan span = FhirUtilBase.JSONMAPPER.readValue(line, TraceSpan.class);
+                if ("patient".equals(span.getName()) && span.getParentId() == null) {
+                    millis.add(span.getDurationMicros() / 1000);
+                }
+            }
+        }
+        Collections.sort(millis);
+        return millis;
+    }
+
+    private static long percentile(List<Long> sorted, double q) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(q * sorted.size()) - 1));
+    }
+}
@@ -0,0 +1,68 @@
+package com.oncolens.fhirengine.benchmarks;
+
+import com.oncolens.fhirengine.util.FhirUtilBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Filtering the OperationOutcomes out of a large search result, one per page of pageSize Observations as Epic returns
+ * them. Each invocation works on a fresh copy of the list, copyOnly is the cost of that copy. Logging is turned
+ * down to warn, so the numbers are the filtering itself and not the info line ensureResourceType logs per removal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class EnsureResourceTypeBenchmark {
+
+    @Param({"10000", "100000"})
+    private int resources;
+
+    @Param({"100"})
+    private int pageSize;
+
+    private List<IBaseResource> loadedPages;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        loadedPages = SyntheticBundles.r4LoadedPages(resources, pageSize, 42);
+    }
+
+    @Benchmark
+    public List<IBaseResource> copyOnly() {
+        return new ArrayList<>(loadedPages);
+    }
+
+    @Benchmark
+    public List<IBaseResource> ensureResourceType() {
+        List<IBaseResource> copy = new ArrayList<>(loadedPages);
+        FhirUtilBase.ensureResourceType(copy, Observation.class);
+        return copy;
+    }
+
+    @Benchmark
+    public List<IBaseResource> ensureResourceTypeNew() {
+        List<IBaseResource> copy = new ArrayList<>(loadedPages);
+        FhirUtilBase.ensureResourceTypeNew(copy, Observation.class, OperationOutcome.class);
+        return copy;
+    }
+}
@@ -0,0 +1,584 @@
+package com.oncolens.fhirengine.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.UriType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Local stand-in for an Epic R4 server, enough for FhirProcessor with the R4EPIC bridge to run end to end offline:
+ * the CapabilityStatement with the SMART oauth-uris, the token endpoint, Patient search by identifier and by _id
+ * (also inside a batch), the patient searches of FhirBridgeR4 and FhirBridgeR4Epic with Epic's categories, Binary
+ * reads behind DocumentReference and Binary/$autogen-ccd-if. Every search returns resourcesPerSearch resources (or
+ * the count set for its type) in pages of pageSize, each page ending with an informational OperationOutcome as
+ * Epic's do. Responses wait latencyMillis plus up to latencyJitterMillis first, and are gzipped when the client
+ * asks for it. Anything else on the port is taken as S3 (path style): objects are checked and thrown away, so the
+ * uploads can point here through s3EndPoint.
+ *
+ * Pages are encoded once per resource type and page with a placeholder for the patient, and a request only fills
+ * in the patient and its links, so the server costs the engine it shares a JVM with little CPU. Patient n has the
+ * id patientId(n) and the MRN mrn(n) in MRN_SYSTEM, for n below the configured number of patients.
+ */
+public class MockFhirServer implements AutoCloseable {
+
+    public static final String BASE_PATH = "/api/FHIR/R4";
+    public static final String TOKEN_PATH = "/oauth2/token";
+    public static final String AUTHORIZE_PATH = "/oauth2/authorize";
+    public static final String OAUTH_URIS = "http://fhir-registry.smarthealthit.org/StructureDefinition/oauth-uris";
+    public static final String MRN_SYSTEM = "urn:oid:1.2.840.114350.1.13.0.1.7.5.737384.14";
+    // The searches of FhirBridgeR4 and FhirBridgeR4Epic by patient, DocumentReference is served on its own
+    public static final List<String> SEARCHED_TYPES = Arrays.asList("Observation", "ServiceRequest", "Condition",
+            "CareTeam", "FamilyMemberHistory", "Encounter", "DiagnosticReport", "MedicationRequest", "CarePlan", "Goal",
+            "AllergyIntolerance", "Immunization", "Procedure");
+    // Epic requires a category on these, FhirBridgeR4Epic sends them all in one search when category is advertised
+    private static final Set<String> CATEGORY_TYPES = Set.of("Observation", "Condition", "CarePlan");
+    private static final String FHIR_JSON = "application/fhir+json;charset=utf-8";
+    private static final String PATIENT = "@@PATIENT@@";
+    private static final String SELF = "@@SELF@@";
+    private static final String NEXT = "@@NEXT@@";
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    private final int patients;
+    private final int resourcesPerSearch;
+    private final int pageSize;
+    private final long latencyMillis;
+    private final Map<String, Integer> resourceCounts = new ConcurrentHashMap<>();
+    private final Map<String, String> pageTemplates = new ConcurrentHashMap<>();
+    private final Map<String, Integer> multipartUploads = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final LongAdder fhirRequests = new LongAdder();
+    private final LongAdder tokenRequests = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+    private final LongAdder objectsStored = new LongAdder();
+    private final LongAdder bytesStored = new LongAdder();
+    private long latencyJitterMillis;
+    private int documentsPerPatient = 1;
+    private int documentBytes = 64 * 1024;
+    private String documentContentType = "application/xml";
+    private HttpServer server;
+    private ExecutorService executor;
+    private String binaryJson;
+    private String ccdJson;
+
+    public MockFhirServer(int patients, int resourcesPerSearch, int pageSize, long latencyMillis) {
+        this.patients = patients;
+        this.resourcesPerSearch = resourcesPerSearch;
+        this.pageSize = Math.max(1, pageSize);
+        this.latencyMillis = latencyMillis;
+    }
+
+    public static String patientId(int n) {
+        return "eMockPatient" + String.format("%08d", n);
+    }
+
+    public static String mrn(int n) {
+        return "Z" + (100000 + n);
+    }
+
+    public void setLatencyJitterMillis(long latencyJitterMillis) {
+        this.latencyJitterMillis = latencyJitterMillis;
+    }
+
+    /*
+     * Resources returned by every search for the type, instead of resourcesPerSearch
+     */
+    public void setResourceCount(String resourceType, int count) {
+        resourceCounts.put(resourceType, count);
+    }
+
+    public void setDocumentsPerPatient(int documentsPerPatient) {
+        this.documentsPerPatient = documentsPerPatient;
+    }
+
+    public void setDocumentBytes(int documentBytes) {
+        this.documentBytes = documentBytes;
+    }
+
+    public void setDocumentContentType(String documentContentType) {
+        this.documentContentType = documentContentType;
+    }
+
+    public void start(int port) throws IOException {
+        byte[] document = syntheticDocument(documentBytes);
+        binaryJson = encode(new Binary().setContentType(documentContentType).setData(document).setId("document"));
+        Parameters ccd = new Parameters();
+        ccd.addParameter().setName("return").setResource(new Binary().setContentType("application/xml")
+                .setData(document));
+        ccdJson = encode(ccd);
+        // Without it the JDK server delays small keep-alive responses (Nagle)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.createContext(BASE_PATH, exchange -> handle(exchange, this::handleFhir));
+        server.createContext(TOKEN_PATH, exchange -> handle(exchange, this::handleToken));
+        server.createContext("/", exchange -> handle(exchange, this::handleS3));
+        // Requests sleep through the injected latency, so each one gets a thread
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "mock-fhir");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    public String getRootURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String getBaseURL() {
+        return getRootURL() + BASE_PATH;
+    }
+
+    public String getTokenURL() {
+        return getRootURL() + TOKEN_PATH;
+    }
+
+    /*
+     * FHIR and token requests, S3 requests are not counted
+     */
+    public long getRequests() {
+        return fhirRequests.sum() + tokenRequests.sum();
+    }
+
+    public long getBytesServed() {
+        return bytesServed.sum();
+    }
+
+    public long getObjectsStored() {
+        return objectsStored.sum();
+    }
+
+    public long getBytesStored() {
+        return bytesStored.sum();
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws Exception;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            handler.handle(exchange);
+        } catch (Exception e) {
+            // Once the headers are out the client can only see the connection close
+            if (exchange.getResponseCode() == -1) {
+                OperationOutcome outcome = new OperationOutcome();
+                outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.FATAL)
+                        .setCode(OperationOutcome.IssueType.EXCEPTION).setDiagnostics(String.valueOf(e));
+                send(exchange, 500, FHIR_JSON, encode(outcome));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleFhir(HttpExchange exchange) throws Exception {
+        fhirRequests.increment();
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        delay();
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        Map<String, List<String>> query = parseQuery(rawQuery);
+        String[] path = exchange.getRequestURI().getPath().substring(BASE_PATH.length())
+                .replaceFirst("^/+", "").split("/");
+        if ("POST".equals(exchange.getRequestMethod()) && path[0].isEmpty()) {
+            sendFhir(exchange, 200, batch(new String(body, StandardCharsets.UTF_8)));
+        } else if (path.length == 1 && "metadata".equals(path[0])) {
+            sendFhir(exchange, 200, encode(capabilityStatement()));
+        } else if (path.length == 1 && "Patient".equals(path[0])) {
+            sendFhir(exchange, 200, encode(searchPatients(query)));
+        } else if (path.length == 2 && "Binary".equals(path[0]) && "$autogen-ccd-if".equals(path[1])) {
+            sendFhir(exchange, 200, ccdJson);
+        } else if (path.length == 2 && "Binary".equals(path[0])) {
+            sendFhir(exchange, 200, binaryJson);
+        } else if (path.length == 1 && ("DocumentReference".equals(path[0]) || SEARCHED_TYPES.contains(path[0]))
+                && query.containsKey("patient")) {
+            sendFhir(exchange, 200, searchPage(path[0], rawQuery, query));
+        } else {
+            sendFhir(exchange, 404, encode(outcome(OperationOutcome.IssueSeverity.ERROR,
+                    OperationOutcome.IssueType.NOTSUPPORTED, "Not supported by the mock server: "
+                            + exchange.getRequestMethod() + " " + exchange.getRequestURI())));
+        }
+    }
+
+    private void handleToken(HttpExchange exchange) throws Exception {
+        tokenRequests.increment();
+        exchange.getRequestBody().readAllBytes();
+        delay();
+        send(exchange, 200, "application/json", "{\"access_token\":\"mock-" + UUID.randomUUID()
+                + "\",\"token_type\":\"bearer\",\"expires_in\":3600,\"scope\":\"system/*.read\"}");
+    }
+
+    private void delay() throws InterruptedException {
+        long millis = latencyMillis + ((latencyJitterMillis > 0)
+                ? ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1) : 0);
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private CapabilityStatement capabilityStatement() {
+        CapabilityStatement capabilities = new CapabilityStatement();
+        capabilities.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        capabilities.setDate(new Date());
+        capabilities.setKind(CapabilityStatement.CapabilityStatementKind.INSTANCE);
+        capabilities.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+        capabilities.addFormat("json");
+        CapabilityStatement.CapabilityStatementRestComponent rest = capabilities.addRest()
+                .setMode(CapabilityStatement.RestfulCapabilityMode.SERVER);
+        Extension oauthUris = rest.getSecurity().addExtension().setUrl(OAUTH_URIS);
+        oauthUris.addExtension("authorize", new UriType(getRootURL() + AUTHORIZE_PATH));
+        oauthUris.addExtension("token", new UriType(getTokenURL()));
+        rest.addInteraction().setCode(CapabilityStatement.SystemRestfulInteraction.BATCH);
+        rest.addResource().setType("Patient").addSearchParam().setName("identifier");
+        rest.getResource().get(0).addSearchParam().setName("_id");
+        List<String> types = new ArrayList<>(SEARCHED_TYPES);
+        types.add("DocumentReference");
+        for (String type : types) {
+            CapabilityStatement.CapabilityStatementRestResourceComponent resource = rest.addResource().setType(type);
+            resource.addSearchParam().setName("patient");
+            resource.addSearchParam().setName("_lastUpdated");
+            if (CATEGORY_TYPES.contains(type)) {
+                resource.addSearchParam().setName("category");
+            }
+        }
+        rest.addResource().setType("Binary").addOperation().setName("autogen-ccd-if")
+                .setDefinition("http://open.epic.com/FHIR/OperationDefinition/Binary-autogen-ccd-if");
+        return capabilities;
+    }
+
+    /*
+     * Identifiers come as system|value tokens with , | \ and $ escaped, several of them separated by commas
+     */
+    private Bundle searchPatients(Map<String, List<String>> query) {
+        List<Integer> matches = new ArrayList<>();
+        for (String identifiers : query.getOrDefault("identifier", List.of())) {
+            for (String token : identifiers.split("(?<!\\\\),")) {
+                String[] systemValue = token.split("(?<!\\\\)\\|", 2);
+                if (systemValue.length == 2 && MRN_SYSTEM.equals(unescape(systemValue[0]))) {
+                    addPatient(matches, unescape(systemValue[1]), "Z", 100000);
+                }
+            }
+        }
+        for (String ids : query.getOrDefault("_id", List.of())) {
+            for (String id : ids.split(",")) {
+                if (id.startsWith("eMockPatient")) {
+                    addPatient(matches, id.substring("eMockPatient".length()), "", 0);
+                }
+            }
+        }
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(matches.size());
+        for (int n : matches) {
+            Patient patient = SyntheticBundles.r4Patient(patientId(n), MRN_SYSTEM, mrn(n), n);
+            bundle.addEntry().setFullUrl(getBaseURL() + "/Patient/" + patient.getIdElement().getIdPart())
+                    .setResource(patient).getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        return bundle;
+    }
+
+    private void addPatient(List<Integer> matches, String value, String prefix, int offset) {
+        try {
+            int n = Integer.parseInt(value.substring(prefix.length())) - offset;
+            if (value.startsWith(prefix) && n >= 0 && n < patients && !matches.contains(n)) {
+                matches.add(n);
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            // Not one of ours, no match
+        }
+    }
+
+    private static String unescape(String value) {
+        return value.replaceAll("\\\\(.)", "$1");
+    }
+
+    /*
+     * Each entry of the batch is a Patient search, answered in request order
+     */
+    private String batch(String body) {
+        Bundle request = fhirContext.newJsonParser().parseResource(Bundle.class, body);
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (Bundle.BundleEntryComponent entry : request.getEntry()) {
+            String url = entry.getRequest().getUrl();
+            Bundle.BundleEntryComponent result = response.addEntry();
+            if (url.startsWith("Patient?")) {
+                result.setResource(searchPatients(parseQuery(url.substring("Patient?".length()))))
+                        .getResponse().setStatus("200 OK");
+            } else {
+                result.setResource(outcome(OperationOutcome.IssueSeverity.ERROR,
+                        OperationOutcome.IssueType.NOTSUPPORTED, "Not supported in a batch: " + url))
+                        .getResponse().setStatus("400 Bad Request");
+            }
+        }
+        return encode(response);
+    }
+
+    /*
+     * One page of a search by patient, _page=n (from 1) in the next links selects the page. Filters other than the
+     * patient, such as category or _lastUpdated, do not change the result.
+     */
+    private String searchPage(String resourceType, String rawQuery, Map<String, List<String>> query) {
+        int total = "DocumentReference".equals(resourceType) ? documentsPerPatient
+                : resourceCounts.getOrDefault(resourceType, resourcesPerSearch);
+        int pages = Math.max(1, (total + pageSize - 1) / pageSize);
+        int page = query.containsKey("_page")
+                ? Math.max(1, Math.min(pages, Integer.parseInt(query.get("_page").get(0)))) : 1;
+        boolean lastPage = page == pages;
+        int entries = lastPage ? total - (pages - 1) * pageSize : pageSize;
+        String template = pageTemplates.computeIfAbsent(resourceType + "|" + page + "|" + entries + "|" + lastPage,
+                key -> encodePage(resourceType, total, page, entries, lastPage));
+        String searchURL = getBaseURL() + "/" + resourceType + "?"
+                + rawQuery.replaceAll("(^|&)_page=[^&]*", "").replaceFirst("^&", "");
+        String patientId = query.get("patient").get(0);
+        return template.replace(PATIENT, patientId)
+                .replace(SELF, searchURL + ((page > 1) ? "&_page=" + page : ""))
+                .replace(NEXT, searchURL + "&_page=" + (page + 1));
+    }
+
+    private String encodePage(String resourceType, int total, int page, int entries, boolean lastPage) {
+        Random random = new Random(resourceType.hashCode() * 31L + page);
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(total);
+        bundle.addLink().setRelation("self").setUrl(SELF);
+        if (!lastPage) {
+            bundle.addLink().setRelation("next").setUrl(NEXT);
+        }
+        for (int i = 0; i < entries; i++) {
+            int index = (page - 1) * pageSize + i;
+            Resource resource = "DocumentReference".equals(resourceType)
+                    ? SyntheticBundles.r4DocumentReference(random, PATIENT, PATIENT + "-" + index,
+                    documentContentType, index)
+                    : SyntheticBundles.r4Resource(resourceType, random, PATIENT, index);
+            bundle.addEntry().setFullUrl(getBaseURL() + "/" + resourceType + "/" + resource.getIdElement().getIdPart())
+                    .setResource(resource).getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        bundle.addEntry().setResource(SyntheticBundles.r4Outcome()).getSearch()
+                .setMode(Bundle.SearchEntryMode.OUTCOME);
+        return encode(bundle);
+    }
+
+    private static OperationOutcome outcome(OperationOutcome.IssueSeverity severity, OperationOutcome.IssueType type,
+                                            String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(severity).setCode(type).setDiagnostics(diagnostics);
+        return outcome;
+    }
+
+    /*
+     * A CDA shaped document padded with sections to about the requested size
+     */
+    private static byte[] syntheticDocument(int bytes) {
+        StringBuilder document = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<ClinicalDocument xmlns=\"urn:hl7-org:v3\">\n<title>Summary of episode note</title>\n"
+                + "<component><structuredBody>\n");
+        for (int section = 0; document.length() < bytes; section++) {
+            document.append("<component><section><title>Section ").append(section)
+                    .append("</title><text>Synthetic narrative for benchmarking, no patient data.</text>")
+                    .append("</section></component>\n");
+        }
+        document.append("</structuredBody></component>\n</ClinicalDocument>\n");
+        return document.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * The S3 calls S3Access makes, path style: PutObject, and CreateMultipartUpload, UploadPart,
+     * CompleteMultipartUpload and AbortMultipartUpload for large files. Bodies are read (decoding aws-chunked
+     * signing) and dropped. The ETag of an object is the MD5 of its content, which the SDK checks.
+     */
+    private void handleS3(HttpExchange exchange) throws Exception {
+        Map<String, List<String>> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String method = exchange.getRequestMethod();
+        if ("PUT".equals(method)) {
+            byte[] content = readS3Body(exchange);
+            if (query.containsKey("uploadId")) {
+                multipartUploads.merge(query.get("uploadId").get(0), 1, Integer::sum);
+            } else {
+                objectsStored.increment();
+            }
+            bytesStored.add(content.length);
+            exchange.getResponseHeaders().set("ETag", "\"" + md5Hex(content) + "\"");
+            send(exchange, 200, null, "");
+        } else if ("POST".equals(method) && query.containsKey("uploads")) {
+            exchange.getRequestBody().readAllBytes();
+            String uploadId = "mock-upload-" + uploadIds.incrementAndGet();
+            multipartUploads.put(uploadId, 0);
+            send(exchange, 200, "application/xml", "<InitiateMultipartUploadResult>" + bucketAndKey(exchange)
+                    + "<UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+            exchange.getRequestBody().readAllBytes();
+            Integer parts = multipartUploads.remove(query.get("uploadId").get(0));
+            objectsStored.increment();
+            send(exchange, 200, "application/xml", "<CompleteMultipartUploadResult>" + bucketAndKey(exchange)
+                    + "<ETag>\"" + md5Hex(new byte[0]) + "-" + parts + "\"</ETag></CompleteMultipartUploadResult>");
+        } else if ("DELETE".equals(method)) {
+            query.getOrDefault("uploadId", List.of()).forEach(multipartUploads::remove);
+            send(exchange, 204, null, null);
+        } else {
+            send(exchange, 405, null, "");
+        }
+    }
+
+    private static String bucketAndKey(HttpExchange exchange) {
+        String[] bucketKey = exchange.getRequestURI().getPath().replaceFirst("^/", "").split("/", 2);
+        return "<Bucket>" + bucketKey[0] + "</Bucket><Key>" + ((bucketKey.length > 1) ? bucketKey[1] : "")
+                + "</Key>";
+    }
+
+    /*
+     * A body sent with SigV4 streaming signing is a series of <hex size>;chunk-signature=<sig>\r\n<data>\r\n chunks
+     */
+    private static byte[] readS3Body(HttpExchange exchange) throws IOException {
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        if (exchange.getRequestHeaders().getFirst("x-amz-decoded-content-length") == null) {
+            return body;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        int position = 0;
+        while (position < body.length) {
+            int lineEnd = position;
+            while (lineEnd + 1 < body.length && !(body[lineEnd] == '\r' && body[lineEnd + 1] == '\n')) {
+                lineEnd++;
+            }
+            String header = new String(body, position, lineEnd - position, StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(header.split(";", 2)[0].trim(), 16);
+            if (size == 0) {
+                break;
+            }
+            content.write(body, lineEnd + 2, size);
+            position = lineEnd + 2 + size + 2;
+        }
+        return content.toByteArray();
+    }
+
+    private static String md5Hex(byte[] content) throws NoSuchAlgorithmException {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static Map<String, List<String>> parseQuery(String rawQuery) {
+        Map<String, List<String>> query = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            String[] nameValue = parameter.split("=", 2);
+            query.computeIfAbsent(URLDecoder.decode(nameValue[0], StandardCharsets.UTF_8), key -> new ArrayList<>())
+                    .add((nameValue.length > 1) ? URLDecoder.decode(nameValue[1], StandardCharsets.UTF_8) : "");
+        }
+        return query;
+    }
+
+    private String encode(Resource resource) {
+        return fhirContext.newJsonParser().encodeResourceToString(resource);
+    }
+
+    private void sendFhir(HttpExchange exchange, int status, String body) throws IOException {
+        send(exchange, status, FHIR_JSON, body);
+    }
+
+    private void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        if (body == null || body.isEmpty()) {
+            // No body at all, the server closes the response stream with the headers
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream(bytes.length / 4);
+            try (OutputStream out = new GZIPOutputStream(gzipped)) {
+                out.write(bytes);
+            }
+            bytes = gzipped.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        bytesServed.add(bytes.length);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /*
+     * Runs the server on its own, for FhirProcessor.main or another client. Settings are system properties, see
+     * EndToEndHarness: -Dport (default 8080), -Dpatients, -DresourcesPerSearch, -DpageSize, -DlatencyMillis,
+     * -DlatencyJitterMillis, -DresourceCounts, -DdocumentsPerPatient, -DdocumentBytes.
+     */
+    public static void main(String[] args) throws Exception {
+        MockFhirServer server = fromSystemProperties();
+        server.start(Integer.getInteger("port", 8080));
+        System.out.println("Mock FHIR server at " + server.getBaseURL() + ", token endpoint " + server.getTokenURL()
+                + ", S3 endpoint " + server.getRootURL());
+        System.out.println("Patients are " + MRN_SYSTEM + "," + mrn(0) + " to " + mrn(server.patients - 1));
+        Thread.currentThread().join();
+    }
+
+    static MockFhirServer fromSystemProperties() {
+        MockFhirServer server = new MockFhirServer(Integer.getInteger("patients", 100),
+                Integer.getInteger("resourcesPerSearch", 20), Integer.getInteger("pageSize", 50),
+                Long.getLong("latencyMillis", 20));
+        server.setLatencyJitterMillis(Long.getLong("latencyJitterMillis", 10));
+        server.setDocumentsPerPatient(Integer.getInteger("documentsPerPatient", 1));
+        server.setDocumentBytes(Integer.getInteger("documentBytes", 64 * 1024));
+        // Type=count pairs, e.g. Observation=200,Encounter=30
+        String resourceCounts = System.getProperty("resourceCounts", "");
+        for (String typeCount : resourceCounts.split(",")) {
+            if (!typeCount.isBlank()) {
+                String[] pair = typeCount.split("=", 2);
+                server.setResourceCount(pair[0].trim(), Integer.parseInt(pair[1].trim()));
+            }
+        }
+        return server;
+    }
+}
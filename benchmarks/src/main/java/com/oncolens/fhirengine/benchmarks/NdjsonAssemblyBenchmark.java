@@ -0,0 +1,81 @@
+package com.oncolens.fhirengine.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.oncolens.fhirengine.model.CompressionCodec;
+import com.oncolens.fhirengine.util.FhirUtilBase;
+import com.oncolens.fhirengine.util.NdjsonWriter;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Assembling a patient's data file: the original FhirProcessor path, which collected a getJsonForResource string
+ * per resource and copied them into one byte array before compressing it, against NdjsonWriter streaming through
+ * the codec. The output is discarded, so the numbers leave out the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class NdjsonAssemblyBenchmark {
+
+    @Param({"NONE", "GZIP", "ZSTD"})
+    private CompressionCodec codec;
+
+    @Param({"2000"})
+    private int resources;
+
+    private FhirContext fhirContext;
+    private List<IBaseResource> patientRecord;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fhirContext = FhirContext.forR4();
+        patientRecord = SyntheticBundles.r4Observations(resources, "eBenchmarkPatient", 42);
+        fhirContext.newJsonParser().encodeResourceToString(patientRecord.get(0));
+    }
+
+    @Benchmark
+    public byte[] jsonLinesInMemory() throws IOException {
+        List<String> jsonLines = new ArrayList<>();
+        for (IBaseResource resource : patientRecord) {
+            jsonLines.add(FhirUtilBase.getJsonForResource(fhirContext, resource));
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (String jsonLine : jsonLines) {
+            bos.write(jsonLine.getBytes(StandardCharsets.UTF_8));
+            bos.write('\n');
+        }
+        return codec.compress(bos.toByteArray(), -1);
+    }
+
+    @Benchmark
+    public long ndjsonWriter() throws IOException {
+        try (NdjsonWriter writer = new NdjsonWriter(fhirContext, codec.wrap(OutputStream.nullOutputStream(), -1))) {
+            for (IBaseResource resource : patientRecord) {
+                writer.accept(resource);
+            }
+            return writer.getCount();
+        }
+    }
+}
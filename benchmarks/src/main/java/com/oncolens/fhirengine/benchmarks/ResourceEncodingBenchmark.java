@@ -0,0 +1,69 @@
+package com.oncolens.fhirengine.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.oncolens.fhirengine.util.FhirUtilBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Encoding one patient's Observations to JSON: FhirUtilBase.getJsonForResource, which builds a new parser for every
+ * resource, against a parser reused for the whole list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ResourceEncodingBenchmark {
+
+    @Param({"R4", "DSTU2"})
+    private String fhirVersion;
+
+    @Param({"200"})
+    private int resources;
+
+    private FhirContext fhirContext;
+    private List<IBaseResource> observations;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        boolean r4 = "R4".equals(fhirVersion);
+        fhirContext = r4 ? FhirContext.forR4() : FhirContext.forDstu2();
+        observations = r4 ? SyntheticBundles.r4Observations(resources, "eBenchmarkPatient", 42)
+                : SyntheticBundles.dstu2Observations(resources, "eBenchmarkPatient", 42);
+        // The first parser of a context scans the model classes, keep that out of the measurement
+        fhirContext.newJsonParser().encodeResourceToString(observations.get(0));
+    }
+
+    @Benchmark
+    public void getJsonForResource(Blackhole blackhole) {
+        for (IBaseResource observation : observations) {
+            blackhole.consume(FhirUtilBase.getJsonForResource(fhirContext, observation));
+        }
+    }
+
+    @Benchmark
+    public void reusedParser(Blackhole blackhole) {
+        IParser parser = fhirContext.newJsonParser();
+        for (IBaseResource observation : observations) {
+            blackhole.consume(parser.encodeResourceToString(observation));
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package com.oncolens.fhirengine.benchmarks;
+
+import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
+import ca.uhn.fhir.model.dstu2.composite.CodingDt;
+import ca.uhn.fhir.model.dstu2.composite.QuantityDt;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
+import ca.uhn.fhir.model.dstu2.valueset.ObservationStatusEnum;
+import ca.uhn.fhir.model.dstu2.valueset.SearchEntryModeEnum;
+import ca.uhn.fhir.model.primitive.DateTimeDt;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CarePlan;
+import org.hl7.fhir.r4.model.CareTeam;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.FamilyMemberHistory;
+import org.hl7.fhir.r4.model.Goal;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Immunization;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Search result pages shaped like Epic's: Observations with a standard and an Epic category, LOINC plus Epic
+ * codings, references with displays, reference ranges and blood pressure components, and an informational
+ * OperationOutcome at the end of every page, which the bridges filter out with ensureResourceType. Patients and the
+ * other resource types the R4 bridges search for are built the same way for MockFhirServer. Content is generated
+ * from a fixed seed, so every run and fork benchmarks the same bytes.
+ */
+public final class SyntheticBundles {
+
+    public static final String BASE_URL = "https://fhir.example.org/api/FHIR/R4";
+    private static final String EPIC_OID = "urn:oid:1.2.840.114350.1.13.0.1.7.2.768282";
+    private static final String LOINC = "http://loinc.org";
+    private static final String UCUM = "http://unitsofmeasure.org";
+    private static final String CATEGORY_SYSTEM = "http://terminology.hl7.org/CodeSystem/observation-category";
+    private static final String[][] VITALS = {
+            {"8867-4", "Heart rate", "/min", "72"},
+            {"8310-5", "Body temperature", "Cel", "36.8"},
+            {"29463-7", "Body weight", "kg", "81.2"},
+            {"9279-1", "Respiratory rate", "/min", "16"},
+            {"59408-5", "Oxygen saturation", "%", "97"},
+    };
+    private static final String[][] LABS = {
+            {"718-7", "Hemoglobin", "g/dL", "13.4"},
+            {"2160-0", "Creatinine", "mg/dL", "0.9"},
+            {"6690-2", "Leukocytes", "10*3/uL", "6.1"},
+            {"777-3", "Platelets", "10*3/uL", "250"},
+    };
+    private static final String SNOMED = "http://snomed.info/sct";
+    private static final String CONDITION_CLINICAL = "http://terminology.hl7.org/CodeSystem/condition-clinical";
+    private static final String CONDITION_VERIFICATION = "http://terminology.hl7.org/CodeSystem/condition-ver-status";
+    private static final String ALLERGY_CLINICAL =
+            "http://terminology.hl7.org/CodeSystem/allergyintolerance-clinical";
+    private static final String CONDITION_CATEGORY = "http://terminology.hl7.org/CodeSystem/condition-category";
+    private static final String[][] CONDITIONS = {
+            {"254637007", "Non-small cell lung cancer"},
+            {"38341003", "Hypertension"},
+            {"44054006", "Type 2 diabetes mellitus"},
+            {"254837009", "Malignant neoplasm of breast"},
+    };
+    private static final String[][] MEDICATIONS = {
+            {"197361", "Amlodipine 5 MG Oral Tablet"},
+            {"860975", "Metformin 500 MG Oral Tablet"},
+            {"198211", "Simvastatin 40 MG Oral Tablet"},
+    };
+
+    private SyntheticBundles() {
+    }
+
+    /*
+     * Epic style resource id: a long base64url-ish string
+     */
+    static String epicId(Random random) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-.";
+        StringBuilder id = new StringBuilder("e");
+        for (int i = 0; i < 47; i++) {
+            id.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return id.toString();
+    }
+
+    public static List<IBaseResource> r4Observations(int count, String patientId, long seed) {
+        Random random = new Random(seed);
+        List<IBaseResource> resources = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            resources.add(r4Observation(random, patientId, i));
+        }
+        return resources;
+    }
+
+    public static Observation r4Observation(Random random, String patientId, int index) {
+        boolean vital = index % 3 != 0;
+        String[] test = vital ? VITALS[index % VITALS.length] : LABS[index % LABS.length];
+        Date effective = new Date(1_600_000_000_000L + index * 3_600_000L);
+        Observation observation = new Observation();
+        observation.setId(epicId(random));
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.addCategory()
+                .addCoding(new Coding(CATEGORY_SYSTEM, vital ? "vital-signs" : "laboratory",
+                        vital ? "Vital Signs" : "Laboratory"))
+                .addCoding(new Coding(EPIC_OID, vital ? "9" : "Lab",
+                        vital ? "Vital Signs" : "Lab"))
+                .setText(vital ? "Vital Signs" : "Laboratory");
+        observation.setCode(new CodeableConcept()
+                .addCoding(new Coding(LOINC, test[0], test[1]))
+                .addCoding(new Coding(EPIC_OID, Integer.toString(1000 + index % 50), test[1]))
+                .setText(test[1]));
+        observation.setSubject(new Reference("Patient/" + patientId).setDisplay("Synthetic, Patient"));
+        observation.setEncounter(new Reference("Encounter/" + epicId(random)).setDisplay("Office Visit"));
+        observation.setEffective(new DateTimeType(effective));
+        observation.setIssued(effective);
+        observation.addPerformer(new Reference("Practitioner/" + epicId(random)).setDisplay("Example, Clinician"));
+        if ("8867-4".equals(test[0]) && index % 2 == 0) {
+            // Blood pressure panels come as components
+            observation.getCode().getCodingFirstRep().setCode("85354-9").setDisplay("Blood pressure panel");
+            observation.addComponent()
+                    .setCode(new CodeableConcept().addCoding(new Coding(LOINC, "8480-6",
+                            "Systolic blood pressure")))
+                    .setValue(quantity(110 + random.nextInt(40), "mm[Hg]"));
+            observation.addComponent()
+                    .setCode(new CodeableConcept().addCoding(new Coding(LOINC, "8462-4",
+                            "Diastolic blood pressure")))
+                    .setValue(quantity(60 + random.nextInt(30), "mm[Hg]"));
+        } else {
+            double value = Double.parseDouble(test[3]) * (0.8 + random.nextDouble() * 0.4);
+            observation.setValue(quantity(Math.round(value * 10) / 10.0, test[2]));
+            observation.addReferenceRange()
+                    .setLow(quantity(Double.parseDouble(test[3]) * 0.7, test[2]))
+                    .setHigh(quantity(Double.parseDouble(test[3]) * 1.3, test[2]))
+                    .setText("Normal range");
+        }
+        if (!vital) {
+            observation.addNote().setText("Specimen collected at the outpatient lab.");
+            observation.addExtension("http://open.epic.com/FHIR/StructureDefinition/extension/lab-component-id",
+                    new StringType(Integer.toString(random.nextInt(1_000_000))));
+        }
+        return observation;
+    }
+
+    private static Quantity quantity(double value, String unit) {
+        return new Quantity().setValue(value).setUnit(unit).setSystem(UCUM).setCode(unit);
+    }
+
+    /*
+     * One page of an Observation search, with a next link unless it is the last page
+     */
+    public static Bundle r4SearchPage(int entries, String patientId, long seed, boolean lastPage) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.setTotal(entries);
+        bundle.addLink().setRelation("self").setUrl(BASE_URL + "/Observation?patient=" + patientId
+                + "&category=vital-signs");
+        if (!lastPage) {
+            bundle.addLink().setRelation("next").setUrl(BASE_URL + "/Observation?patient=" + patientId
+                    + "&category=vital-signs&sessionID=16-" + seed);
+        }
+        for (IBaseResource resource : r4Observations(entries, patientId, seed)) {
+            Observation observation = (Observation) resource;
+            bundle.addEntry()
+                    .setFullUrl(BASE_URL + "/Observation/" + observation.getIdElement().getIdPart())
+                    .setResource(observation)
+                    .getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        OperationOutcome outcome = r4Outcome();
+        bundle.addEntry().setResource(outcome).getSearch().setMode(Bundle.SearchEntryMode.OUTCOME);
+        return bundle;
+    }
+
+    public static OperationOutcome r4Outcome() {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setDiagnostics("Client ID: benchmark")
+                .getDetails().setText("Some results may be unavailable to this client.");
+        return outcome;
+    }
+
+    /*
+     * A patient with the identifiers, demographics and contact details an Epic Patient read returns
+     */
+    public static Patient r4Patient(String patientId, String mrnSystem, String mrn, int index) {
+        Random random = new Random(index);
+        Patient patient = new Patient();
+        patient.setId(patientId);
+        patient.addIdentifier().setUse(Identifier.IdentifierUse.USUAL).setSystem(mrnSystem).setValue(mrn)
+                .setType(new CodeableConcept().setText("MRN"));
+        patient.addIdentifier().setUse(Identifier.IdentifierUse.USUAL).setSystem(EPIC_OID).setValue(patientId)
+                .setType(new CodeableConcept().setText("FHIR"));
+        patient.setActive(true);
+        patient.addName().setUse(HumanName.NameUse.OFFICIAL).setFamily("Synthetic" + index)
+                .addGiven("Patient").addGiven(Character.toString((char) ('A' + index % 26)))
+                .setText("Patient Synthetic" + index);
+        patient.setGender((index % 2 == 0) ? Enumerations.AdministrativeGender.FEMALE
+                : Enumerations.AdministrativeGender.MALE);
+        patient.setBirthDate(new Date(-315_619_200_000L + random.nextInt(20_000) * 86_400_000L));
+        patient.addTelecom().setSystem(ContactPoint.ContactPointSystem.PHONE)
+                .setUse(ContactPoint.ContactPointUse.HOME).setValue("555-01" + (10 + index % 90));
+        patient.addAddress().setUse(Address.AddressUse.HOME).addLine(100 + index + " Main St")
+                .setCity("Madison").setState("WI").setPostalCode("53703").setCountry("US");
+        patient.setMaritalStatus(new CodeableConcept().addCoding(new Coding(
+                "http://terminology.hl7.org/CodeSystem/v3-MaritalStatus", "M", "Married")));
+        patient.addGeneralPractitioner(new Reference("Practitioner/" + epicId(random))
+                .setDisplay("Example, Clinician"));
+        return patient;
+    }
+
+    /*
+     * A resource of the given type referencing the patient, for the searches the R4 bridges run. Observations are
+     * r4Observation, the other types carry the codings, statuses and references Epic fills in.
+     */
+    public static Resource r4Resource(String resourceType, Random random, String patientId, int index) {
+        Reference subject = new Reference("Patient/" + patientId).setDisplay("Synthetic, Patient");
+        Reference practitioner = new Reference("Practitioner/" + epicId(random)).setDisplay("Example, Clinician");
+        Reference encounter = new Reference("Encounter/" + epicId(random)).setDisplay("Office Visit");
+        Date date = new Date(1_600_000_000_000L + index * 86_400_000L);
+        Resource resource;
+        switch (resourceType) {
+            case "Observation":
+                return r4Observation(random, patientId, index);
+            case "Condition":
+                resource = new Condition()
+                        .setClinicalStatus(concept(CONDITION_CLINICAL, "active", "Active"))
+                        .setVerificationStatus(concept(CONDITION_VERIFICATION, "confirmed", "Confirmed"))
+                        .addCategory(concept(CONDITION_CATEGORY, "problem-list-item", "Problem List Item"))
+                        .setCode(concept(SNOMED, CONDITIONS[index % CONDITIONS.length][0],
+                                CONDITIONS[index % CONDITIONS.length][1]))
+                        .setSubject(subject)
+                        .setEncounter(encounter)
+                        .setOnset(new DateTimeType(date))
+                        .setRecordedDate(date);
+                break;
+            case "CarePlan":
+                resource = new CarePlan()
+                        .setStatus(CarePlan.CarePlanStatus.ACTIVE)
+                        .setIntent(CarePlan.CarePlanIntent.PLAN)
+                        .addCategory(concept(SNOMED, "736378000", "Oncology care plan"))
+                        .setTitle("Oncology care plan")
+                        .setSubject(subject)
+                        .setPeriod(new Period().setStart(date))
+                        .setAuthor(practitioner);
+                break;
+            case "ServiceRequest":
+                resource = new ServiceRequest()
+                        .setStatus(ServiceRequest.ServiceRequestStatus.ACTIVE)
+                        .setIntent(ServiceRequest.ServiceRequestIntent.ORDER)
+                        .setCode(concept(LOINC, LABS[index % LABS.length][0], LABS[index % LABS.length][1]))
+                        .setSubject(subject)
+                        .setEncounter(encounter)
+                        .setAuthoredOn(date)
+                        .setRequester(practitioner);
+                break;
+            case "CareTeam":
+                CareTeam careTeam = new CareTeam()
+                        .setStatus(CareTeam.CareTeamStatus.ACTIVE)
+                        .setName("Oncology care team")
+                        .setSubject(subject);
+                careTeam.addParticipant()
+                        .addRole(concept(SNOMED, "309295000", "Oncologist"))
+                        .setMember(practitioner);
+                resource = careTeam;
+                break;
+            case "FamilyMemberHistory":
+                FamilyMemberHistory history = new FamilyMemberHistory()
+                        .setStatus(FamilyMemberHistory.FamilyHistoryStatus.COMPLETED)
+                        .setPatient(subject)
+                        .setRelationship(concept("http://terminology.hl7.org/CodeSystem/v3-RoleCode", "FTH",
+                                "Father"));
+                history.addCondition().setCode(concept(SNOMED, CONDITIONS[index % CONDITIONS.length][0],
+                        CONDITIONS[index % CONDITIONS.length][1]));
+                resource = history;
+                break;
+            case "Encounter":
+                Encounter visit = new Encounter()
+                        .setStatus(Encounter.EncounterStatus.FINISHED)
+                        .setClass_(new Coding("http://terminology.hl7.org/CodeSystem/v3-ActCode", "AMB",
+                                "ambulatory"))
+                        .addType(concept(EPIC_OID, "101", "Office Visit"))
+                        .setSubject(subject)
+                        .setPeriod(new Period().setStart(date).setEnd(new Date(date.getTime() + 1_800_000L)));
+                visit.addParticipant().setIndividual(practitioner);
+                resource = visit;
+                break;
+            case "DiagnosticReport":
+                resource = new DiagnosticReport()
+                        .setStatus(DiagnosticReport.DiagnosticReportStatus.FINAL)
+                        .addCategory(concept("http://terminology.hl7.org/CodeSystem/v2-0074", "LAB",
+                                "Laboratory"))
+                        .setCode(concept(LOINC, "58410-2", "Complete blood count panel"))
+                        .setSubject(subject)
+                        .setEncounter(encounter)
+                        .setEffective(new DateTimeType(date))
+                        .setIssued(date)
+                        .addResult(new Reference("Observation/" + epicId(random)).setDisplay("Hemoglobin"))
+                        .setConclusion("Within normal limits.");
+                break;
+            case "MedicationRequest":
+                MedicationRequest medication = new MedicationRequest()
+                        .setStatus(MedicationRequest.MedicationRequestStatus.ACTIVE)
+                        .setIntent(MedicationRequest.MedicationRequestIntent.ORDER)
+                        .setMedication(concept("http://www.nlm.nih.gov/research/umls/rxnorm",
+                                MEDICATIONS[index % MEDICATIONS.length][0],
+                                MEDICATIONS[index % MEDICATIONS.length][1]))
+                        .setSubject(subject)
+                        .setEncounter(encounter)
+                        .setAuthoredOn(date)
+                        .setRequester(practitioner);
+                medication.addDosageInstruction().setText("Take 1 tablet by mouth daily.");
+                resource = medication;
+                break;
+            case "Goal":
+                resource = new Goal()
+                        .setLifecycleStatus(Goal.GoalLifecycleStatus.ACTIVE)
+                        .setDescription(new CodeableConcept().setText("Maintain weight during treatment"))
+                        .setSubject(subject);
+                break;
+            case "AllergyIntolerance":
+                AllergyIntolerance allergy = new AllergyIntolerance()
+                        .setClinicalStatus(concept(ALLERGY_CLINICAL, "active", "Active"))
+                        .setCode(concept(SNOMED, "91936005", "Allergy to penicillin"))
+                        .setPatient(subject)
+                        .setRecordedDate(date);
+                allergy.addReaction().addManifestation(concept(SNOMED, "271807003", "Rash"));
+                resource = allergy;
+                break;
+            case "Immunization":
+                resource = new Immunization()
+                        .setStatus(Immunization.ImmunizationStatus.COMPLETED)
+                        .setVaccineCode(concept("http://hl7.org/fhir/sid/cvx", "140", "Influenza, seasonal"))
+                        .setPatient(subject)
+                        .setOccurrence(new DateTimeType(date));
+                break;
+            case "Procedure":
+                resource = new Procedure()
+                        .setStatus(Procedure.ProcedureStatus.COMPLETED)
+                        .setCode(concept("http://www.ama-assn.org/go/cpt", "96413", "Chemotherapy infusion"))
+                        .setSubject(subject)
+                        .setEncounter(encounter)
+                        .setPerformed(new DateTimeType(date));
+                break;
+            default:
+                throw new IllegalArgumentException("No synthetic " + resourceType + " resources");
+        }
+        resource.setId(epicId(random));
+        return resource;
+    }
+
+    /*
+     * A document reference whose content is the Binary at Binary/<documentId>
+     */
+    public static DocumentReference r4DocumentReference(Random random, String patientId, String documentId,
+                                                        String contentType, int index) {
+        DocumentReference document = new DocumentReference()
+                .setStatus(Enumerations.DocumentReferenceStatus.CURRENT)
+                .setType(concept(LOINC, "34133-9", "Summary of episode note"))
+                .setSubject(new Reference("Patient/" + patientId).setDisplay("Synthetic, Patient"))
+                .setDate(new Date(1_600_000_000_000L + index * 86_400_000L));
+        document.addContent().setAttachment(new Attachment().setContentType(contentType)
+                .setUrl("Binary/" + documentId));
+        document.setId(epicId(random));
+        return document;
+    }
+
+    private static CodeableConcept concept(String system, String code, String display) {
+        return new CodeableConcept().addCoding(new Coding(system, code, display)).setText(display);
+    }
+
+    public static List<IBaseResource> dstu2Observations(int count, String patientId, long seed) {
+        Random random = new Random(seed);
+        List<IBaseResource> resources = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            boolean vital = i % 3 != 0;
+            String[] test = vital ? VITALS[i % VITALS.length] : LABS[i % LABS.length];
+            ca.uhn.fhir.model.dstu2.resource.Observation observation =
+                    new ca.uhn.fhir.model.dstu2.resource.Observation();
+            observation.setId(epicId(random));
+            observation.setStatus(ObservationStatusEnum.FINAL);
+            CodeableConceptDt category = new CodeableConceptDt(
+                    "http://hl7.org/fhir/observation-category", vital ? "vital-signs" : "laboratory");
+            category.addCoding(new CodingDt(EPIC_OID, vital ? "9" : "Lab"));
+            observation.setCategory(category);
+            CodeableConceptDt code = new CodeableConceptDt(LOINC, test[0]);
+            code.addCoding(new CodingDt(EPIC_OID, Integer.toString(1000 + i % 50)));
+            code.setText(test[1]);
+            observation.setCode(code);
+            observation.setSubject(new ResourceReferenceDt("Patient/" + patientId));
+            observation.setEncounter(new ResourceReferenceDt("Encounter/" + epicId(random)));
+            observation.setEffective(new DateTimeDt(new Date(1_600_000_000_000L + i * 3_600_000L)));
+            QuantityDt value = new QuantityDt();
+            value.setValue(Double.parseDouble(test[3]) * (0.8 + random.nextDouble() * 0.4));
+            value.setUnit(test[2]);
+            value.setSystem(UCUM);
+            value.setCode(test[2]);
+            observation.setValue(value);
+            if (!vital) {
+                observation.setComments("Specimen collected at the outpatient lab.");
+            }
+            resources.add(observation);
+        }
+        return resources;
+    }
+
+    public static ca.uhn.fhir.model.dstu2.resource.Bundle dstu2SearchPage(int entries, String patientId, long seed,
+                                                                          boolean lastPage) {
+        String base = BASE_URL.replace("/R4", "/DSTU2");
+        ca.uhn.fhir.model.dstu2.resource.Bundle bundle = new ca.uhn.fhir.model.dstu2.resource.Bundle();
+        bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+        bundle.setTotal(entries);
+        bundle.addLink().setRelation("self").setUrl(base + "/Observation?patient=" + patientId);
+        if (!lastPage) {
+            bundle.addLink().setRelation("next").setUrl(base + "/Observation?patient=" + patientId
+                    + "&sessionID=16-" + seed);
+        }
+        for (IBaseResource resource : dstu2Observations(entries, patientId, seed)) {
+            bundle.addEntry()
+                    .setFullUrl(base + "/Observation/" + resource.getIdElement().getIdPart())
+                    .setResource((ca.uhn.fhir.model.dstu2.resource.Observation) resource)
+                    .getSearch().setMode(SearchEntryModeEnum.MATCH);
+        }
+        ca.uhn.fhir.model.dstu2.resource.OperationOutcome outcome =
+                new ca.uhn.fhir.model.dstu2.resource.OperationOutcome();
+        outcome.addIssue().setSeverity(IssueSeverityEnum.INFORMATION)
+                .setDiagnostics("Some results may be unavailable to this client.");
+        bundle.addEntry().setResource(outcome).getSearch().setMode(SearchEntryModeEnum.OUTCOME);
+        return bundle;
+    }
+
+    /*
+     * The concatenated pages of a large search: Observations with an OperationOutcome after every pageSize of them,
+     * as loadAllPages hands them to ensureResourceType
+     */
+    public static List<IBaseResource> r4LoadedPages(int count, int pageSize, long seed) {
+        List<IBaseResource> resources = new ArrayList<>(count + count / pageSize + 1);
+        List<IBaseResource> observations = r4Observations(count, "eBenchmarkPatient", seed);
+        for (int i = 0; i < observations.size(); i++) {
+            resources.add(observations.get(i));
+            if ((i + 1) % pageSize == 0) {
+                resources.add(r4Outcome());
+            }
+        }
+        return resources;
+    }
+}
@@ -0,0 +1,123 @@
+package com.oncolens.fhirengine.benchmarks;
+
+import com.oncolens.fhirengine.util.FhirUtilBase;
+import com.oncolens.fhirengine.util.TokenEndpointClient;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Cost of minting an access token: the per-call key parsing and client construction of the original
+ * ClientCredentialsEpic path against TokenEndpointClient. The token endpoint is a local HTTP server, so the numbers
+ * show client side overhead rather than EHR latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenMintingBenchmark {
+
+    private static final String CLIENT_ID = "benchmark-client";
+    private static final String TOKEN_RESPONSE =
+            "{\"access_token\":\"abc\",\"token_type\":\"bearer\",\"expires_in\":3600,\"scope\":\"system/*.read\"}";
+
+    private HttpServer server;
+    private String tokenURL;
+    private String privateKey;
+    private TokenEndpointClient tokenEndpointClient;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        // The config holds the base64 body of a PKCS#1 "RSA PRIVATE KEY" PEM
+        byte[] pkcs1 = PrivateKeyInfo.getInstance(generator.generateKeyPair().getPrivate().getEncoded())
+                .parsePrivateKey().toASN1Primitive().getEncoded();
+        privateKey = Base64.getMimeEncoder().encodeToString(pkcs1);
+
+        // Without it the JDK server delays small keep-alive responses (Nagle), which would penalize the pooled client
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/token", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = TOKEN_RESPONSE.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        tokenURL = "http://127.0.0.1:" + server.getAddress().getPort() + "/token";
+        tokenEndpointClient = new TokenEndpointClient(tokenURL, CLIENT_ID, "client_credentials", privateKey);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Benchmark
+    public String assertionPerCallKeyParse() throws Exception {
+        return FhirUtilBase.createJWT(CLIENT_ID, tokenURL, CLIENT_ID, Long.toString(System.currentTimeMillis()),
+                250000, privateKey);
+    }
+
+    @Benchmark
+    public String assertionCachedKey() throws Exception {
+        return tokenEndpointClient.createAssertion();
+    }
+
+    /*
+     * The original getToken: a new JWT signer and a new HttpClient (new connection) for every token
+     */
+    @Benchmark
+    public String tokenPerCallClient() throws Exception {
+        String jwtToken = FhirUtilBase.createJWT(CLIENT_ID, tokenURL, CLIENT_ID,
+                Long.toString(System.currentTimeMillis()), 250000, privateKey);
+        HttpClient client = HttpClientBuilder.create().build();
+        HttpPost tokenPost = new HttpPost(tokenURL);
+        tokenPost.addHeader("Content-Type", "application/x-www-form-urlencoded");
+        List<NameValuePair> tokenParams = new ArrayList<>();
+        tokenParams.add(new BasicNameValuePair("grant_type", "client_credentials"));
+        tokenParams.add(new BasicNameValuePair("client_assertion_type",
+                "urn:ietf:params:oauth:client-assertion-type:jwt-bearer"));
+        tokenParams.add(new BasicNameValuePair("client_assertion", jwtToken));
+        tokenPost.setEntity(new UrlEncodedFormEntity(tokenParams));
+        return EntityUtils.toString(client.execute(tokenPost).getEntity());
+    }
+
+    @Benchmark
+    public String tokenPooledClient() throws Exception {
+        return tokenEndpointClient.requestToken().getAccess_token();
+    }
+}
@@ -0,0 +1,63 @@
+package com.oncolens.fhirengine;
+
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Keeps only a count per resource type. Shared by all patient workers, so it is thread safe.
+ */
+@Slf4j
+public class CountingResourceSink implements ResourceSink {
+
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    @Override
+    public void accept(IBaseResource resource) {
+        add(resource.getClass().getSimpleName(), 1);
+    }
+
+    /*
+     * Counts the attempt on its own and adds it to the run's counts on commit
+     */
+    @Override
+    public Attempt begin(String patientId) {
+        Map<String, Long> attemptCounts = new HashMap<>();
+        return new Attempt() {
+            @Override
+            public void accept(IBaseResource resource) {
+                attemptCounts.merge(resource.getClass().getSimpleName(), 1L, Long::sum);
+            }
+
+            @Override
+            public void commit() {
+                attemptCounts.forEach(CountingResourceSink.this::add);
+            }
+
+            @Override
+            public void abort() {
+                attemptCounts.clear();
+            }
+        };
+    }
+
+    public Map<String, Long> getCounts() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counts.forEach((resourceType, count) -> snapshot.put(resourceType, count.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public void finish() {
+        log.info("Resources extracted by type {}", getCounts());
+    }
+
+    private void add(String resourceType, long count) {
+        counts.computeIfAbsent(resourceType, k -> new LongAdder()).add(count);
+    }
+}
@@ -1,22 +1,41 @@
 package com.oncolens.fhirengine;
+import ca.uhn.fhir.context.FhirContext;
 import com.oncolens.fhirengine.util.FhirConfig;
+import com.oncolens.fhirengine.util.TokenResponse;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import java.io.IOException;
 import java.util.List;
 
 public interface FhirBridge {
     void initialize(FhirConfig fc);
 
+    /*
+     * The current access token, renewed ahead of its expiry by the site's AccessTokenManager
+     */
     String getAuthorizationToken();
 
-    List<String> createPatientExtracts(IBaseResource patient, String identifier, List<String> extracts,
-                                       List<IBaseResource> resourcesAll);
+    /*
+     * Requests a new access token from the EHR's token endpoint
+     */
+    TokenResponse requestAccessToken();
+
+    void createPatientExtracts(IBaseResource patient, String identifier, List<String> extracts, ResourceSink sink)
+            throws IOException;
 
     List<String> createPatientCohort(List<String> cohortSelectionList, String cohortSelectionType,
-                                     List<IBaseResource> resourcesAll);
+                                     List<IBaseResource> patients);
 
     void processConformance();
 
     String extractPatientIdFromPatient(IBaseResource patient);
+
+    FhirContext getFhirContext();
+
+    /*
+     * Called once at the end of the run, after the last patient
+     */
+    default void finish() {
+    }
 }
 
 
@@ -2,32 +2,64 @@ package com.oncolens.fhirengine;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.ExtensionDt;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.IdentifierDt;
 import ca.uhn.fhir.model.dstu2.resource.*;
 import ca.uhn.fhir.model.dstu2.resource.DocumentReference.Content;
 import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
 import ca.uhn.fhir.model.primitive.UriDt;
 import ca.uhn.fhir.okhttp.client.OkHttpRestfulClientFactory;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.util.BundleUtil;
 
 import com.oncolens.fhirengine.model.AuditType;
+import com.oncolens.fhirengine.model.ConformanceCacheEntry;
+import com.oncolens.fhirengine.util.AccessTokenInterceptor;
+import com.oncolens.fhirengine.util.AccessTokenManager;
+import com.oncolens.fhirengine.util.BundlePager;
+import com.oncolens.fhirengine.util.ConformanceCache;
 import com.oncolens.fhirengine.util.FhirConfig;
 import com.oncolens.fhirengine.util.FhirUtilBase;
+import com.oncolens.fhirengine.util.OkHttpTransport;
+import com.oncolens.fhirengine.util.PatientIdCache;
+import com.oncolens.fhirengine.util.SkippedWork;
+import com.oncolens.fhirengine.util.TokenResponse;
+import com.oncolens.fhirengine.util.Tracer;
+import com.oncolens.fhirengine.util.WatermarkStore;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
 
 @Slf4j
 public class FhirBridgeDSTU2 implements FhirBridge {
 	private final FhirContext fhirContext = FhirContext.forDstu2();
 	private FhirConfig fhirConfig;
 	private String authToken;
+	private AccessTokenManager tokenManager;
 	private IGenericClient fhirClient = null;
+	private final Map<String, Set<String>> supportedSearchParams = new HashMap<>();
+	private boolean batchSupported;
+	private Map<String, Long> lastUpdatedSince = Collections.emptyMap();
 
 	public IGenericClient getFhirClient() {
 		return fhirClient;
@@ -41,7 +73,11 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 		FhirUtilBase.setOutputPath(fc);
 		this.fhirConfig = fc;
 		String serverBase = fhirConfig.getFhirBaseURL();
-		fhirContext.setRestfulClientFactory(new OkHttpRestfulClientFactory(fhirContext));
+		OkHttpRestfulClientFactory clientFactory = new OkHttpRestfulClientFactory(fhirContext);
+		clientFactory.setHttpClient(OkHttpTransport.getClient(fc));
+		// processConformance reads /metadata itself (or its cache), HAPI's own check would fetch it again
+		clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+		fhirContext.setRestfulClientFactory(clientFactory);
 		fhirClient = fhirContext.newRestfulGenericClient(serverBase);
 		log.info("Going to reach out to the Conformance End Point ...");
 		processConformance();
@@ -51,15 +87,20 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 			throw  (new RuntimeException("Failed to get authorization URLs. Cannot proceed"));
 		}
 		log.info("Going to get Authorization token ...");
+		this.tokenManager = AccessTokenManager.getInstance(fc, this::requestAccessToken);
 		this.authToken = getAuthorizationToken();
-		BearerTokenAuthInterceptor authInterceptor = new BearerTokenAuthInterceptor(this.authToken);
-		this.fhirClient.registerInterceptor(authInterceptor);
+		this.fhirClient.registerInterceptor(new AccessTokenInterceptor(tokenManager));
 		log.info("FhirBridge initialization successful");
 	}
 
 	@Override
 	public String getAuthorizationToken() {
-		String token = null;
+		return tokenManager.getToken();
+	}
+
+	@Override
+	public TokenResponse requestAccessToken() {
+		TokenResponse token = new TokenResponse();
 
 		try {
 			//token = ClientCredentials.getToken(this.fhirConfig);
@@ -73,53 +114,60 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 	}
 
 	@Override
-	public List<String> createPatientExtracts(IBaseResource patient, String identifier, List<String> extracts,
-											  List<IBaseResource> resourcesAll) {
-		List<String> resourcesJsonAll = new ArrayList<>();
-		List<IBaseResource> currentResources = new ArrayList<>();
+	public void createPatientExtracts(IBaseResource patient, String identifier, List<String> extracts,
+									  ResourceSink sink) throws IOException {
 		String patientid = extractPatientIdFromPatient(patient);
-		currentResources.add(patient);
+		sink.accept(patient);
+		// Replaced for every patient, the cohort searches by Patient are never filtered
+		lastUpdatedSince = WatermarkStore.getInstance(fhirConfig).getWatermarks(patientid);
 		log.info("Getting FHIR resources and Creating extracts...");
 
 		// Get Observations
 		if (extracts.contains("observation")) {
-			List<IBaseResource> observationResources = getObservationsForPatientId(patientid);
-			currentResources.addAll(observationResources);
+			List<IBaseResource> observationResources = fetch(patientid, "observation", () -> getObservationsForPatientId(patientid));
+			writeResources(observationResources, sink);
 			extracts.remove("observation");
 		}
 		// Get Conditions
 		if (extracts.contains("condition")) {
-			List<IBaseResource> conditionResources = getConditionsForPatientId(patientid);
-			currentResources.addAll(conditionResources);
+			List<IBaseResource> conditionResources = fetch(patientid, "condition", () -> getConditionsForPatientId(patientid));
+			writeResources(conditionResources, sink);
 			extracts.remove("condition");
 		}
 		// Get Encounters
 		if (extracts.contains("encounter")) {
-			List<IBaseResource> encounterResources = getEncountersForPatientId(patientid);
-			currentResources.addAll(encounterResources);
+			List<IBaseResource> encounterResources = fetch(patientid, "encounter", () -> getEncountersForPatientId(patientid));
+			writeResources(encounterResources, sink);
 			extracts.remove("encounter");
 		}
 		// Get MedicationStatements
 		if (extracts.contains("medicationstatement")) {
-			List<IBaseResource> medicationResources = getMedicationStatementsForPatientId(patientid);
-			currentResources.addAll(medicationResources);
+			List<IBaseResource> medicationResources = fetch(patientid, "medicationstatement",
+					() -> getMedicationStatementsForPatientId(patientid));
+			writeResources(medicationResources, sink);
 			extracts.remove("medicationstatement");
 		}
 
 		// Get Procedures
 		if (extracts.contains("procedure")) {
-			List<IBaseResource> procedureResources = getProceduresForPatientId(patientid);
-			currentResources.addAll(procedureResources);
+			List<IBaseResource> procedureResources = fetch(patientid, "procedure", () -> getProceduresForPatientId(patientid));
+			writeResources(procedureResources, sink);
 			extracts.remove("procedure");
 		}
 
 		if (extracts.contains("document")) {
-			getDocumentsForPatientId(patientid, identifier);
+			fetch(patientid, "document", () -> {
+				getDocumentsForPatientId(patientid, identifier);
+				return Collections.emptyList();
+			});
 			extracts.remove("document");
 		}
 
 		if (extracts.contains("operationccd")) {
-			byte[] ccd = getCCDUsingOperationForPatientId(patientid, identifier);
+			byte[] ccd;
+			try (Tracer.Span span = Tracer.span("fetch").set("extract", "operationccd")) {
+				ccd = getCCDUsingOperationForPatientId(patientid, identifier);
+			}
 			if (ccd != null) {
 				//try {
 				//	ByteArrayInputStream bis = new ByteArrayInputStream(ccd);
@@ -131,13 +179,65 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 			}
 			extracts.remove("operationccd");
 		}
-		// Process all the current resources to Json
-		for (IBaseResource currentResource : currentResources) {
-			String jsonStr = FhirUtilBase.getJsonForResource(fhirContext, currentResource);
-			resourcesJsonAll.add(jsonStr);
+	}
+
+	/*
+	 * In incremental mode, the _lastUpdated filter for the searches of an extract of the given resource type. Null
+	 * when the extract is fetched in full, which includes types whose Conformance entry does not list _lastUpdated.
+	 */
+	protected DateRangeParam lastUpdatedSince(String resourceType, String extract) {
+		Long since = getLastUpdatedSince(resourceType, extract);
+		return (since == null) ? null
+				: new DateRangeParam(new DateParam(FhirUtilBase.toLastUpdatedSearchValue(since)), null);
+	}
+
+	protected String withLastUpdated(String searchURL, String resourceType, String extract) {
+		return FhirUtilBase.appendLastUpdated(searchURL, getLastUpdatedSince(resourceType, extract));
+	}
+
+	private Long getLastUpdatedSince(String resourceType, String extract) {
+		Long since = lastUpdatedSince.get(extract);
+		return (since != null && supportsSearchParam(resourceType, "_lastUpdated")) ? since : null;
+	}
+
+	/*
+	 * Each extract is handed to the sink as soon as it has been fetched
+	 */
+	private void writeResources(List<IBaseResource> resources, ResourceSink sink) throws IOException {
+		for (IBaseResource resource : resources) {
+			sink.accept(resource);
+		}
+	}
+
+	/*
+	 * Runs the fetcher as a span of the patient's trace. A search the server rejects is audited, as on R4, and the
+	 * extract is recorded as skipped, so it is neither journaled nor given a new watermark. So is an extract whose
+	 * endpoint is failing (open circuit, or a 429 or 5xx left after the transport's retries), the patient's other
+	 * extracts still go out.
+	 */
+	private List<IBaseResource> fetch(String patientid, String extract, Supplier<List<IBaseResource>> fetcher) {
+		try (Tracer.Span span = Tracer.span("fetch").set("extract", extract)) {
+			try {
+				List<IBaseResource> resources = fetcher.get();
+				span.set("resources", resources.size());
+				return resources;
+			} catch (InvalidRequestException | UnprocessableEntityException e) {
+				log.error("Search for the {} extract of patient {} was rejected", extract, patientid, e);
+				span.set("skipped", e.getMessage());
+				FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fhirConfig, AuditType.VALIDATION_FAILED,
+						"Patient/" + patientid, FhirProcessor.PROCESSUUID, fhirConfig.getCohortListFile(),
+						"Exception occurred getting the " + extract + " extract - " + FhirUtilBase.getExceptionAsString(e)));
+				SkippedWork.getInstance(fhirConfig).record(patientid, extract, e);
+				return new ArrayList<>();
+			} catch (RuntimeException e) {
+				if (!SkippedWork.isEndpointFailure(e)) {
+					throw e;
+				}
+				span.set("skipped", e.getMessage());
+				SkippedWork.getInstance(fhirConfig).record(patientid, extract, e);
+				return new ArrayList<>();
+			}
 		}
-		resourcesAll.addAll(currentResources);
-		return resourcesJsonAll;
 	}
 
 	@Override
@@ -160,11 +260,12 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 
 	private List<String> createPatientCohortUsingIdentifier(List<String> cohortSelectionList, List<IBaseResource> patients) {
 		List<String> patientIds = new ArrayList<>();
+		Map<String, List<IBaseResource>> resolvedPatients = resolvePatientsByIdentifier(cohortSelectionList);
 
 		for (String patientInfo : cohortSelectionList) {
 			String system = patientInfo.split(",")[0].trim();
 			String identifier = patientInfo.split(",")[1].trim();
-			List<IBaseResource> patientResources = getPatientUsingIdentifierSystem(system, identifier);
+			List<IBaseResource> patientResources = resolvedPatients.get(system + "|" + identifier);
 			if (patientResources.size() != 1) {
 				FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fhirConfig, AuditType.VALIDATION_FAILED,
 						"Patient:" + patientInfo, FhirProcessor.PROCESSUUID, fhirConfig.getCohortListFile(),
@@ -192,9 +293,172 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 		return patientIds;
 	}
 
+	/*
+	 * Same batching as the R4 bridge: identifierBatchSize identifiers per batch Bundle when the server supports the
+	 * batch interaction, otherwise per comma separated (OR) identifier search, one by one if the server rejects it
+	 */
+	private Map<String, List<IBaseResource>> resolvePatientsByIdentifier(List<String> cohortSelectionList) {
+		List<String[]> systemIdentifiers = new ArrayList<>();
+		for (String patientInfo : cohortSelectionList) {
+			systemIdentifiers.add(new String[]{patientInfo.split(",")[0].trim(), patientInfo.split(",")[1].trim()});
+		}
+		PatientIdCache idCache = PatientIdCache.getInstance(fhirConfig);
+		List<String[]> unresolved = new ArrayList<>();
+		Map<String, List<IBaseResource>> resolvedPatients = resolveCachedPatients(systemIdentifiers, idCache,
+				unresolved);
+		int batchSize = Math.max(1, fhirConfig.getIdentifierBatchSize());
+		for (int start = 0; start < unresolved.size(); start += batchSize) {
+			List<String[]> chunk = unresolved.subList(start, Math.min(start + batchSize, unresolved.size()));
+			if (chunk.size() > 1) {
+				try {
+					resolvedPatients.putAll(batchSupported ? resolvePatientsByBatch(chunk)
+							: resolvePatientsBySearch(chunk));
+					continue;
+				} catch (InvalidRequestException e) {
+					log.info("Batched identifier lookup rejected, resolving {} identifiers one by one",
+							chunk.size());
+				}
+			}
+			for (String[] systemIdentifier : chunk) {
+				resolvedPatients.put(systemIdentifier[0] + "|" + systemIdentifier[1],
+						getPatientUsingIdentifierSystem(systemIdentifier[0], systemIdentifier[1]));
+			}
+		}
+		log.info("Resolved {} cohort identifiers, {} from the patient id cache", systemIdentifiers.size(),
+				systemIdentifiers.size() - unresolved.size());
+		idCache.update(resolvedPatients);
+		idCache.save();
+		return resolvedPatients;
+	}
+
+	/*
+	 * Same as the R4 bridge: cached ids are fetched with Patient?_id searches and only used while the patient still
+	 * carries the identifier and has not been replaced by another record
+	 */
+	private Map<String, List<IBaseResource>> resolveCachedPatients(List<String[]> systemIdentifiers,
+																   PatientIdCache idCache,
+																   List<String[]> unresolved) {
+		List<String[]> cached = new ArrayList<>();
+		for (String[] systemIdentifier : systemIdentifiers) {
+			if (idCache.getPatientId(systemIdentifier[0], systemIdentifier[1]) != null) {
+				cached.add(systemIdentifier);
+			} else {
+				unresolved.add(systemIdentifier);
+			}
+		}
+		Map<String, List<IBaseResource>> resolvedPatients = new HashMap<>();
+		int batchSize = Math.max(1, fhirConfig.getIdentifierBatchSize());
+		for (int start = 0; start < cached.size(); start += batchSize) {
+			List<String[]> chunk = cached.subList(start, Math.min(start + batchSize, cached.size()));
+			Map<String, Patient> patientsById = new HashMap<>();
+			try {
+				StringBuilder searchURL = new StringBuilder("Patient?_id=");
+				for (int i = 0; i < chunk.size(); i++) {
+					searchURL.append((i > 0) ? "," : "")
+							.append(idCache.getPatientId(chunk.get(i)[0], chunk.get(i)[1]));
+				}
+				for (IBaseResource res : getResourcesByURL(searchURL.toString(), true, Patient.class)) {
+					patientsById.put(res.getIdElement().getIdPart(), (Patient) res);
+				}
+			} catch (InvalidRequestException | ResourceNotFoundException e) {
+				log.info("Cached patient ids rejected, resolving {} identifiers by search", chunk.size());
+			}
+			for (String[] systemIdentifier : chunk) {
+				Patient patient = patientsById.get(idCache.getPatientId(systemIdentifier[0], systemIdentifier[1]));
+				if (patient != null && isCurrentRecordFor(patient, systemIdentifier[0], systemIdentifier[1])) {
+					resolvedPatients.put(systemIdentifier[0] + "|" + systemIdentifier[1],
+							new ArrayList<>(Collections.singletonList(patient)));
+				} else {
+					unresolved.add(systemIdentifier);
+				}
+			}
+		}
+		return resolvedPatients;
+	}
+
+	private boolean isCurrentRecordFor(Patient patient, String system, String identifier) {
+		for (Patient.Link link : patient.getLink()) {
+			if ("replace".equals(link.getType())) {
+				return false;
+			}
+		}
+		for (IdentifierDt id : patient.getIdentifier()) {
+			if (system.equals(id.getSystem()) && identifier.equals(id.getValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Map<String, List<IBaseResource>> resolvePatientsByBatch(List<String[]> chunk) {
+		Bundle batch = new Bundle();
+		batch.setType(BundleTypeEnum.BATCH);
+		for (String[] systemIdentifier : chunk) {
+			batch.addEntry().getRequest()
+					.setMethod(HTTPVerbEnum.GET)
+					.setUrl("Patient?identifier="
+							+ FhirUtilBase.toTokenSearchValue(systemIdentifier[0], systemIdentifier[1]));
+		}
+		Bundle response = fhirClient.transaction().withBundle(batch).execute();
+		Map<String, List<IBaseResource>> resolvedPatients = new HashMap<>();
+		for (int i = 0; i < chunk.size(); i++) {
+			// Batch responses come back in request order
+			IResource result = (i < response.getEntry().size()) ? response.getEntry().get(i).getResource() : null;
+			List<IBaseResource> patientResources = new ArrayList<>();
+			if (result instanceof Bundle) {
+				patientResources.addAll(BundleUtil.toListOfResources(fhirContext, (Bundle) result));
+			} else if (result != null) {
+				patientResources.add(result);
+			}
+			FhirUtilBase.ensureResourceType(patientResources, Patient.class);
+			resolvedPatients.put(chunk.get(i)[0] + "|" + chunk.get(i)[1], patientResources);
+		}
+		return resolvedPatients;
+	}
+
+	private Map<String, List<IBaseResource>> resolvePatientsBySearch(List<String[]> chunk) {
+		Map<String, List<IBaseResource>> resolvedPatients = new HashMap<>();
+		StringBuilder searchURL = new StringBuilder("Patient?identifier=");
+		for (String[] systemIdentifier : chunk) {
+			if (resolvedPatients.size() > 0) {
+				searchURL.append(',');
+			}
+			searchURL.append(FhirUtilBase.toTokenSearchValue(systemIdentifier[0], systemIdentifier[1]));
+			resolvedPatients.put(systemIdentifier[0] + "|" + systemIdentifier[1], new ArrayList<>());
+		}
+		List<IBaseResource> patientResources = getResourcesByURL(searchURL.toString(), true, Patient.class);
+		for (IBaseResource res : patientResources) {
+			for (IdentifierDt id : ((Patient) res).getIdentifier()) {
+				List<IBaseResource> matches = resolvedPatients.get(id.getSystem() + "|" + id.getValue());
+				if (matches != null && !matches.contains(res)) {
+					matches.add(res);
+				}
+			}
+		}
+		return resolvedPatients;
+	}
+
 	@Override
 	public void processConformance() {
+		ConformanceCacheEntry cached = ConformanceCache.load(fhirConfig);
+		if (cached != null) {
+			applyConformance(cached);
+			return;
+		}
 		Conformance cnf = fhirClient.capabilities().ofType(Conformance.class).execute();
+		ConformanceCacheEntry entry = new ConformanceCacheEntry();
+		for (Conformance.RestResource resource : cnf.getRest().get(0).getResource()) {
+			Set<String> searchParams = new HashSet<>();
+			for (Conformance.RestResourceSearchParam searchParam : resource.getSearchParam()) {
+				searchParams.add(searchParam.getName());
+			}
+			entry.getSearchParams().put(resource.getType(), searchParams);
+		}
+		for (Conformance.RestInteraction interaction : cnf.getRest().get(0).getInteraction()) {
+			if ("batch".equals(interaction.getCode())) {
+				entry.setBatchSupported(true);
+			}
+		}
 		if (cnf.getRest().get(0).getSecurity().getUndeclaredExtensions().get(0).getUrlAsString()
 				.equalsIgnoreCase(fhirConfig.getFhirAuthNameSpace())) {
 			log.info("Found authorization details in conformance, going to look for auth and token urls");
@@ -204,15 +468,33 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 				if (e.getUrlAsString().contentEquals(fhirConfig.getFhirAuthUrlKey())) {
 					log.info("Found authorization URL details in conformance");
 					UriDt ud = (UriDt) e.getValue();
-					fhirConfig.setAuthURL(ud.getValueAsString());
+					entry.setAuthURL(ud.getValueAsString());
 				}
 				if (e.getUrlAsString().contentEquals(fhirConfig.getFhirTokenUrlKey())) {
 					log.info("Found token URL details in conformance");
 					UriDt ud = (UriDt) e.getValue();
-					fhirConfig.setTokenURL(ud.getValueAsString());
+					entry.setTokenURL(ud.getValueAsString());
 				}
 			}
 		}
+		ConformanceCache.store(fhirConfig, entry);
+		applyConformance(entry);
+	}
+
+	private void applyConformance(ConformanceCacheEntry entry) {
+		supportedSearchParams.clear();
+		supportedSearchParams.putAll(entry.getSearchParams());
+		batchSupported = entry.isBatchSupported();
+		if (entry.getAuthURL() != null) {
+			fhirConfig.setAuthURL(entry.getAuthURL());
+		}
+		if (entry.getTokenURL() != null) {
+			fhirConfig.setTokenURL(entry.getTokenURL());
+		}
+	}
+
+	public boolean supportsSearchParam(String resourceType, String searchParam) {
+		return supportedSearchParams.getOrDefault(resourceType, Collections.emptySet()).contains(searchParam);
 	}
 
 	@Override
@@ -239,14 +521,9 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 		Bundle bundle = fhirClient.search()
 				.forResource(Observation.class)
 				.where(Observation.PATIENT.hasId(patientId))
+				.lastUpdated(lastUpdatedSince("Observation", "observation"))
 				.returnBundle(Bundle.class).execute();
-		List<IBaseResource> observations = new ArrayList<>(BundleUtil.toListOfResources(fhirContext, bundle));
-
-		// Load the subsequent pages
-		while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-			bundle = fhirClient.loadPage().next(bundle).execute();
-			observations.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-		}
+		List<IBaseResource> observations = loadAllPages(bundle);
 		FhirUtilBase.ensureResourceType(observations, Observation.class);
 		log.debug("{} Observations fetched!", observations.size());
 		return observations;
@@ -256,13 +533,9 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 		Bundle bundle = fhirClient.search()
 				.forResource(Condition.class)
 				.where(Condition.PATIENT.hasId(patientId))
+				.lastUpdated(lastUpdatedSince("Condition", "condition"))
 				.returnBundle(Bundle.class).execute();
-		List<IBaseResource> conditions = new ArrayList<>(BundleUtil.toListOfResources(fhirContext, bundle));
-		// Load the subsequent pages
-		while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-			bundle = fhirClient.loadPage().next(bundle).execute();
-			conditions.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-		}
+		List<IBaseResource> conditions = loadAllPages(bundle);
 		FhirUtilBase.ensureResourceType(conditions, Condition.class);
 		log.debug("{} Conditions fetched!", conditions.size());
 		return conditions;
@@ -272,13 +545,9 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 		Bundle bundle = fhirClient.search()
 				.forResource(Encounter.class)
 				.where(Encounter.PATIENT.hasId(patientId))
+				.lastUpdated(lastUpdatedSince("Encounter", "encounter"))
 				.returnBundle(Bundle.class).execute();
-		List<IBaseResource> encounters = new ArrayList<>(BundleUtil.toListOfResources(fhirContext, bundle));
-		// Load the subsequent pages
-		while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-			bundle = fhirClient.loadPage().next(bundle).execute();
-			encounters.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-		}
+		List<IBaseResource> encounters = loadAllPages(bundle);
 		FhirUtilBase.ensureResourceType(encounters, Encounter.class);
 		log.debug("{} Encounters fetched!", encounters.size());
 		return encounters;
@@ -288,13 +557,9 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 		Bundle bundle = fhirClient.search()
 				.forResource(MedicationStatement.class)
 				.where(MedicationStatement.PATIENT.hasId(patientId))
+				.lastUpdated(lastUpdatedSince("MedicationStatement", "medicationstatement"))
 				.returnBundle(Bundle.class).execute();
-		List<IBaseResource> medications = new ArrayList<>(BundleUtil.toListOfResources(fhirContext, bundle));
-		// Load the subsequent pages
-		while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-			bundle = fhirClient.loadPage().next(bundle).execute();
-			medications.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-		}
+		List<IBaseResource> medications = loadAllPages(bundle);
 		FhirUtilBase.ensureResourceType(medications, MedicationStatement.class);
 		log.debug("{} Medications fetched!", medications.size());
 		return medications;
@@ -303,20 +568,17 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 	public List<IBaseResource> getProceduresForPatientId(String patientId) {
 		Bundle bundle = fhirClient.search().forResource(Procedure.class)
 				.where(Procedure.PATIENT.hasId(patientId))
+				.lastUpdated(lastUpdatedSince("Procedure", "procedure"))
 				.returnBundle(Bundle.class).execute();
-		List<IBaseResource> procedures = new ArrayList<>(BundleUtil.toListOfResources(fhirContext, bundle));
-		// Load the subsequent pages
-		while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-			bundle = fhirClient.loadPage().next(bundle).execute();
-			procedures.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-		}
+		List<IBaseResource> procedures = loadAllPages(bundle);
 		FhirUtilBase.ensureResourceType(procedures, Procedure.class);
 		log.debug("{} Procedures fetched!", procedures.size());
 		return procedures;
 	}
 
 	public void getDocumentsForPatientId(String patientId, String identifier) {
-		String searchURL = "DocumentReference?patient=" + patientId;
+		String searchURL = withLastUpdated("DocumentReference?patient=" + patientId, "DocumentReference",
+				"document");
 		List<IBaseResource> documentReferences = getResourcesByURL(searchURL, true, DocumentReference.class);
 		log.info(" {} documentReferences fetched!", documentReferences.size());
 
@@ -363,6 +625,10 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 			decodedBytes = Base64.getDecoder().decode(b.getContentAsBase64());
 
 		} catch (Exception e) {
+			if (SkippedWork.isEndpointFailure(e)) {
+				SkippedWork.getInstance(fhirConfig).record(patientid, "operationccd", e);
+				return null;
+			}
 			FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fhirConfig, AuditType.VALIDATION_FAILED,"Patient/" + patientid,FhirProcessor.PROCESSUUID, fhirConfig.getCohortListFile(), "Exception occurred getting CCD using operationccd and hence skipping, for " + identifier + " due to " + FhirUtilBase.getExceptionAsString(e)));
 		}
 		return decodedBytes;
@@ -381,21 +647,27 @@ public class FhirBridgeDSTU2 implements FhirBridge {
 		// "system": "urn:oid:2.16.840.1.113883.6.1000",
 		// "value": "490176388"
 
+		if (fhirResourceClass != null && fhirResourceClass != Patient.class) {
+			searchURL = withLastUpdated(searchURL, fhirResourceClass.getSimpleName(),
+					fhirResourceClass.getSimpleName().toLowerCase(Locale.ROOT));
+		}
 		Bundle bundle = fhirClient.search()
 				.byUrl(searchURL).returnBundle(Bundle.class)
 				.execute();
-		List<IBaseResource> resources = new ArrayList<>(BundleUtil.toListOfResources(fhirContext, bundle));
-		// Load the subsequent pages
-		while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-			bundle = fhirClient.loadPage().next(bundle).execute();
-			resources.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-		}
+		List<IBaseResource> resources = loadAllPages(bundle);
 		if (checkResourceType && (fhirResourceClass != null)) {
 			FhirUtilBase.ensureResourceType(resources, fhirResourceClass);
 		}
 		return resources;
 	}
 
+	/*
+	 * Collects the resources of the given search result page and every page after it
+	 */
+	protected List<IBaseResource> loadAllPages(IBaseBundle firstPage) {
+		return BundlePager.loadAllPages(fhirContext, fhirClient, firstPage, fhirConfig.getPagePrefetchDepth());
+	}
+
 	public FhirContext getFhirContext() {
 		return fhirContext;
 	}
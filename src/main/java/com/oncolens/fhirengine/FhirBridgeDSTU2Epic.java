@@ -4,6 +4,7 @@ import ca.uhn.fhir.model.dstu2.resource.Observation;
 import com.oncolens.fhirengine.model.AuditType;
 import com.oncolens.fhirengine.util.ClientCredentialsEpic;
 import com.oncolens.fhirengine.util.FhirUtilBase;
+import com.oncolens.fhirengine.util.TokenResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import java.util.List;
@@ -15,10 +16,10 @@ import java.util.List;
 @Slf4j
 public class FhirBridgeDSTU2Epic extends FhirBridgeDSTU2 {
 	@Override
-	public String getAuthorizationToken() {
-		String token ;
+	public TokenResponse requestAccessToken() {
+		TokenResponse token ;
 		try {
-			token = ClientCredentialsEpic.getToken(getFhirConfig());
+			token = ClientCredentialsEpic.getTokenResponse(getFhirConfig());
 		} catch (Exception e) {
 			FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(getFhirConfig(), AuditType.EXCEPTION_OCCURRED,"getAccessToken",FhirProcessor.PROCESSUUID, getFhirConfig().getCohortListFile(), "Unable to get auth token :" + getFhirConfig().getFhirBaseURL() + " token url :" + getFhirConfig().getTokenURL() + " Exception - " + FhirUtilBase.getExceptionAsString(e)));
 			log.error("Exception while trying to get the auth token", e);
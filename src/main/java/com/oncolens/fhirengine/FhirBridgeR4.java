@@ -3,33 +3,70 @@ package com.oncolens.fhirengine;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.okhttp.client.OkHttpRestfulClientFactory;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.util.BundleUtil;
 
 import com.oncolens.fhirengine.model.AuditType;
+import com.oncolens.fhirengine.model.ConformanceCacheEntry;
+import com.oncolens.fhirengine.util.AccessTokenInterceptor;
+import com.oncolens.fhirengine.util.AccessTokenManager;
+import com.oncolens.fhirengine.util.BundlePager;
+import com.oncolens.fhirengine.util.ConformanceCache;
+import com.oncolens.fhirengine.util.ExtractExecutor;
 import com.oncolens.fhirengine.util.FhirConfig;
 import com.oncolens.fhirengine.util.FhirUtilBase;
+import com.oncolens.fhirengine.util.OkHttpTransport;
+import com.oncolens.fhirengine.util.PatientIdCache;
 //**import com.oncolens.fhir.connector.client.util.ClientCredentials;
 import com.oncolens.fhirengine.util.S3Access;
+import com.oncolens.fhirengine.util.SkippedWork;
+import com.oncolens.fhirengine.util.TokenResponse;
+import com.oncolens.fhirengine.util.Tracer;
+import com.oncolens.fhirengine.util.WatermarkStore;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.DocumentReference.DocumentReferenceContentComponent;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 public class FhirBridgeR4 implements FhirBridge {
     private final FhirContext fhirContext = FhirContext.forR4();
     private FhirConfig fhirConfig;
     private String authToken;
+    private AccessTokenManager tokenManager;
     private IGenericClient fhirClient = null;
+    // Search parameter names advertised in the CapabilityStatement, keyed by resource type
+    private final Map<String, Set<String>> supportedSearchParams = new HashMap<>();
+    private boolean batchSupported;
+    private volatile Map<String, Long> lastUpdatedSince = Collections.emptyMap();
+    // Searches of the current patient the server rejected, keyed by extract
+    private final Map<String, RuntimeException> failedSearches = new ConcurrentHashMap<>();
 
     public IGenericClient getFhirClient() {
         return fhirClient;
@@ -38,7 +75,11 @@ public class FhirBridgeR4 implements FhirBridge {
         FhirUtilBase.setOutputPath(fc);
         this.fhirConfig = fc;
         String serverBase = fhirConfig.getFhirBaseURL();
-        fhirContext.setRestfulClientFactory(new OkHttpRestfulClientFactory(fhirContext));
+        OkHttpRestfulClientFactory clientFactory = new OkHttpRestfulClientFactory(fhirContext);
+        clientFactory.setHttpClient(OkHttpTransport.getClient(fc));
+        // processConformance reads /metadata itself (or its cache), HAPI's own check would fetch it again
+        clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+        fhirContext.setRestfulClientFactory(clientFactory);
         fhirClient = fhirContext.newRestfulGenericClient(serverBase);
         log.info("Going to reach out to the Conformance End Point -{}", serverBase);
         processConformance();
@@ -48,15 +89,20 @@ public class FhirBridgeR4 implements FhirBridge {
             throw new RuntimeException("Failed to obtain authorization URLs... Cannot proceed");
         }
         log.info("Going to get Authorization token ...");
+        this.tokenManager = AccessTokenManager.getInstance(fc, this::requestAccessToken);
         this.authToken = getAuthorizationToken();
-        BearerTokenAuthInterceptor authInterceptor = new BearerTokenAuthInterceptor(this.authToken);
-        this.fhirClient.registerInterceptor(authInterceptor);
+        this.fhirClient.registerInterceptor(new AccessTokenInterceptor(tokenManager));
         log.info("FhirBridge initialization successful");
     }
 
     @Override
     public String getAuthorizationToken() {
-        String token = null;
+        return tokenManager.getToken();
+    }
+
+    @Override
+    public TokenResponse requestAccessToken() {
+        TokenResponse token = new TokenResponse();
         try {
             //**token = ClientCredentials.getToken(this.fhirConfig);
         } catch (Exception e) {
@@ -69,127 +115,229 @@ public class FhirBridgeR4 implements FhirBridge {
     }
 
     @Override
-    public List<String> createPatientExtracts(IBaseResource patient, String identifier, List<String> extracts,
-                                              List<IBaseResource> resourcesAll) {
+    public void createPatientExtracts(IBaseResource patient, String identifier, List<String> extracts,
+                                      ResourceSink sink) throws IOException {
 
-        List<String> resourcesJsonAll = new ArrayList<>();
-        List<IBaseResource> currentResources = new ArrayList<>();
         String patientid = extractPatientIdFromPatient(patient);
-        currentResources.add(patient);
-        // Get Observations
-        if (extracts.contains("observation")) {
-            List<IBaseResource> observationResources = getObservationsForPatientId(patientid);
-            currentResources.addAll(observationResources);
-            extracts.remove("observation");
+        sink.accept(patient);
+        createResourceExtracts(patientid, identifier, extracts, sink);
+    }
+
+    /*
+     * Fetches the requested extracts other than the Patient itself and removes them from the list
+     */
+    protected void createResourceExtracts(String patientid, String identifier, List<String> extracts,
+                                          ResourceSink sink) throws IOException {
+        Map<String, ExtractFetcher> extractFetchers = getExtractFetchers(patientid, identifier);
+        List<ExtractFetcher> requestedFetchers = new ArrayList<>();
+        for (Map.Entry<String, ExtractFetcher> extractFetcher : extractFetchers.entrySet()) {
+            if (extracts.remove(extractFetcher.getKey())) {
+                requestedFetchers.add(skipOnEndpointFailure(patientid, extractFetcher.getKey(),
+                        extractFetcher.getValue()));
+            }
         }
-        // Get Service Requests
-        if (extracts.contains("servicerequest")) {
-            List<IBaseResource> serviceRequestResources = getServiceRequestsForPatientId(patientid);
-            currentResources.addAll(serviceRequestResources);
-            extracts.remove("servicerequest");
+        lastUpdatedSince = WatermarkStore.getInstance(fhirConfig).getWatermarks(patientid);
+        failedSearches.clear();
+        try {
+            fetchExtracts(requestedFetchers, sink);
+            // Written out incomplete, so neither journaled nor given a new watermark
+            for (Map.Entry<String, RuntimeException> failedSearch : failedSearches.entrySet()) {
+                SkippedWork.getInstance(fhirConfig).record(patientid, failedSearch.getKey(), failedSearch.getValue());
+            }
+        } finally {
+            lastUpdatedSince = Collections.emptyMap();
+            failedSearches.clear();
         }
+    }
 
-        // Get Conditions
-        if (extracts.contains("condition")) {
-            List<IBaseResource> conditionResources = getConditionsForPatientId(patientid);
-            currentResources.addAll(conditionResources);
-            extracts.remove("condition");
-        }
+    /*
+     * An extract whose endpoint is failing is recorded as skipped work and left out, so the patient's other extracts
+     * still go out. The fetch is a span of the patient's trace, whichever thread it runs on.
+     */
+    private ExtractFetcher skipOnEndpointFailure(String patientid, String extract, ExtractFetcher fetcher) {
+        Tracer.Span parentSpan = Tracer.current();
+        return sink -> {
+            try (Tracer.Span span = parentSpan.child("fetch").set("extract", extract)) {
+                try {
+                    long resources = fetcher.fetch(sink);
+                    span.set("resources", resources);
+                    return resources;
+                } catch (RuntimeException e) {
+                    if (!SkippedWork.isEndpointFailure(e)) {
+                        throw e;
+                    }
+                    span.set("skipped", e.getMessage());
+                    SkippedWork.getInstance(fhirConfig).record(patientid, extract, e);
+                    return 0;
+                }
+            }
+        };
+    }
 
-        // Get Care Team
-        if (extracts.contains("careteam")) {
-            List<IBaseResource> careTeamResources = getCareTeamForPatientId(patientid);
-            currentResources.addAll(careTeamResources);
-            extracts.remove("careteam");
-        }
-        // Get Family Member History
-        if (extracts.contains("familymemberhistory")) {
-            List<IBaseResource> familyMemberHistories = getFamilyMemberHistoryForPatientId(patientid);
-            currentResources.addAll(familyMemberHistories);
-            extracts.remove("familymemberhistory");
-        }
-        // Get Encounters
-        if (extracts.contains("encounter")) {
-            List<IBaseResource> encounterResources = getEncountersForPatientId(patientid);
-            currentResources.addAll(encounterResources);
-            extracts.remove("encounter");
-        }
+    /*
+     * In incremental mode, the _lastUpdated filter for the searches of a resource type (its extract is the lower case
+     * resource type). Null when the extract is fetched in full, which includes types whose CapabilityStatement entry
+     * does not list _lastUpdated.
+     */
+    protected DateRangeParam lastUpdatedSince(String resourceType) {
+        Long since = getLastUpdatedSince(resourceType);
+        return (since == null) ? null
+                : new DateRangeParam(new DateParam(FhirUtilBase.toLastUpdatedSearchValue(since)), null);
+    }
 
-        // Get DiagnosticReport
-        if (extracts.contains("diagnosticreport")) {
-            List<IBaseResource> diagnosticReports = getDiagnosticReportsForPatientId(patientid);
-            currentResources.addAll(diagnosticReports);
-            extracts.remove("diagnosticreport");
-        }
+    protected String withLastUpdated(String searchURL, String resourceType) {
+        return FhirUtilBase.appendLastUpdated(searchURL, getLastUpdatedSince(resourceType));
+    }
 
-        // Get MedicationRequest
-        if (extracts.contains("medicationrequest")) {
-            List<IBaseResource> medicationResources = getMedicationRequestsForPatientId(patientid);
-            currentResources.addAll(medicationResources);
-            extracts.remove("medicationrequest");
-        }
+    private Long getLastUpdatedSince(String resourceType) {
+        Long since = lastUpdatedSince.get(resourceType.toLowerCase(Locale.ROOT));
+        return (since != null && supportsSearchParam(resourceType, "_lastUpdated")) ? since : null;
+    }
 
-        // Get Careplan
-        if (extracts.contains("careplan")) {
-            List<IBaseResource> careplans = getCarePlansForPatientId(patientid);
-            currentResources.addAll(careplans);
-            extracts.remove("careplan");
-        }
+    /*
+     * Fetches one extract of a patient into the sink and returns how many resources it handed over
+     */
+    protected interface ExtractFetcher {
+        long fetch(ResourceSink sink) throws IOException;
+    }
 
-        // Get Goal
-        if (extracts.contains("goal")) {
-            List<IBaseResource> goals = getGoalsForPatientId(patientid);
-            currentResources.addAll(goals);
-            extracts.remove("goal");
-        }
+    /*
+     * The supported extracts in the order their resources are written to the patient's output file
+     */
+    protected Map<String, ExtractFetcher> getExtractFetchers(String patientid, String identifier) {
+        Map<String, ExtractFetcher> extractFetchers = new LinkedHashMap<>();
+        extractFetchers.put("observation", sink -> getObservationsForPatientId(patientid, sink));
+        extractFetchers.put("servicerequest", sink -> getServiceRequestsForPatientId(patientid, sink));
+        extractFetchers.put("condition", sink -> getConditionsForPatientId(patientid, sink));
+        extractFetchers.put("careteam", sink -> getCareTeamForPatientId(patientid, sink));
+        extractFetchers.put("familymemberhistory", sink -> getFamilyMemberHistoryForPatientId(patientid, sink));
+        extractFetchers.put("encounter", sink -> getEncountersForPatientId(patientid, sink));
+        extractFetchers.put("diagnosticreport", sink -> getDiagnosticReportsForPatientId(patientid, sink));
+        extractFetchers.put("medicationrequest", sink -> getMedicationRequestsForPatientId(patientid, sink));
+        extractFetchers.put("careplan", sink -> getCarePlansForPatientId(patientid, sink));
+        extractFetchers.put("goal", sink -> getGoalsForPatientId(patientid, sink));
+        extractFetchers.put("allergyintolerance", sink -> getAllergyIntoleranceForPatientId(patientid, sink));
+        extractFetchers.put("immunization", sink -> getImmunizationsForPatientId(patientid, sink));
+        extractFetchers.put("procedure", sink -> getProceduresForPatientId(patientid, sink));
+        extractFetchers.put("documentreference", sink -> {
+            getDocumentsForPatientId(patientid, identifier);
+            return 0;
+        });
+        extractFetchers.put("operationccd", sink -> {
+            byte[] ccd = getCCDUsingOperationForPatientId(patientid, identifier);
+            if (ccd != null) {
+                //**S3Access.getInstance(fhirConfig).upload(ccd, fhirConfig, identifier,
+                       //** fhirConfig.getCcdOutputFilePath(), null, "application/xml");
+            }
+            return 0;
+        });
+        return extractFetchers;
+    }
 
-        // Get Allergies
-        if (extracts.contains("allergyintolerance")) {
-            List<IBaseResource> allergies = getAllergyIntoleranceForPatientId(patientid);
-            currentResources.addAll(allergies);
-            extracts.remove("allergyintolerance");
+    /*
+     * Runs the fetchers one after another, or on the shared extract executor when resourceFetchWorkers > 1. One after
+     * another, each fetcher writes its pages straight into the sink as they arrive. In parallel, each fetcher hands
+     * its resources over through a queue of at most resourceFetchBuffer resources, and this thread drains the queues
+     * in fetcher order, so the output file is the same from run to run and a fetcher that runs ahead waits instead of
+     * holding its whole extract. A fetcher the pool has not started by the time its turn comes is run on this thread,
+     * straight into the sink, so a patient never waits on pool threads held by fetchers blocked behind it.
+     */
+    private void fetchExtracts(List<ExtractFetcher> fetchers, ResourceSink sink) throws IOException {
+        if (fhirConfig.getResourceFetchWorkers() <= 1 || fetchers.size() <= 1) {
+            for (ExtractFetcher fetcher : fetchers) {
+                fetcher.fetch(sink);
+            }
+            return;
         }
-
-        // Get Immunizations
-        if (extracts.contains("immunization")) {
-            List<IBaseResource> immunizations = getImmunizationsForPatientId(patientid);
-            currentResources.addAll(immunizations);
-            extracts.remove("immunization");
+        ExecutorService executor = ExtractExecutor.getInstance(fhirConfig);
+        List<FetchHandoff> handoffs = new ArrayList<>();
+        for (ExtractFetcher fetcher : fetchers) {
+            FetchHandoff handoff = new FetchHandoff(fetcher, Math.max(1, fhirConfig.getResourceFetchBuffer()));
+            handoff.future = executor.submit(handoff::runOnPool);
+            handoffs.add(handoff);
+        }
+        try {
+            for (FetchHandoff handoff : handoffs) {
+                handoff.writeTo(sink);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            for (FetchHandoff handoff : handoffs) {
+                handoff.future.cancel(true);
+            }
         }
+    }
+
+    /*
+     * One fetcher of a parallel fetch and the bounded queue its resources pass through. Whichever side claims the
+     * fetcher first runs it: a pool thread fills the queue, the patient's thread writes to the sink directly.
+     */
+    private static class FetchHandoff {
+        private static final Object END = new Object();
+
+        private final ExtractFetcher fetcher;
+        private final BlockingQueue<Object> queue;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private Future<?> future;
 
-        // Get Procedures
-        if (extracts.contains("procedure")) {
-            List<IBaseResource> procedureResources = getProceduresForPatientId(patientid);
-            currentResources.addAll(procedureResources);
-            extracts.remove("procedure");
+        FetchHandoff(ExtractFetcher fetcher, int capacity) {
+            this.fetcher = fetcher;
+            this.queue = new ArrayBlockingQueue<>(capacity);
         }
 
-        if (extracts.contains("documentreference")) {
-            getDocumentsForPatientId(patientid, identifier);
-            extracts.remove("documentreference");
+        void runOnPool() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            Object last = END;
+            try {
+                fetcher.fetch(resource -> {
+                    try {
+                        queue.put(resource);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Fetch cancelled");
+                    }
+                });
+            } catch (Throwable e) {
+                last = e;
+            }
+            try {
+                queue.put(last);
+            } catch (InterruptedException e) {
+                // Cancelled, nobody is reading any more
+                Thread.currentThread().interrupt();
+            }
         }
 
-        if (extracts.contains("operationccd")) {
-            byte[] ccd = getCCDUsingOperationForPatientId(patientid, identifier);
-            if (ccd != null) {
-               //** try {
-                    ByteArrayInputStream bis = new ByteArrayInputStream(ccd);
-                    //**S3Access.getInstance(fhirConfig).upload(bis, fhirConfig, identifier,
-                           //** fhirConfig.getCcdOutputFilePath(), null, "application/xml");
-                //**} catch (IOException e1) {
-                    //**FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fhirConfig, AuditType.VALIDATION_FAILED,"Patient/" + patient.getIdElement().getIdPart(),FhirProcessor.PROCESSUUID, fhirConfig.getCohortListFile(), "Exception occurred during operationccd and hence skipping, for " + identifier + " due to " + FhirUtilBase.getExceptionAsString(e1)));
-                //**}
+        void writeTo(ResourceSink sink) throws IOException, InterruptedException {
+            if (claimed.compareAndSet(false, true)) {
+                fetcher.fetch(sink);
+                return;
+            }
+            for (Object next = queue.take(); next != END; next = queue.take()) {
+                if (next instanceof Throwable) {
+                    // Rethrow as is so that token and connection failures still reach the processor
+                    rethrow((Throwable) next);
+                }
+                sink.accept((IBaseResource) next);
             }
-            extracts.remove("operationccd");
         }
-        // Process all the resources to Json
-        for (IBaseResource currentResource : currentResources) {
-            String jsonStr = FhirUtilBase.getJsonForResource(fhirContext, currentResource);
-            resourcesJsonAll.add(jsonStr);
-            // System.out.println(jsonStr);
+
+        private static void rethrow(Throwable e) throws IOException {
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            throw new RuntimeException(e);
         }
-        resourcesAll.addAll(currentResources);
-        return resourcesJsonAll;
     }
 
     @Override
@@ -213,11 +361,12 @@ public class FhirBridgeR4 implements FhirBridge {
     private List<String> createPatientCohortUsingIdentifier(List<String> cohortSelectionList,
                                                             List<IBaseResource> patients) {
         List<String> patientIds = new ArrayList<>();
+        Map<String, List<IBaseResource>> resolvedPatients = resolvePatientsByIdentifier(cohortSelectionList);
 
         for (String patientInfo : cohortSelectionList) {
             String system = patientInfo.split(",")[0].trim();
             String identifier = patientInfo.split(",")[1].trim();
-            List<IBaseResource> patientResources = getPatientUsingIdentifierSystem(system, identifier);
+            List<IBaseResource> patientResources = resolvedPatients.get(system + "|" + identifier);
             if (patientResources.size() != 1) {
                 FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fhirConfig, AuditType.VALIDATION_FAILED,
                         "Patient:" + patientInfo, FhirProcessor.PROCESSUUID, fhirConfig.getCohortListFile(),
@@ -244,10 +393,181 @@ public class FhirBridgeR4 implements FhirBridge {
         return patientIds;
     }
 
+    /*
+     * Looks the cohort up identifierBatchSize identifiers at a time and returns the matching patients keyed by
+     * system|identifier. Servers that advertise the batch interaction get one batch Bundle of identifier searches
+     * per chunk. Others get one identifier search with comma separated (OR) values, and each returned patient is
+     * assigned to the requested identifiers it carries. A chunk the server rejects is looked up one identifier at a
+     * time.
+     */
+    private Map<String, List<IBaseResource>> resolvePatientsByIdentifier(List<String> cohortSelectionList) {
+        List<String[]> systemIdentifiers = new ArrayList<>();
+        for (String patientInfo : cohortSelectionList) {
+            systemIdentifiers.add(new String[]{patientInfo.split(",")[0].trim(), patientInfo.split(",")[1].trim()});
+        }
+        PatientIdCache idCache = PatientIdCache.getInstance(fhirConfig);
+        List<String[]> unresolved = new ArrayList<>();
+        Map<String, List<IBaseResource>> resolvedPatients = resolveCachedPatients(systemIdentifiers, idCache,
+                unresolved);
+        int batchSize = Math.max(1, fhirConfig.getIdentifierBatchSize());
+        for (int start = 0; start < unresolved.size(); start += batchSize) {
+            List<String[]> chunk = unresolved.subList(start, Math.min(start + batchSize, unresolved.size()));
+            if (chunk.size() > 1) {
+                try {
+                    resolvedPatients.putAll(batchSupported ? resolvePatientsByBatch(chunk)
+                            : resolvePatientsBySearch(chunk));
+                    continue;
+                } catch (InvalidRequestException e) {
+                    log.info("Batched identifier lookup rejected, resolving {} identifiers one by one",
+                            chunk.size());
+                }
+            }
+            for (String[] systemIdentifier : chunk) {
+                resolvedPatients.put(systemIdentifier[0] + "|" + systemIdentifier[1],
+                        getPatientUsingIdentifierSystem(systemIdentifier[0], systemIdentifier[1]));
+            }
+        }
+        log.info("Resolved {} cohort identifiers, {} from the patient id cache", systemIdentifiers.size(),
+                systemIdentifiers.size() - unresolved.size());
+        idCache.update(resolvedPatients);
+        idCache.save();
+        return resolvedPatients;
+    }
+
+    /*
+     * Identifiers resolved by an earlier run are fetched by logical id, identifierBatchSize ids per Patient?_id
+     * search. A cached id is only used if the patient still carries the identifier and has not been replaced by
+     * (merged into) another record; everything else is added to unresolved for the identifier search.
+     */
+    private Map<String, List<IBaseResource>> resolveCachedPatients(List<String[]> systemIdentifiers,
+                                                                   PatientIdCache idCache,
+                                                                   List<String[]> unresolved) {
+        List<String[]> cached = new ArrayList<>();
+        for (String[] systemIdentifier : systemIdentifiers) {
+            if (idCache.getPatientId(systemIdentifier[0], systemIdentifier[1]) != null) {
+                cached.add(systemIdentifier);
+            } else {
+                unresolved.add(systemIdentifier);
+            }
+        }
+        Map<String, List<IBaseResource>> resolvedPatients = new HashMap<>();
+        int batchSize = Math.max(1, fhirConfig.getIdentifierBatchSize());
+        for (int start = 0; start < cached.size(); start += batchSize) {
+            List<String[]> chunk = cached.subList(start, Math.min(start + batchSize, cached.size()));
+            Map<String, Patient> patientsById = new HashMap<>();
+            try {
+                StringBuilder searchURL = new StringBuilder("Patient?_id=");
+                for (int i = 0; i < chunk.size(); i++) {
+                    searchURL.append((i > 0) ? "," : "")
+                            .append(idCache.getPatientId(chunk.get(i)[0], chunk.get(i)[1]));
+                }
+                List<IBaseResource> patientResources = searchByURL(searchURL.toString());
+                FhirUtilBase.ensureResourceType(patientResources, Patient.class);
+                for (IBaseResource res : patientResources) {
+                    patientsById.put(res.getIdElement().getIdPart(), (Patient) res);
+                }
+            } catch (InvalidRequestException | ResourceNotFoundException e) {
+                log.info("Cached patient ids rejected, resolving {} identifiers by search", chunk.size());
+            }
+            for (String[] systemIdentifier : chunk) {
+                Patient patient = patientsById.get(idCache.getPatientId(systemIdentifier[0], systemIdentifier[1]));
+                if (patient != null && isCurrentRecordFor(patient, systemIdentifier[0], systemIdentifier[1])) {
+                    resolvedPatients.put(systemIdentifier[0] + "|" + systemIdentifier[1],
+                            new ArrayList<>(Collections.singletonList(patient)));
+                } else {
+                    unresolved.add(systemIdentifier);
+                }
+            }
+        }
+        return resolvedPatients;
+    }
+
+    private boolean isCurrentRecordFor(Patient patient, String system, String identifier) {
+        for (Patient.PatientLinkComponent link : patient.getLink()) {
+            if (link.getType() == Patient.LinkType.REPLACEDBY) {
+                return false;
+            }
+        }
+        for (Identifier id : patient.getIdentifier()) {
+            if (system.equals(id.getSystem()) && identifier.equals(id.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, List<IBaseResource>> resolvePatientsByBatch(List<String[]> chunk) {
+        Bundle batch = new Bundle();
+        batch.setType(Bundle.BundleType.BATCH);
+        for (String[] systemIdentifier : chunk) {
+            batch.addEntry().getRequest()
+                    .setMethod(Bundle.HTTPVerb.GET)
+                    .setUrl("Patient?identifier="
+                            + FhirUtilBase.toTokenSearchValue(systemIdentifier[0], systemIdentifier[1]));
+        }
+        Bundle response = fhirClient.transaction().withBundle(batch).execute();
+        Map<String, List<IBaseResource>> resolvedPatients = new HashMap<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            // Batch responses come back in request order
+            Resource result = (i < response.getEntry().size()) ? response.getEntry().get(i).getResource() : null;
+            List<IBaseResource> patientResources = new ArrayList<>();
+            if (result instanceof Bundle) {
+                patientResources.addAll(BundleUtil.toListOfResources(fhirContext, (Bundle) result));
+            } else if (result != null) {
+                patientResources.add(result);
+            }
+            FhirUtilBase.ensureResourceType(patientResources, Patient.class);
+            resolvedPatients.put(chunk.get(i)[0] + "|" + chunk.get(i)[1], patientResources);
+        }
+        return resolvedPatients;
+    }
+
+    private Map<String, List<IBaseResource>> resolvePatientsBySearch(List<String[]> chunk) {
+        Map<String, List<IBaseResource>> resolvedPatients = new HashMap<>();
+        StringBuilder searchURL = new StringBuilder("Patient?identifier=");
+        for (String[] systemIdentifier : chunk) {
+            if (resolvedPatients.size() > 0) {
+                searchURL.append(',');
+            }
+            searchURL.append(FhirUtilBase.toTokenSearchValue(systemIdentifier[0], systemIdentifier[1]));
+            resolvedPatients.put(systemIdentifier[0] + "|" + systemIdentifier[1], new ArrayList<>());
+        }
+        List<IBaseResource> patientResources = searchByURL(searchURL.toString());
+        FhirUtilBase.ensureResourceType(patientResources, Patient.class);
+        for (IBaseResource res : patientResources) {
+            for (Identifier id : ((Patient) res).getIdentifier()) {
+                List<IBaseResource> matches = resolvedPatients.get(id.getSystem() + "|" + id.getValue());
+                if (matches != null && !matches.contains(res)) {
+                    matches.add(res);
+                }
+            }
+        }
+        return resolvedPatients;
+    }
+
     @Override
     public void processConformance() {
+        ConformanceCacheEntry cached = ConformanceCache.load(fhirConfig);
+        if (cached != null) {
+            applyConformance(cached);
+            return;
+        }
         CapabilityStatement cnf = fhirClient.capabilities().ofType(CapabilityStatement.class).execute();
         log.info("Retrieved capability for fhir base URL -{} ", fhirClient.getServerBase());
+        ConformanceCacheEntry entry = new ConformanceCacheEntry();
+        for (CapabilityStatement.CapabilityStatementRestResourceComponent resource : cnf.getRest().get(0).getResource()) {
+            Set<String> searchParams = new HashSet<>();
+            for (CapabilityStatement.CapabilityStatementRestResourceSearchParamComponent searchParam :
+                    resource.getSearchParam()) {
+                searchParams.add(searchParam.getName());
+            }
+            entry.getSearchParams().put(resource.getType(), searchParams);
+        }
+        for (CapabilityStatement.SystemInteractionComponent interaction : cnf.getRest().get(0).getInteraction()) {
+            if (interaction.getCode() == CapabilityStatement.SystemRestfulInteraction.BATCH) {
+                entry.setBatchSupported(true);
+            }
+        }
         List<Extension> extensions =
                 cnf.getRest().get(0).getSecurity().getExtensionsByUrl(fhirConfig.getFhirAuthNameSpace()).get(0).getExtension();
         if (extensions.size() > 0) {
@@ -256,15 +576,33 @@ public class FhirBridgeR4 implements FhirBridge {
                 if (e.getUrl().contentEquals(fhirConfig.getFhirAuthUrlKey())) {
                     log.info("Found authorization URL details in conformance");
                     String authURL = e.getValueAsPrimitive().getValueAsString();
-                    fhirConfig.setAuthURL(authURL);
+                    entry.setAuthURL(authURL);
                 }
                 if (e.getUrl().contentEquals(fhirConfig.getFhirTokenUrlKey())) {
                     log.info("Found token URL details in conformance");
                     String tokenURL = e.getValueAsPrimitive().getValueAsString();
-                    fhirConfig.setTokenURL(tokenURL);
+                    entry.setTokenURL(tokenURL);
                 }
             }
         }
+        ConformanceCache.store(fhirConfig, entry);
+        applyConformance(entry);
+    }
+
+    private void applyConformance(ConformanceCacheEntry entry) {
+        supportedSearchParams.clear();
+        supportedSearchParams.putAll(entry.getSearchParams());
+        batchSupported = entry.isBatchSupported();
+        if (entry.getAuthURL() != null) {
+            fhirConfig.setAuthURL(entry.getAuthURL());
+        }
+        if (entry.getTokenURL() != null) {
+            fhirConfig.setTokenURL(entry.getTokenURL());
+        }
+    }
+
+    public boolean supportsSearchParam(String resourceType, String searchParam) {
+        return supportedSearchParams.getOrDefault(resourceType, Collections.emptySet()).contains(searchParam);
     }
 
     @Override
@@ -284,299 +622,235 @@ public class FhirBridgeR4 implements FhirBridge {
         return patientResources;
     }
 
-    public List<IBaseResource> getObservationsForPatientId(String patientId) {
-        List<IBaseResource> observations = new ArrayList<>();
+    public long getObservationsForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long observations = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(Observation.class)
                     .where(Observation.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("Observation"))
                     .returnBundle(Bundle.class).execute();
-            observations.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                observations.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(observations, Observation.class);
+            observations = writeAllPages(bundle, Observation.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} Observations fetched!", observations.size());
+        log.info("{} Observations fetched!", observations);
         return observations;
     }
 
 
-    public List<IBaseResource> getCarePlansForPatientId(String patientId) {
-        List<IBaseResource> careplans = new ArrayList<>();
+    public long getCarePlansForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long careplans = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(CarePlan.class)
                     .where(CarePlan.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("CarePlan"))
                     .returnBundle(Bundle.class).execute();
-            careplans.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                careplans.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(careplans, CarePlan.class);
+            careplans = writeAllPages(bundle, CarePlan.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} care plans fetched!", careplans.size());
+        log.info("{} care plans fetched!", careplans);
         return careplans;
     }
 
 
 
-    public List<IBaseResource> getDiagnosticReportsForPatientId(String patientId) {
-        List<IBaseResource> diagnosticReports = new ArrayList<>();
+    public long getDiagnosticReportsForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long diagnosticReports = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(DiagnosticReport.class)
                     .where(DiagnosticReport.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("DiagnosticReport"))
                     .returnBundle(Bundle.class).execute();
-            diagnosticReports.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                diagnosticReports.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(diagnosticReports, DiagnosticReport.class);
+            diagnosticReports = writeAllPages(bundle, DiagnosticReport.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
         }
-        log.info("{} Diagnostic Reports fetched!", diagnosticReports.size());
+        log.info("{} Diagnostic Reports fetched!", diagnosticReports);
         return diagnosticReports;
     }
 
-    public List<IBaseResource> getConditionsForPatientId(String patientId) {
-        List<IBaseResource> conditions = new ArrayList<>();
+    public long getConditionsForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long conditions = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(Condition.class)
                     .where(Condition.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("Condition"))
                     .returnBundle(Bundle.class).execute();
-            conditions.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                conditions.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(conditions, Condition.class);
+            conditions = writeAllPages(bundle, Condition.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} Conditions fetched!", conditions.size());
+        log.info("{} Conditions fetched!", conditions);
         return conditions;
     }
 
-    public List<IBaseResource> getProceduresForPatientId(String patientId) {
-        List<IBaseResource> procedures = new ArrayList<>();
+    public long getProceduresForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long procedures = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(Procedure.class)
                     .where(Procedure.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("Procedure"))
                     .returnBundle(Bundle.class).execute();
-            procedures.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                procedures.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(procedures, Procedure.class);
+            procedures = writeAllPages(bundle, Procedure.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} Procedures fetched!", procedures.size());
+        log.info("{} Procedures fetched!", procedures);
         return procedures;
     }
 
 
-    public List<IBaseResource> getAllergyIntoleranceForPatientId(String patientId) {
-        List<IBaseResource> allergies = new ArrayList<>();
+    public long getAllergyIntoleranceForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long allergies = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(AllergyIntolerance.class)
                     .where(AllergyIntolerance.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("AllergyIntolerance"))
                     .returnBundle(Bundle.class).execute();
-            allergies.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                allergies.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(allergies, AllergyIntolerance.class);
+            allergies = writeAllPages(bundle, AllergyIntolerance.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} allergies fetched!", allergies.size());
+        log.info("{} allergies fetched!", allergies);
         return allergies;
     }
 
-    public List<IBaseResource> getImmunizationsForPatientId(String patientId) {
-        List<IBaseResource> immunizations = new ArrayList<>();
+    public long getImmunizationsForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long immunizations = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(Immunization.class)
                     .where(Immunization.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("Immunization"))
                     .returnBundle(Bundle.class).execute();
-            immunizations.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                immunizations.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(immunizations, Immunization.class);
+            immunizations = writeAllPages(bundle, Immunization.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} immunizations fetched!", immunizations.size());
+        log.info("{} immunizations fetched!", immunizations);
         return immunizations;
     }
 
-    public List<IBaseResource> getServiceRequestsForPatientId(String patientId) {
-        List<IBaseResource> serviceRequests = new ArrayList<>();
+    public long getServiceRequestsForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long serviceRequests = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(ServiceRequest.class)
                     .where(ServiceRequest.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("ServiceRequest"))
                     .returnBundle(Bundle.class).execute();
-            serviceRequests.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                serviceRequests.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(serviceRequests, ServiceRequest.class);
+            serviceRequests = writeAllPages(bundle, ServiceRequest.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} service requests fetched!", serviceRequests.size());
+        log.info("{} service requests fetched!", serviceRequests);
         return serviceRequests;
     }
-    public List<IBaseResource> getFamilyMemberHistoryForPatientId(String patientId) {
-        List<IBaseResource> familyMemberHistories = new ArrayList<>();
+    public long getFamilyMemberHistoryForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long familyMemberHistories = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(FamilyMemberHistory.class)
                     .where(FamilyMemberHistory.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("FamilyMemberHistory"))
                     .returnBundle(Bundle.class).execute();
-            familyMemberHistories.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                familyMemberHistories.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(familyMemberHistories, FamilyMemberHistory.class);
+            familyMemberHistories = writeAllPages(bundle, FamilyMemberHistory.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} family member histories fetched!", familyMemberHistories.size());
+        log.info("{} family member histories fetched!", familyMemberHistories);
         return familyMemberHistories;
     }
 
-    public List<IBaseResource> getCareTeamForPatientId(String patientId) {
-        List<IBaseResource> careTeam = new ArrayList<>();
+    public long getCareTeamForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long careTeam = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(CareTeam.class)
                     .where(CareTeam.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("CareTeam"))
                     .returnBundle(Bundle.class).execute();
-            careTeam.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                careTeam.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(careTeam, CareTeam.class);
+            careTeam = writeAllPages(bundle, CareTeam.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} care team records fetched!", careTeam.size());
+        log.info("{} care team records fetched!", careTeam);
         return careTeam;
     }
 
 
-    public List<IBaseResource> getGoalsForPatientId(String patientId) {
+    public long getGoalsForPatientId(String patientId, ResourceSink sink) throws IOException {
         log.info("Inside goals");
-        List<IBaseResource> goals = new ArrayList<>();
+        long goals = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(Goal.class)
                     .where(Goal.PATIENT.hasId("enNQvBlRfDCq4NsM90Kr8QQ3"))
+                    .lastUpdated(lastUpdatedSince("Goal"))
                    // .and(Goal.LIFECYCLE_STATUS.exactly().code("active"))
                     .returnBundle(Bundle.class).execute();
-            goals.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                goals.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(goals, Goal.class);
+            goals = writeAllPages(bundle, Goal.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
             log.info("No goals found");
 
         }
-        log.info("{} goals fetched!", goals.size());
+        log.info("{} goals fetched!", goals);
         return goals;
     }
 
 
 
-    public List<IBaseResource> getEncountersForPatientId(String patientId) {
-        List<IBaseResource> encounters = new ArrayList<>();
+    public long getEncountersForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long encounters = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(Encounter.class)
                     .include(Encounter.INCLUDE_PRACTITIONER.asNonRecursive())
                     .where(Encounter.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("Encounter"))
                     .returnBundle(Bundle.class).execute();
-            encounters.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                encounters.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
+            encounters = writeAllPages(bundle, null, sink);
             //FhirUtilBase.ensureResourceType(encounters, Encounter.class);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} Encounters fetched!", encounters.size());
+        log.info("{} Encounters fetched!", encounters);
         return encounters;
 
     }
 
-    public List<IBaseResource> getMedicationRequestsForPatientId(String patientId) {
-        List<IBaseResource> medications = new ArrayList<>();
+    public long getMedicationRequestsForPatientId(String patientId, ResourceSink sink) throws IOException {
+        long medications = 0;
         try {
             Bundle bundle = fhirClient.search()
                     .forResource(MedicationRequest.class)
                     .where(MedicationRequest.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("MedicationRequest"))
                     .returnBundle(Bundle.class).execute();
-            medications.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = fhirClient.loadPage().next(bundle).execute();
-                medications.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-            }
-            FhirUtilBase.ensureResourceType(medications, MedicationRequest.class);
+            medications = writeAllPages(bundle, MedicationRequest.class, sink);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
 
         }
-        log.info("{} Medications fetched!", medications.size());
+        log.info("{} Medications fetched!", medications);
         return medications;
     }
 
@@ -627,6 +901,10 @@ public class FhirBridgeR4 implements FhirBridge {
             Binary b = (Binary) par.getParameter().get(0).getResource();
             decodedBytes = Base64.getDecoder().decode(b.getContentAsBase64());
         } catch (Exception e) {
+            if (SkippedWork.isEndpointFailure(e)) {
+                SkippedWork.getInstance(fhirConfig).record(patientid, "operationccd", e);
+                return null;
+            }
             FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fhirConfig, AuditType.VALIDATION_FAILED,"Patient/" + patientid,FhirProcessor.PROCESSUUID, fhirConfig.getCohortListFile(), "Exception occurred getting CCD using operationccd and hence skipping, for " + identifier + " due to " + FhirUtilBase.getExceptionAsString(e)));
 
         }
@@ -645,23 +923,16 @@ public class FhirBridgeR4 implements FhirBridge {
         // "system": "urn:oid:2.16.840.1.113883.6.1000",
         // "value": "490176388"
 
-        List<IBaseResource> resources = new ArrayList<>();
-        Bundle bundle;
+        if (fhirResourceClass != null) {
+            searchURL = withLastUpdated(searchURL, fhirResourceClass.getSimpleName());
+        }
+        List<IBaseResource> resources;
         try {
-            bundle = fhirClient.search()
-                    .byUrl(searchURL)
-                    .returnBundle(Bundle.class).execute();
-        } catch (InvalidRequestException e) { //This error at runtime in production usually means bad data (Epic), so
-            // log and continue with getting other resources
-            log.error("Exception occurred getting resource by url- error",  e);
-            FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fhirConfig, AuditType.VALIDATION_FAILED,searchURL , FhirProcessor.PROCESSUUID, fhirConfig.getCohortListFile(), "Exception occurred getting resources by URL - " + FhirUtilBase.getExceptionAsString(e)));
-            return resources;
-        }
-        resources.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
-        // Load the subsequent pages
-        while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            bundle = fhirClient.loadPage().next(bundle).execute();
-            resources.addAll(BundleUtil.toListOfResources(fhirContext, bundle));
+            resources = searchByURL(searchURL);
+        } catch (InvalidRequestException | UnprocessableEntityException e) { //This error at runtime in production
+            // usually means bad data (Epic), so log and continue with getting other resources
+            searchRejected(searchURL, fhirResourceClass, e);
+            return new ArrayList<>();
         }
         if (checkResourceType && (fhirResourceClass != null)) {
             FhirUtilBase.ensureResourceTypeNew(resources, fhirResourceClass, OperationOutcome.class);
@@ -669,6 +940,81 @@ public class FhirBridgeR4 implements FhirBridge {
         return resources;
     }
 
+    /*
+     * Same search as above, but every page goes to the sink as it arrives. Returns how many resources were written.
+     * A rejection on a later page leaves the pages already written in place, the extract is then recorded as skipped.
+     */
+    public long getResourcesByURL(String searchURL, boolean checkResourceType, Class<?> fhirResourceClass,
+                                  ResourceSink sink) throws IOException {
+        if (fhirResourceClass != null) {
+            searchURL = withLastUpdated(searchURL, fhirResourceClass.getSimpleName());
+        }
+        try {
+            Bundle bundle = fhirClient.search()
+                    .byUrl(searchURL)
+                    .returnBundle(Bundle.class).execute();
+            return writeAllPages(bundle, checkResourceType ? fhirResourceClass : null, sink);
+        } catch (InvalidRequestException | UnprocessableEntityException e) {
+            searchRejected(searchURL, fhirResourceClass, e);
+            return 0;
+        }
+    }
+
+    private void searchRejected(String searchURL, Class<?> fhirResourceClass, RuntimeException e) {
+        log.error("Exception occurred getting resource by url- error",  e);
+        if (fhirResourceClass != null) {
+            failedSearches.putIfAbsent(fhirResourceClass.getSimpleName().toLowerCase(Locale.ROOT), e);
+        }
+        FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fhirConfig, AuditType.VALIDATION_FAILED,searchURL , FhirProcessor.PROCESSUUID, fhirConfig.getCohortListFile(), "Exception occurred getting resources by URL - " + FhirUtilBase.getExceptionAsString(e)));
+    }
+
+    /*
+     * Loads every page of the search without any filtering or auditing. A search the server rejects surfaces as an
+     * InvalidRequestException so that callers can decide how to recover.
+     */
+    public List<IBaseResource> searchByURL(String searchURL) {
+        Bundle bundle = fhirClient.search()
+                .byUrl(searchURL)
+                .returnBundle(Bundle.class).execute();
+        List<IBaseResource> resources = loadAllPages(bundle);
+        return resources;
+    }
+
+    /*
+     * Collects the resources of the given search result page and every page after it
+     */
+    protected List<IBaseResource> loadAllPages(IBaseBundle firstPage) {
+        return BundlePager.loadAllPages(fhirContext, fhirClient, firstPage, fhirConfig.getPagePrefetchDepth());
+    }
+
+    /*
+     * Hands the resources of the given search result page and every page after it to the sink as the pager reaches
+     * them, so only the pages in flight are held. Resources other than fhirResourceClass (OperationOutcomes and the
+     * like) are dropped unless the class is null. Returns how many resources were written.
+     */
+    protected long writeAllPages(IBaseBundle firstPage, Class<?> fhirResourceClass, ResourceSink sink)
+            throws IOException {
+        long written = 0;
+        try (BundlePager pager = new BundlePager(fhirContext, fhirClient, firstPage,
+                fhirConfig.getPagePrefetchDepth())) {
+            while (pager.hasNext()) {
+                IBaseResource resource = pager.next();
+                if (fhirResourceClass != null && !fhirResourceClass.isInstance(resource)) {
+                    log.info("found unexpected object type. Expected {} and removed {}", fhirResourceClass.getName(),
+                            resource.getClass().getName());
+                    if (resource instanceof OperationOutcome && ((OperationOutcome) resource).hasIssue()) {
+                        log.info("Operation Outcome occurred - {}",
+                                ((OperationOutcome) resource).getIssueFirstRep().getDetails().getText());
+                    }
+                    continue;
+                }
+                sink.accept(resource);
+                written++;
+            }
+        }
+        return written;
+    }
+
     public FhirContext getFhirContext() {
         return fhirContext;
     }
@@ -687,11 +1033,20 @@ public class FhirBridgeR4 implements FhirBridge {
                     .resource(Binary.class)
                     .withUrl(documentReferenceURL).execute();
             byte[] decodedBytes = Base64.getDecoder().decode(b.getContentAsBase64());
-            ByteArrayInputStream bis = new ByteArrayInputStream(decodedBytes);
-            FhirUtilBase.writeBytesToFile(getFhirConfig().getCcdOutputFilePath(), patientId, decodedBytes);
-            S3Access.getInstance(fhirConfig).upload(bis.readAllBytes(), fhirConfig, patientId + "-" + documentID,
+            // The local copy is already compressed with the configured codec, so it is uploaded as is
+            File ccdFile = FhirUtilBase.writeBytesToFile(getFhirConfig().getCcdOutputFilePath(), patientId,
+                    decodedBytes, fhirConfig.getCompressionCodec(), fhirConfig.getCompressionLevel());
+            if (ccdFile == null) {
+                throw new IOException("Unable to write CCD document " + documentID + " to "
+                        + getFhirConfig().getCcdOutputFilePath());
+            }
+            S3Access.getInstance(fhirConfig).upload(ccdFile, fhirConfig, patientId + "-" + documentID,
                     fhirConfig.getCcdOutputFilePath(), null, fhirConfig.getDocumentContentType());
         } catch (Exception e) {
+            if (SkippedWork.isEndpointFailure(e)) {
+                SkippedWork.getInstance(fhirConfig).record(patientId, "documentreference", e);
+                return;
+            }
             FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fhirConfig, AuditType.VALIDATION_FAILED,"Binary/" + documentID,FhirProcessor.PROCESSUUID, fhirConfig.getCohortListFile(), "Exception occurred getting CCD document and hence skipping, for patient " + patientId + " due to " + FhirUtilBase.getExceptionAsString(e)));
         }
     }
@@ -3,14 +3,21 @@ package com.oncolens.fhirengine;
 import com.oncolens.fhirengine.model.AuditType;
 import com.oncolens.fhirengine.util.ClientCredentialsEpic;
 import com.oncolens.fhirengine.util.FhirUtilBase;
+import com.oncolens.fhirengine.util.TokenResponse;
 import lombok.extern.slf4j.Slf4j;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.util.BundleUtil;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
  * This class is meant for handling any epic specific R4 functionality
@@ -19,11 +26,16 @@ import java.util.List;
 
 @Slf4j
 public class FhirBridgeR4Epic extends FhirBridgeR4 {
+    // Whether a site accepts comma separated categories, keyed by fhir base URL and resource type
+    private static final Map<String, Boolean> COMBINED_CATEGORY_SEARCH = new ConcurrentHashMap<>();
+    // One probe at a time per site and resource type, the worker bridges wait for its answer
+    private static final Map<String, Object> PROBE_LOCKS = new ConcurrentHashMap<>();
+
     @Override
-    public String getAuthorizationToken() {
-        String token;
+    public TokenResponse requestAccessToken() {
+        TokenResponse token;
         try {
-            token = ClientCredentialsEpic.getToken(getFhirConfig());
+            token = ClientCredentialsEpic.getTokenResponse(getFhirConfig());
         } catch (Exception e) {
             FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(getFhirConfig(), AuditType.EXCEPTION_OCCURRED,"getAccessToken",FhirProcessor.PROCESSUUID, getFhirConfig().getCohortListFile(), "Unable to get auth token :" + getFhirConfig().getFhirBaseURL() + " token url :" + getFhirConfig().getTokenURL() + " Exception - " + FhirUtilBase.getExceptionAsString(e)));
             log.error("Exception occurred when trying to get auth token, e");
@@ -33,229 +45,188 @@ public class FhirBridgeR4Epic extends FhirBridgeR4 {
         return token;
     }
     @Override
-    public List<IBaseResource> getObservationsForPatientId(String patientId) {
-        String searchURL = "Observation?patient=" + patientId + "&category=laboratory";
-        List<IBaseResource> observations = getResourcesByURL(searchURL, true, Observation.class);
-        log.info("{} observations (labs) fetched!", observations.size());
-        searchURL = "Observation?patient=" + patientId + "&category=social-history"; //"&code=72166-2"; social-history covers smoking as well as obstetrics
-        List<IBaseResource> observationsSmokingObstetrics = getResourcesByURL(searchURL, true, Observation.class);
-        log.info("{} observations (Smoking & ObGyn) fetched!", observationsSmokingObstetrics.size());
-        if (observationsSmokingObstetrics.size() > 0) {
-            observations.addAll(observationsSmokingObstetrics);
-        }
-        searchURL = "Observation?patient=" + patientId + "&category=vital-signs";  //"&code=8310-5";
-        List<IBaseResource> observationsVitals = getResourcesByURL(searchURL, true, Observation.class);
-        log.info("{} observations (vitals) fetched!", observationsVitals.size());
-        if (observationsVitals.size() > 0) {
-            observations.addAll(observationsVitals);
-        }
-        searchURL = "Observation?patient=" + patientId + "&category=LDA";
-        List<IBaseResource> observationsLDA = getResourcesByURL(searchURL, true, Observation.class);
-        log.info("{} observations (LDA) fetched!", observationsLDA.size());
-        if (observationsLDA.size() > 0) {
-            observations.addAll(observationsLDA);
-        }
-        searchURL = "Observation?patient=" + patientId + "&category=smartdata";
-        List<IBaseResource> observationsSmartData = getResourcesByURL(searchURL, true, Observation.class);
-        log.info("{} observations (smartdata) fetched!", observationsSmartData.size());
-        if (observationsSmartData.size() > 0) {
-            observations.addAll(observationsSmartData);
-        }
-        searchURL = "Observation?patient=" + patientId + "&category=core-characteristics";
-        List<IBaseResource> observationsCoreCharacteristics = getResourcesByURL(searchURL, true, Observation.class);
-        log.info("{} observations (observationsCoreCharacteristics) fetched!", observationsCoreCharacteristics.size());
-        if (observationsCoreCharacteristics.size() > 0) {
-            observations.addAll(observationsCoreCharacteristics);
-        }
-        searchURL = "Observation?patient=" + patientId + "&category=functional-mental-status";
-        List<IBaseResource> observationsActivitiesDailyLiving = getResourcesByURL(searchURL, true, Observation.class);
-        log.info("{} observations (observationsActivitiesDailyLiving) fetched!", observationsActivitiesDailyLiving.size());
-        if (observationsActivitiesDailyLiving.size() > 0) {
-            observations.addAll(observationsActivitiesDailyLiving);
-        }
-        return observations;
+    public long getObservationsForPatientId(String patientId, ResourceSink sink) throws IOException {
+        // social-history covers smoking as well as obstetrics
+        return getResourcesByCategories("Observation", patientId, Arrays.asList("laboratory", "social-history",
+                "vital-signs", "LDA", "smartdata", "core-characteristics", "functional-mental-status"),
+                Observation.class, sink);
     }
 
 
     //This resource requires a category for searching. Use 38717003 for longitudinal, 734163000 for encounter, 736271009 for outpatient, 736353004 for inpatient,
     // 738906000 for dental, 736378000 for oncology, 719091000000102 for questionnaires due, 959871000000107 for anticoagulation, or inpatient-pathway for inpatient pathway.
 
-    public List<IBaseResource> getCarePlansForPatientId(String patientId) {
-        List<IBaseResource> careplans = new ArrayList<>();
-        try {
-            Bundle bundle = getFhirClient().search()
-                    .forResource(CarePlan.class)
-                    .where(CarePlan.PATIENT.hasId(patientId))
-                    .and(CarePlan.CATEGORY.exactly().code("38717003")) //longitudinal
-                    .returnBundle(Bundle.class).execute();
-            careplans.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = getFhirClient().loadPage().next(bundle).execute();
-                careplans.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
-            }
-            FhirUtilBase.ensureResourceType(careplans, CarePlan.class);
-        } catch (ResourceNotFoundException e) {
-            // ca.uhn.fhir.rest.server.exceptions.
+    public long getCarePlansForPatientId(String patientId, ResourceSink sink) throws IOException {
+        // longitudinal, encounter, out patient, in patient, oncology
+        return getResourcesByCategories("CarePlan", patientId, Arrays.asList("38717003", "734163000", "736271009",
+                "736353004", "736378000"), CarePlan.class, sink);
+    }
 
-        }
-        log.info("{} care plans (longitudinal) fetched!", careplans.size());
-        try {
-            Bundle bundle = getFhirClient().search()
-                    .forResource(CarePlan.class)
-                    .where(CarePlan.PATIENT.hasId(patientId))
-                    .and(CarePlan.CATEGORY.exactly().code("734163000")) //encounter
-                    .returnBundle(Bundle.class).execute();
-            careplans.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = getFhirClient().loadPage().next(bundle).execute();
-                careplans.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
-            }
-            FhirUtilBase.ensureResourceType(careplans, CarePlan.class);
-        } catch (ResourceNotFoundException e) {
-            // ca.uhn.fhir.rest.server.exceptions.
 
-        }
-        log.info("{} care plans (after adding encounter) !", careplans.size());
+    @Override
+    public long getConditionsForPatientId(String patientId, ResourceSink sink) throws IOException {
+        return getResourcesByCategories("Condition", patientId, Arrays.asList("health-concern", "problem-list-item",
+                "encounter-diagnosis", "genomics"), Condition.class, sink);
+    }
 
-        try {
-            Bundle bundle = getFhirClient().search()
-                    .forResource(CarePlan.class)
-                    .where(CarePlan.PATIENT.hasId(patientId))
-                    .and(CarePlan.CATEGORY.exactly().code("736271009")) //out patient
-                    .returnBundle(Bundle.class).execute();
-            careplans.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = getFhirClient().loadPage().next(bundle).execute();
-                careplans.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
+    /*
+     * Epic requires a category on these searches. When the CapabilityStatement lists category as a search parameter
+     * and the site accepts comma separated (OR) categories, all the categories go out as one search, and the results
+     * are grouped by category so the output matches the per-category searches. Whether the site accepts that form is
+     * decided once per resource type, see isCombinedCategorySearchSupported. After that a rejected search is a
+     * failure of the patient's extract, whichever form it took.
+     */
+    protected long getResourcesByCategories(String resourceType, String patientId, List<String> categories,
+                                            Class<?> fhirResourceClass, ResourceSink sink) throws IOException {
+        if (categories.size() > 1 && supportsSearchParam(resourceType, "category")
+                && isCombinedCategorySearchSupported(resourceType, patientId, categories, fhirResourceClass)) {
+            String searchURL = resourceType + "?patient=" + patientId + "&category=" + String.join(",", categories);
+            try {
+                long resources = writeByCategory(searchURL, categories, fhirResourceClass, sink);
+                log.info("{} {} resources ({}) fetched!", resources, resourceType, categories);
+                return resources;
+            } catch (ResourceNotFoundException e) {
+                return 0;
             }
-            FhirUtilBase.ensureResourceType(careplans, CarePlan.class);
-        } catch (ResourceNotFoundException e) {
-            // ca.uhn.fhir.rest.server.exceptions.
-
         }
-        log.info("{} care plans (after adding outpatient) !", careplans.size());
+        long resources = 0;
+        for (String category : categories) {
+            String searchURL = resourceType + "?patient=" + patientId + "&category=" + category;
+            try {
+                long categoryResources = getResourcesByURL(searchURL, true, fhirResourceClass, sink);
+                log.info("{} {} resources ({}) fetched!", categoryResources, resourceType, category);
+                resources += categoryResources;
+            } catch (ResourceNotFoundException e) {
+                // ca.uhn.fhir.rest.server.exceptions.
+            }
+        }
+        return resources;
+    }
 
-        try {
-            Bundle bundle = getFhirClient().search()
-                    .forResource(CarePlan.class)
-                    .where(CarePlan.PATIENT.hasId(patientId))
-                    .and(CarePlan.CATEGORY.exactly().code("736353004")) //in patient
-                    .returnBundle(Bundle.class).execute();
-            careplans.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = getFhirClient().loadPage().next(bundle).execute();
-                careplans.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
+    /*
+     * Probes the site with the first patient's combined search and remembers the answer for the rest of the run.
+     * Until a probe is conclusive every category is searched on its own.
+     */
+    private boolean isCombinedCategorySearchSupported(String resourceType, String patientId, List<String> categories,
+                                                      Class<?> fhirResourceClass) {
+        String siteKey = getFhirConfig().getFhirBaseURL() + "|" + resourceType;
+        Boolean supported = COMBINED_CATEGORY_SEARCH.get(siteKey);
+        if (supported != null) {
+            return supported;
+        }
+        synchronized (PROBE_LOCKS.computeIfAbsent(siteKey, key -> new Object())) {
+            supported = COMBINED_CATEGORY_SEARCH.get(siteKey);
+            if (supported == null) {
+                supported = probeCombinedCategorySearch(resourceType, patientId, categories, fhirResourceClass);
+                if (supported != null) {
+                    log.info("Combined category search is {}supported for {} at {}", supported ? "" : "not ",
+                            resourceType, getFhirConfig().getFhirBaseURL());
+                    COMBINED_CATEGORY_SEARCH.put(siteKey, supported);
+                }
             }
-            FhirUtilBase.ensureResourceType(careplans, CarePlan.class);
-        } catch (ResourceNotFoundException e) {
-            // ca.uhn.fhir.rest.server.exceptions.
+        }
+        return Boolean.TRUE.equals(supported);
+    }
 
+    /*
+     * The probe asks for the first page only and carries nothing but the patient and the categories, so neither
+     * _lastUpdated nor anything else the site might reject decides it. A rejected combined search only counts if a
+     * search for the first category alone goes through; if both are rejected it is down to the patient's data and
+     * the answer is null, undecided.
+     */
+    private Boolean probeCombinedCategorySearch(String resourceType, String patientId, List<String> categories,
+                                                Class<?> fhirResourceClass) {
+        String searchURL = resourceType + "?patient=" + patientId + "&category=";
+        if (acceptsSearch(searchURL + String.join(",", categories), fhirResourceClass)) {
+            return Boolean.TRUE;
         }
-        log.info("{} care plans (after adding inpatient) !", careplans.size());
+        return acceptsSearch(searchURL + categories.get(0), fhirResourceClass) ? Boolean.FALSE : null;
+    }
 
+    private boolean acceptsSearch(String searchURL, Class<?> fhirResourceClass) {
         try {
-            Bundle bundle = getFhirClient().search()
-                    .forResource(CarePlan.class)
-                    .where(CarePlan.PATIENT.hasId(patientId))
-                    .and(CarePlan.CATEGORY.exactly().code("736378000")) //oncology
-                    .returnBundle(Bundle.class).execute();
-            careplans.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = getFhirClient().loadPage().next(bundle).execute();
-                careplans.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
-            }
-            FhirUtilBase.ensureResourceType(careplans, CarePlan.class);
+            Bundle firstPage = getFhirClient().search().byUrl(searchURL).returnBundle(Bundle.class).execute();
+            return !isRejected(BundleUtil.toListOfResources(getFhirContext(), firstPage), fhirResourceClass);
+        } catch (InvalidRequestException | UnprocessableEntityException e) {
+            log.debug("Search {} rejected", searchURL, e);
+            return false;
         } catch (ResourceNotFoundException e) {
-            // ca.uhn.fhir.rest.server.exceptions.
-
+            return true;
         }
-        log.info("{} care plans (after adding oncology) !", careplans.size());
-
-
-        return careplans;
     }
 
-
-    @Override
-    public List<IBaseResource> getConditionsForPatientId(String patientId) {
-        String searchURL = "Condition?patient=" + patientId + "&category=health-concern";
-        List<IBaseResource> conditions = getResourcesByURL(searchURL, true, Condition.class);
-        log.info("{} conditions (health-concern) fetched!", conditions.size());
-        searchURL = "Condition?patient=" + patientId + "&category=problem-list-item";
-        List<IBaseResource> conditionsProblems = getResourcesByURL(searchURL, true, Condition.class);
-        log.info("{} conditions (Problems) fetched!", conditionsProblems.size());
-        if (conditionsProblems.size() > 0) {
-            conditions.addAll(conditionsProblems);
+    /*
+     * Writes the resources of a combined search in the order the per-category searches return them: by the first of
+     * the requested categories each one carries, in server order within a category. Resources of the first category
+     * go to the sink as their pages arrive, only the later categories are held until the search is done.
+     */
+    private long writeByCategory(String searchURL, List<String> categories, Class<?> fhirResourceClass,
+                                 ResourceSink sink) throws IOException {
+        List<List<IBaseResource>> heldBack = new ArrayList<>();
+        for (int i = 0; i < categories.size(); i++) {
+            heldBack.add(new ArrayList<>());
         }
-        searchURL = "Condition?patient=" + patientId + "&category=encounter-diagnosis";
-        List<IBaseResource> conditionsEncounterDiagnosis = getResourcesByURL(searchURL, true, Condition.class);
-        log.info("{} conditions (encounter diagnosis) fetched!", conditionsEncounterDiagnosis.size());
-        if (conditionsEncounterDiagnosis.size() > 0) {
-            conditions.addAll(conditionsEncounterDiagnosis);
+        long resources = getResourcesByURL(searchURL, true, fhirResourceClass, resource -> {
+            int index = categoryIndex(resource, categories);
+            if (index == 0) {
+                sink.accept(resource);
+            } else {
+                heldBack.get(index - 1).add(resource);
+            }
+        });
+        for (List<IBaseResource> group : heldBack) {
+            for (IBaseResource resource : group) {
+                sink.accept(resource);
+            }
+            group.clear();
         }
-        searchURL = "Condition?patient=" + patientId + "&category=genomics";
-        List<IBaseResource> conditionsGenomics = getResourcesByURL(searchURL, true, Condition.class);
-        log.info(conditionsGenomics.size() + " conditions (genomics) fetched!");
-        if (conditionsGenomics.size() > 0) {
-            conditions.addAll(conditionsGenomics);
+        return resources;
+    }
+
+    private static int categoryIndex(IBaseResource resource, List<String> categories) {
+        List<CodeableConcept> concepts;
+        if (resource instanceof Observation) {
+            concepts = ((Observation) resource).getCategory();
+        } else if (resource instanceof Condition) {
+            concepts = ((Condition) resource).getCategory();
+        } else if (resource instanceof CarePlan) {
+            concepts = ((CarePlan) resource).getCategory();
+        } else {
+            concepts = Collections.emptyList();
         }
-        searchURL = "Condition?patient=" + patientId + "&category=problem-list-item";
-        List<IBaseResource> conditionsProblemList = getResourcesByURL(searchURL, true, Condition.class);
-        log.info(conditionsProblemList.size() + " conditions (problem-list) fetched!");
-        if (conditionsProblemList.size() > 0) {
-            conditions.addAll(conditionsProblemList);
+        // Resources without one of the categories go last
+        int index = categories.size();
+        for (CodeableConcept concept : concepts) {
+            for (Coding coding : concept.getCoding()) {
+                int categoryIndex = categories.indexOf(coding.getCode());
+                if (categoryIndex >= 0 && categoryIndex < index) {
+                    index = categoryIndex;
+                }
+            }
         }
-        return conditions;
+        return index;
     }
 
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
+    /*
+     * Some sites answer an unsupported search with a 200 and an error OperationOutcome instead of a 400
+     */
+    private static boolean isRejected(List<IBaseResource> resources, Class<?> fhirResourceClass) {
+        boolean rejected = false;
+        for (IBaseResource res : resources) {
+            if (fhirResourceClass.isInstance(res)) {
+                return false;
+            }
+            if (res instanceof OperationOutcome) {
+                for (OperationOutcome.OperationOutcomeIssueComponent issue : ((OperationOutcome) res).getIssue()) {
+                    if (issue.getSeverity() == OperationOutcome.IssueSeverity.ERROR
+                            || issue.getSeverity() == OperationOutcome.IssueSeverity.FATAL) {
+                        rejected = true;
+                    }
+                }
+            }
+        }
+        return rejected;
+    }
 
     //@Override
     public List<IBaseResource> getAllergyIntolerancesForPatientId(String patientId) {
@@ -264,14 +235,10 @@ public class FhirBridgeR4Epic extends FhirBridgeR4 {
             Bundle bundle = getFhirClient().search()
                     .forResource(AllergyIntolerance.class)
                     .where(AllergyIntolerance.PATIENT.hasId(patientId))
+                    .lastUpdated(lastUpdatedSince("AllergyIntolerance"))
                     .and(AllergyIntolerance.CLINICAL_STATUS.exactly().code("active"))
                     .returnBundle(Bundle.class).execute();
-            allergies.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
-            // Load the subsequent pages
-            while (bundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-                bundle = getFhirClient().loadPage().next(bundle).execute();
-                allergies.addAll(BundleUtil.toListOfResources(getFhirContext(), bundle));
-            }
+            allergies.addAll(loadAllPages(bundle));
             FhirUtilBase.ensureResourceType(allergies, AllergyIntolerance.class);
         } catch (ResourceNotFoundException e) {
             // ca.uhn.fhir.rest.server.exceptions.
@@ -293,11 +260,11 @@ public class FhirBridgeR4Epic extends FhirBridgeR4 {
 	}*/
 
 	@Override
-	public List<IBaseResource> getGoalsForPatientId(String patientId) {
-	    System.out.println("Patient is " + patientId);
+	public long getGoalsForPatientId(String patientId, ResourceSink sink) throws IOException {
+		log.debug("Fetching goals for patient {}", patientId);
 		String searchURL = "Goal?patient=" + patientId ;
-		List<IBaseResource> goals = getResourcesByURL(searchURL, true, Goal.class);
-		log.info("{} Goals overridden- fetched!", goals.size());
+		long goals = getResourcesByURL(searchURL, true, Goal.class, sink);
+		log.info("{} Goals overridden- fetched!", goals);
 
 		return goals;
 	}
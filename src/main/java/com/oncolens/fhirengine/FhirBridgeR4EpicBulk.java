@@ -0,0 +1,196 @@
+package com.oncolens.fhirengine;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.oncolens.fhirengine.model.AuditType;
+import com.oncolens.fhirengine.model.BulkExportFile;
+import com.oncolens.fhirengine.model.BulkExportManifest;
+import com.oncolens.fhirengine.util.BulkExportClient;
+import com.oncolens.fhirengine.util.BulkExportSpool;
+import com.oncolens.fhirengine.util.FhirConfig;
+import com.oncolens.fhirengine.util.FhirUtilBase;
+import com.oncolens.fhirengine.util.ProgressJournal;
+import com.oncolens.fhirengine.util.Tracer;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Epic R4 bridge that pulls the cohort's resources with one FHIR Bulk Data $export instead of searching patient by
+ * patient. The export runs as soon as the cohort has been resolved: its output files are downloaded in parallel and
+ * split into a spool file per patient, and each patient's extract then streams its spool file into the data file.
+ * Extracts that need more than the exported resources (documentreference with its Binary downloads, operationccd),
+ * and every extract after a failed export, go through the searches of FhirBridgeR4Epic. Patients an earlier run
+ * completed are left out of the export, and the spool is removed at the end of the run.
+ */
+@Slf4j
+public class FhirBridgeR4EpicBulk extends FhirBridgeR4Epic {
+
+    private static final Set<String> SEARCH_ONLY_EXTRACTS = Set.of("documentreference", "operationccd");
+    // The run's completed export, keyed by fhir base URL and shared by the worker bridges
+    private static final Map<String, CompletedExport> EXPORTS = new ConcurrentHashMap<>();
+
+    private static class CompletedExport {
+        private final BulkExportSpool spool;
+        private final Set<String> extracts;
+
+        private CompletedExport(BulkExportSpool spool, Set<String> extracts) {
+            this.spool = spool;
+            this.extracts = extracts;
+        }
+    }
+
+    @Override
+    public List<String> createPatientCohort(List<String> cohortSelectionList, String cohortSelectionType,
+                                            List<IBaseResource> patients) {
+        List<String> identifiers = super.createPatientCohort(cohortSelectionList, cohortSelectionType, patients);
+        if (identifiers != null && !patients.isEmpty()) {
+            exportCohort(patients);
+        }
+        return identifiers;
+    }
+
+    @Override
+    public void createPatientExtracts(IBaseResource patient, String identifier, List<String> extracts,
+                                      ResourceSink sink) throws IOException {
+        CompletedExport export = EXPORTS.get(getFhirConfig().getFhirBaseURL());
+        if (export == null) {
+            super.createPatientExtracts(patient, identifier, extracts, sink);
+            return;
+        }
+        String patientid = extractPatientIdFromPatient(patient);
+        sink.accept(patient);
+        IParser parser = getFhirContext().newJsonParser();
+        try (Tracer.Span span = Tracer.span("spool")) {
+            export.spool.read(patientid, line -> {
+                long start = System.nanoTime();
+                IBaseResource resource = parser.parseResource(line);
+                FhirUtilBase.PARSE_SECONDS.observeNanos(System.nanoTime() - start);
+                // The Patient has been written already, from the cohort resolution
+                if (!(resource instanceof Patient)) {
+                    sink.accept(resource);
+                }
+            });
+        }
+        extracts.removeAll(export.extracts);
+        createResourceExtracts(patientid, identifier, extracts, sink);
+        // Kept until here, a patient that fails is retried from the same spool file
+        export.spool.delete(patientid);
+    }
+
+    @Override
+    public void finish() {
+        CompletedExport export = EXPORTS.remove(getFhirConfig().getFhirBaseURL());
+        if (export != null) {
+            export.spool.deleteAll();
+        }
+    }
+
+    private void exportCohort(List<IBaseResource> patients) {
+        FhirConfig fc = getFhirConfig();
+        Map<String, String> resourceTypes = new LinkedHashMap<>();
+        for (String extract : fc.getExtracts()) {
+            if (SEARCH_ONLY_EXTRACTS.contains(extract)) {
+                continue;
+            }
+            // getResourceTypes only lists the types the context has scanned so far, the lookup scans on demand
+            try {
+                resourceTypes.put(extract, getFhirContext().getResourceDefinition(extract).getName());
+            } catch (DataFormatException e) {
+                log.warn("Extract {} is not a resource type, it is not exported", extract);
+            }
+        }
+        if (resourceTypes.isEmpty()) {
+            return;
+        }
+        BulkExportClient client = new BulkExportClient(fc, this::getAuthorizationToken);
+        BulkExportSpool spool = null;
+        try {
+            // The patients a resumed run skips are not exported again
+            ProgressJournal journal = ProgressJournal.getInstance(fc);
+            List<String> patientIds = new ArrayList<>();
+            for (IBaseResource patient : patients) {
+                String patientId = extractPatientIdFromPatient(patient);
+                if (!journal.isComplete(patientId, fc.getExtracts())) {
+                    patientIds.add(patientId);
+                }
+            }
+            if (patientIds.isEmpty()) {
+                return;
+            }
+            spool = new BulkExportSpool(new File(fc.getBulkSpoolDir(), FhirProcessor.PROCESSUUID),
+                    fc.getBulkSpoolOpenFiles());
+            String statusURL = client.kickOff(resourceTypes.values(), patientIds);
+            BulkExportManifest manifest = client.awaitCompletion(statusURL);
+            download(client, manifest, spool);
+            spool.close();
+            auditErrors(client, manifest);
+            client.delete(statusURL);
+            EXPORTS.put(fc.getFhirBaseURL(), new CompletedExport(spool, resourceTypes.keySet()));
+            log.info("Bulk export of {} for {} patients completed with {} output files", resourceTypes.values(),
+                    patientIds.size(), manifest.getOutput().size());
+        } catch (IOException e) {
+            if (spool != null) {
+                spool.deleteAll();
+            }
+            log.error("Bulk export failed, extracting patient by patient instead", e);
+            FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fc, AuditType.EXCEPTION_OCCURRED,
+                    "$export", FhirProcessor.PROCESSUUID, fc.getCohortListFile(),
+                    "Bulk export failed, extracting patient by patient instead - " + FhirUtilBase.getExceptionAsString(e)));
+        }
+    }
+
+    private void download(BulkExportClient client, BulkExportManifest manifest, BulkExportSpool spool)
+            throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(getFhirConfig().getBulkDownloadWorkers(), manifest.getOutput().size())));
+        try {
+            List<Future<Void>> downloads = new ArrayList<>();
+            for (BulkExportFile file : manifest.getOutput()) {
+                downloads.add(executor.submit(() -> {
+                    client.download(file, manifest.isRequiresAccessToken(), spool::accept);
+                    return null;
+                }));
+            }
+            for (Future<Void> download : downloads) {
+                download.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading the bulk export", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * Error files hold an OperationOutcome per resource the server could not export
+     */
+    private void auditErrors(BulkExportClient client, BulkExportManifest manifest) throws IOException {
+        FhirConfig fc = getFhirConfig();
+        for (BulkExportFile file : manifest.getError()) {
+            client.download(file, manifest.isRequiresAccessToken(), line ->
+                    FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fc, AuditType.VALIDATION_FAILED,
+                            "$export", FhirProcessor.PROCESSUUID, fc.getCohortListFile(),
+                            "Bulk export reported an error - " + line)));
+        }
+    }
+}
@@ -5,10 +5,19 @@ import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.oncolens.fhirengine.model.AuditEvent;
 import com.oncolens.fhirengine.model.AuditType;
+import com.oncolens.fhirengine.model.JournalRecord;
+import com.oncolens.fhirengine.model.OutputMode;
 import com.oncolens.fhirengine.util.AWSSecretsManager;
 import com.oncolens.fhirengine.util.FhirConfig;
 import com.oncolens.fhirengine.util.FhirUtilBase;
+import com.oncolens.fhirengine.util.Metrics;
+import com.oncolens.fhirengine.util.NdjsonWriter;
+import com.oncolens.fhirengine.util.ProgressJournal;
 import com.oncolens.fhirengine.util.S3Access;
+import com.oncolens.fhirengine.util.SegmentWriter;
+import com.oncolens.fhirengine.util.SkippedWork;
+import com.oncolens.fhirengine.util.Tracer;
+import com.oncolens.fhirengine.util.WatermarkStore;
 import lombok.Cleanup;
 import lombok.extern.slf4j.Slf4j;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -16,15 +25,27 @@ import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Slf4j
 public class FhirProcessor {
     private static final ObjectMapper MAPPER = new ObjectMapper(new YAMLFactory());
+    private static final Metrics.Histogram PATIENT_SECONDS = Metrics.getInstance().histogram("fhir_patient_seconds",
+            "Time to extract a patient, up to queueing its upload");
+    private static final Metrics.Counter RESOURCES_WRITTEN = Metrics.getInstance().counter(
+            "fhir_resources_written_total", "Resources written to the patients' data files");
     public static final String PROCESSUUID = UUID.randomUUID().toString();
-    public  static List<AuditEvent> auditEventList = new ArrayList<>();
+    public  static List<AuditEvent> auditEventList = Collections.synchronizedList(new ArrayList<>());
+    private SegmentWriter segmentWriter;
 
     public static void main(String[] args) throws IOException {
         FhirConfig fc = null;
@@ -65,7 +86,11 @@ public class FhirProcessor {
             }
             else {
                 fc.setCohortListFile(cohortFile);
+                if (fc.getMetricsPort() > 0) {
+                    Metrics.getInstance().startServer(fc.getMetricsPort());
+                }
                 new FhirProcessor().run(fc);
+                S3Access.getInstance(fc).awaitUploads();
                 auditEventList.add(FhirUtilBase.processAuditEvent(fc, AuditType.COMPLETED, cohortFile, FhirProcessor.PROCESSUUID, cohortFile, "FhirProcessorClient completed successfully"));
                 log.info("FhirProcessorClient completed successfully");
             }
@@ -77,6 +102,31 @@ public class FhirProcessor {
             log.error("FhirProcessorClient completed with an error", e);
         }
         finally{
+            if (fc != null) {
+                // Uploads still running after a failed run are let finish, so the audit reflects what reached S3
+                try {
+                    S3Access.getInstance(fc).awaitUploads();
+                } catch (Exception e) {
+                    auditEventList.add(FhirUtilBase.processAuditEvent(fc, AuditType.ERRORED, "main process", FhirProcessor.PROCESSUUID, "", "Pending S3 uploads failed-" + FhirUtilBase.getExceptionAsString(e)));
+                    log.error("Pending S3 uploads failed", e);
+                }
+                // Only after the uploads, they journal their patients and move their watermarks as they complete
+                ProgressJournal.closeInstance();
+                WatermarkStore.getInstance(fc).save();
+                // Also after the uploads, whose spans end as they complete
+                shipTrace(fc);
+                if (fc.getMetricsFile() != null) {
+                    try {
+                        Metrics.getInstance().writeTo(new File(fc.getMetricsFile()));
+                    } catch (IOException e) {
+                        log.warn("Unable to write metrics to {}", fc.getMetricsFile(), e);
+                    }
+                }
+                Metrics.getInstance().stopServer();
+            }
+            auditEventList.add(FhirUtilBase.processAuditEvent(fc, AuditType.METRICS, "main process",
+                    FhirProcessor.PROCESSUUID, (fc == null) ? "" : fc.getCohortListFile(),
+                    Metrics.getInstance().toSummary()));
 
             ObjectMapper objectMapper = new ObjectMapper();
             @Cleanup ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -84,7 +134,8 @@ public class FhirProcessor {
                 bos.write(objectMapper.writeValueAsBytes(ae));
                 bos.write('\n');
             }
-            FhirUtilBase.writeBytesToFile(fc.getAuditOutputFilePath(),"audit", bos.toByteArray());
+            FhirUtilBase.writeBytesToFile(fc.getAuditOutputFilePath(),"audit", bos.toByteArray(),
+                    fc.getCompressionCodec(), fc.getCompressionLevel());
             //ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
             S3Access.getInstance(fc).upload(bos.toByteArray(), fc, PROCESSUUID, fc.getAuditOutputFilePath(), null, "text" +
                     "/plain");
@@ -97,7 +148,7 @@ public class FhirProcessor {
     public void run(FhirConfig fc) throws IOException {
         try {
             log.info("Creating  [fhirBridge]");
-            FhirBridge fhirBridge = fc.getFhirBridgeType().getImpl();
+            FhirBridge fhirBridge = fc.getFhirBridgeType().newImpl();
             fhirBridge.initialize(fc);
             log.info("Created [fhirBridge]");
             List<String> cohortSelectionList = FhirUtilBase.getFileData(fc.getCohortListFile());
@@ -107,13 +158,16 @@ public class FhirProcessor {
                 auditEventList.add(FhirUtilBase.processAuditEvent(fc, AuditType.EXCEPTION_OCCURRED,"CreateExtract",FhirProcessor.PROCESSUUID, fc.getCohortListFile(), "No extracts were requested in the config file" ));
                 throw  (new RuntimeException("No extracts were requested in the config file"));
             }
-            List<IBaseResource> resourcesAll = new ArrayList<>();
+            ResourceSink resourceSink = fc.getResourceSinkType().newSink(fc, fhirBridge.getFhirContext());
             List<IBaseResource> patientResources = new ArrayList<>();
-            List<String> jsonResourcesAll = new ArrayList<>();
             log.info("Going to create patient cohort using input list containing {} patients", cohortSelectionList.size());
-            List<String> patientsIdentifierList = fhirBridge.createPatientCohort(cohortSelectionList,
-                    fc.getCohortSelectionType(),
-                    patientResources);
+            List<String> patientsIdentifierList;
+            try (Tracer.Span span = Tracer.getInstance(fc).start("cohort", "cohort")) {
+                patientsIdentifierList = fhirBridge.createPatientCohort(cohortSelectionList,
+                        fc.getCohortSelectionType(),
+                        patientResources);
+                span.set("patients", patientResources.size());
+            }
             if (patientsIdentifierList == null) {
                 log.error("Invalid cohort selection type, please check config file");
                 auditEventList.add(FhirUtilBase.processAuditEvent(fc, AuditType.EXCEPTION_OCCURRED,"CreatePatientCohort",FhirProcessor.PROCESSUUID, fc.getCohortListFile(), "No cohorts could be determined" ));
@@ -121,45 +175,30 @@ public class FhirProcessor {
             }
             log.info("There are {} patients in the cohort", patientsIdentifierList.size());
 
-            int patientIndex = -1;
-            for (IBaseResource patient : patientResources) {
-                patientIndex++;
-                jsonResourcesAll.clear();
-                String identifier = patientsIdentifierList.get(patientIndex).trim();
-                List<String> extractsCopy = new ArrayList<>(extracts);
-                try {
-                    jsonResourcesAll.addAll(fhirBridge.createPatientExtracts(patient, identifier, extractsCopy,
-                            resourcesAll));
-                } catch (AuthenticationException | FhirClientConnectionException ea) {
-                    log.info("####################################################################");
-                    log.info("Token Expired or Connection timed out, reinitializing fhirBridge...");
-                    log.info("####################################################################");
-                    fhirBridge.initialize(fc);
-                    //Re process the last patient since it never completed
-                    extractsCopy = new ArrayList<>(extracts);
-                    jsonResourcesAll.addAll(fhirBridge.createPatientExtracts(patient, identifier, extractsCopy,
-                            resourcesAll));
-
-                }
-                log.debug("Size of jsonResourcesAll in fhirProcessor {}", jsonResourcesAll.size());
-                log.debug("Size of resourcesAll in fhirProcessor {}", resourcesAll.size());
-               // ArrayList<String> s3List = new ArrayList<>(jsonResourcesAll);
-                @Cleanup ByteArrayOutputStream bos = new ByteArrayOutputStream(); //Combine all the json resources into a Stream
-
-                for (String jsonLine : jsonResourcesAll) {
-                    bos.write(jsonLine.getBytes());
-                    bos.write('\n');
+            if (fc.getOutputMode() == OutputMode.SEGMENTED) {
+                segmentWriter = new SegmentWriter(fc, PROCESSUUID,
+                        ProgressJournal.getInstance(fc).getCompletedSegmentEntries());
+            }
+            int workers = Math.max(1, Math.min(fc.getPatientWorkers(), patientResources.size()));
+            try {
+                if (workers == 1) {
+                    for (int patientIndex = 0; patientIndex < patientResources.size(); patientIndex++) {
+                        processPatient(fhirBridge, fc, patientResources.get(patientIndex),
+                                patientsIdentifierList.get(patientIndex).trim(), extracts, resourceSink);
+                    }
+                } else {
+                    processPatientsConcurrently(fhirBridge, fc, patientResources, patientsIdentifierList, extracts,
+                            resourceSink, workers);
                 }
-               // ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
-                log.debug ("size of byte stream before writing to file {}", bos.size());
-                FhirUtilBase.writeBytesToFile(fc.getDataOutputFilePath(), fhirBridge.extractPatientIdFromPatient(patient), bos.toByteArray());
-
-                S3Access.getInstance(fc).upload(bos.toByteArray(), fc, fhirBridge.extractPatientIdFromPatient(patient), fc.getDataOutputFilePath(), null, "text" +
-                        "/plain");
-                log.info("Uploaded json data file containing {} objects to S3", jsonResourcesAll.size());
-                if (extractsCopy.size() > 0) {
-                    log.info("Unsupported extracts {} ", extractsCopy);
+            } finally {
+                // Patients appended before a failure are still shipped together with their manifest
+                if (segmentWriter != null) {
+                    segmentWriter.close();
                 }
+                // and the resources already handed to the sink are flushed
+                resourceSink.finish();
+                // and what the bridge kept for the whole run is released
+                fhirBridge.finish();
             }
         } catch (Exception ex) {
             log.error("Exception occurred while running FhirProcessor ", ex);
@@ -167,11 +206,222 @@ public class FhirProcessor {
             throw ex;
         }
     }
-}
 
+    /*
+     * Bridges are not thread safe, so every worker checks one out of the pool for the duration of a patient and hands
+     * it back afterwards. The bridge used for the cohort selection is reused as the first worker's bridge.
+     */
+    private void processPatientsConcurrently(FhirBridge fhirBridge, FhirConfig fc, List<IBaseResource> patientResources,
+                                             List<String> patientsIdentifierList, List<String> extracts,
+                                             ResourceSink resourceSink, int workers) throws IOException {
+        log.info("Extracting patients using {} workers", workers);
+        BlockingQueue<FhirBridge> bridges = new ArrayBlockingQueue<>(workers);
+        bridges.add(fhirBridge);
+        for (int i = 1; i < workers; i++) {
+            FhirBridge workerBridge = fc.getFhirBridgeType().newImpl();
+            workerBridge.initialize(fc);
+            bridges.add(workerBridge);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int patientIndex = 0; patientIndex < patientResources.size(); patientIndex++) {
+                IBaseResource patient = patientResources.get(patientIndex);
+                String identifier = patientsIdentifierList.get(patientIndex).trim();
+                results.add(executor.submit(() -> {
+                    FhirBridge workerBridge = bridges.take();
+                    try {
+                        processPatient(workerBridge, fc, patient, identifier, extracts, resourceSink);
+                    } finally {
+                        bridges.put(workerBridge);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for patient extracts", e);
+        } catch (ExecutionException e) {
+            // Same as the sequential path, the first failing patient stops the run
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
+    private void processPatient(FhirBridge fhirBridge, FhirConfig fc, IBaseResource patient, String identifier,
+                                List<String> extracts, ResourceSink resourceSink) throws IOException {
+        String patientId = fhirBridge.extractPatientIdFromPatient(patient);
+        ProgressJournal journal = ProgressJournal.getInstance(fc);
+        if (journal.isComplete(patientId, extracts)) {
+            log.info("Skipping patient {}, completed by an earlier run", patientId);
+            patientsCounter("resumed").inc();
+            return;
+        }
+        try (Tracer.Span span = Tracer.getInstance(fc).start(patientId, "patient")) {
+            extractPatient(fhirBridge, fc, patient, patientId, identifier, extracts, resourceSink, journal, span);
+        }
+    }
 
+    private void extractPatient(FhirBridge fhirBridge, FhirConfig fc, IBaseResource patient, String patientId,
+                                String identifier, List<String> extracts, ResourceSink resourceSink,
+                                ProgressJournal journal, Tracer.Span span) throws IOException {
+        WatermarkStore watermarks = WatermarkStore.getInstance(fc);
+        boolean fullRefresh = watermarks.isFullRefreshDue(patientId);
+        long startedAt = System.currentTimeMillis();
+        File dataFile = FhirUtilBase.getOutputFile(fc.getDataOutputFilePath(),
+                patientId + fc.getCompressionCodec().getFileSuffix());
+        List<String> extractsCopy = new ArrayList<>(extracts);
+        ResourceSink.Attempt attempt = resourceSink.begin(patientId);
+        long resourceCount;
+        try {
+            try {
+                resourceCount = writePatientExtracts(fhirBridge, fc, patient, identifier, extractsCopy, dataFile,
+                        attempt);
+            } catch (AuthenticationException ea) {
+                // Tokens are renewed ahead of expiry, so this is a token the server revoked. The interceptor has
+                // already dropped it, the retry goes out with a new one.
+                log.info("Token rejected, retrying the patient with a new token...");
+                //Re process the last patient since it never completed, this overwrites the partial data file
+                extractsCopy = new ArrayList<>(extracts);
+                attempt.abort();
+                attempt = resourceSink.begin(patientId);
+                resourceCount = writePatientExtracts(fhirBridge, fc, patient, identifier, extractsCopy, dataFile,
+                        attempt);
+            }
+        } catch (FhirClientConnectionException e) {
+            // The transport has retried the failing request as often as it was allowed to, so the patient is skipped
+            // and the run goes on. Being neither journaled nor uploaded, it is extracted again on resume.
+            log.error("Skipping patient {}, a request kept failing", patientId, e);
+            attempt.abort();
+            auditEventList.add(FhirUtilBase.processAuditEvent(fc, AuditType.EXCEPTION_OCCURRED, "Patient/" + patientId,
+                    FhirProcessor.PROCESSUUID, fc.getCohortListFile(), "Skipped patient " + identifier
+                            + " after retries - " + FhirUtilBase.getExceptionAsString(e)));
+            dataFile.delete();
+            patientsCounter("failed").inc();
+            span.set("outcome", "failed");
+            return;
+        } catch (IOException | RuntimeException e) {
+            attempt.abort();
+            throw e;
+        }
+        // The data file is complete, the run-wide sink gets the patient's resources
+        attempt.commit();
+        log.debug("size of data file {}", dataFile.length());
+        RESOURCES_WRITTEN.add(resourceCount);
+        span.set("resources", resourceCount).set("bytes", dataFile.length());
 
+        JournalRecord record = newJournalRecord(fc, patientId, identifier, extracts);
+        // Watermarks only move for the extracts the bridge handled, unsupported ones stay unmarked
+        List<String> extracted = new ArrayList<>(record.getExtracts());
+        extracted.removeAll(extractsCopy);
+        Tracer.Span uploadSpan = span.detached("upload").set("bytes", dataFile.length());
+        Runnable onUploaded = () -> {
+            uploadSpan.close();
+            journal(journal, record);
+            watermarks.update(patientId, extracted, startedAt, fullRefresh);
+        };
+        if (segmentWriter != null) {
+            try (Tracer.Span append = Tracer.span("append").set("bytes", dataFile.length())) {
+                segmentWriter.append(patientId, identifier, dataFile, resourceCount, !fullRefresh, entry -> {
+                    record.setSegment(entry);
+                    onUploaded.run();
+                });
+            }
+            dataFile.delete();
+            log.info("Appended json data containing {} objects to the current segment", resourceCount);
+        } else {
+            // A delta goes under its own key, so it never replaces a full extract uploaded to the same dated path
+            String keySuffix = fullRefresh ? null : "-delta-" + PROCESSUUID;
+            S3Access.getInstance(fc).uploadAsync(dataFile, fc, patientId, fc.getDataOutputFilePath(), keySuffix,
+                    "text/plain", onUploaded);
+            log.info("Queued json data file containing {} objects for upload to S3", resourceCount);
+        }
+        if (extractsCopy.size() > 0) {
+            log.info("Unsupported extracts {} ", extractsCopy);
+        }
+        PATIENT_SECONDS.observe((System.currentTimeMillis() - startedAt) / 1000.0);
+        patientsCounter("extracted").inc();
+        span.set("outcome", "extracted");
+    }
 
+    /*
+     * The journal record of an extracted patient. Extracts skipped for a failing endpoint or a rejected search are not
+     * journaled, so that a resumed run catches up on them.
+     */
+    static JournalRecord newJournalRecord(FhirConfig fc, String patientId, String identifier, List<String> extracts) {
+        JournalRecord record = new JournalRecord();
+        record.setPatientId(patientId);
+        record.setIdentifier(identifier);
+        List<String> completed = new ArrayList<>(extracts);
+        completed.removeAll(SkippedWork.getInstance(fc).getSkipped(patientId));
+        record.setExtracts(completed);
+        return record;
+    }
 
+    private static Metrics.Counter patientsCounter(String outcome) {
+        return Metrics.getInstance().counter("fhir_patients_total", "Patients of the cohort, by outcome",
+                "outcome", outcome);
+    }
 
+    private static void journal(ProgressJournal journal, JournalRecord record) {
+        try {
+            journal.record(record);
+        } catch (IOException e) {
+            // The patient is extracted again on resume, nothing is lost
+            log.warn("Unable to journal patient {}", record.getPatientId(), e);
+        }
+    }
+
+    /*
+     * Streams the patient's resources into the data file as they are fetched and returns how many were written. In the
+     * trace, serialize is the encoding time summed over the resources and write the final flush of the data file.
+     */
+    private long writePatientExtracts(FhirBridge fhirBridge, FhirConfig fc, IBaseResource patient, String identifier,
+                                      List<String> extracts, File dataFile, ResourceSink resourceSink)
+            throws IOException {
+        try (Tracer.Span span = Tracer.span("extract")) {
+            long start = System.nanoTime();
+            NdjsonWriter writer = new NdjsonWriter(fhirBridge.getFhirContext(),
+                    fc.getCompressionCodec().wrap(new FileOutputStream(dataFile), fc.getCompressionLevel()));
+            try {
+                fhirBridge.createPatientExtracts(patient, identifier, extracts, writer.andThen(resourceSink));
+            } finally {
+                long closeStart = System.nanoTime();
+                writer.close();
+                if (span.isRecording()) {
+                    span.record("serialize", start, writer.getEncodeNanos(), Map.of("resources", writer.getCount()));
+                    span.record("write", closeStart, System.nanoTime() - closeStart,
+                            Map.of("bytes", dataFile.length()));
+                }
+            }
+            return writer.getCount();
+        }
+    }
+
+    /*
+     * Closes the trace and uploads it next to the audit
+     */
+    private static void shipTrace(FhirConfig fc) {
+        try {
+            File trace = Tracer.getInstance(fc).close();
+            if (trace != null) {
+                S3Access.getInstance(fc).upload(trace, fc, PROCESSUUID, fc.getAuditOutputFilePath(), "-trace",
+                        "text/plain");
+                log.info("Uploaded trace to S3");
+            }
+        } catch (Exception e) {
+            // A diagnostic, the run's outcome does not depend on it
+            log.warn("Unable to upload the trace", e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.oncolens.fhirengine;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.oncolens.fhirengine.util.FhirConfig;
+import com.oncolens.fhirengine.util.NdjsonWriter;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/*
+ * Streams every fetched resource of the run to one NDJSON file, resourceSinkPath, or to standard output when the
+ * path is "-". Each attempt at a patient's extract is encoded into a staging file next to the output as it is handed
+ * over, and appended to the output whole when the attempt commits, so the lines of a patient stay together and a
+ * retried or skipped attempt writes nothing. On resume the file is appended to.
+ */
+@Slf4j
+public class NdjsonResourceSink implements ResourceSink {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String description;
+    private final FhirContext fhirContext;
+    private final Path stagingDir;
+    private final OutputStream out;
+    private final IParser parser;
+    private long count;
+
+    public NdjsonResourceSink(FhirConfig fc, FhirContext fhirContext) {
+        String path = fc.getResourceSinkPath();
+        if (path == null || path.isEmpty()) {
+            throw new IllegalArgumentException("resourceSinkPath is required for the NDJSON resource sink");
+        }
+        this.fhirContext = fhirContext;
+        this.parser = fhirContext.newJsonParser();
+        try {
+            this.description = "-".equals(path) ? "standard output" : path;
+            this.stagingDir = "-".equals(path) ? Paths.get(System.getProperty("java.io.tmpdir"))
+                    : Paths.get(path).toAbsolutePath().getParent();
+            this.out = new BufferedOutputStream(open(path, fc.isResume()), BUFFER_SIZE);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open resource sink " + path, e);
+        }
+        log.info("Streaming resources to {}", description);
+    }
+
+    private static OutputStream open(String path, boolean append) throws IOException {
+        if ("-".equals(path)) {
+            // Standard output stays open for whatever logs after the run
+            return new FilterOutputStream(System.out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+        Path file = Paths.get(path);
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        return new FileOutputStream(file.toFile(), append);
+    }
+
+    @Override
+    public synchronized void accept(IBaseResource resource) throws IOException {
+        out.write((parser.encodeResourceToString(resource) + "\n").getBytes(StandardCharsets.UTF_8));
+        count++;
+    }
+
+    @Override
+    public Attempt begin(String patientId) throws IOException {
+        Path staged = Files.createTempFile(stagingDir, ".sink-", ".ndjson");
+        return new StagedAttempt(staged, new NdjsonWriter(fhirContext, new FileOutputStream(staged.toFile())));
+    }
+
+    @Override
+    public synchronized void finish() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to close resource sink " + description, e);
+        }
+        log.info("{} resources streamed to {}", count, description);
+    }
+
+    private class StagedAttempt implements Attempt {
+
+        private final Path staged;
+        private final NdjsonWriter writer;
+
+        private StagedAttempt(Path staged, NdjsonWriter writer) {
+            this.staged = staged;
+            this.writer = writer;
+        }
+
+        @Override
+        public void accept(IBaseResource resource) throws IOException {
+            writer.accept(resource);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            writer.close();
+            synchronized (NdjsonResourceSink.this) {
+                Files.copy(staged, out);
+                count += writer.getCount();
+            }
+            Files.delete(staged);
+        }
+
+        @Override
+        public void abort() {
+            try (NdjsonWriter closing = writer) {
+                Files.deleteIfExists(staged);
+            } catch (IOException e) {
+                log.warn("Unable to remove the staged resources {}", staged, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.oncolens.fhirengine;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+
+/*
+ * Receives every resource a bridge fetches for a patient, in output order. The bridge keeps no reference to the
+ * resources once they have been handed over, so what stays in memory is up to the sink.
+ */
+public interface ResourceSink {
+
+    ResourceSink NONE = resource -> { };
+
+    void accept(IBaseResource resource) throws IOException;
+
+    /*
+     * Opens one attempt at a patient's extract. What the attempt is handed reaches this sink when it is committed, an
+     * attempt that is retried or skipped is aborted and leaves nothing behind. The default hands the resources
+     * straight over, which only suits sinks that keep nothing of them.
+     */
+    default Attempt begin(String patientId) throws IOException {
+        ResourceSink sink = this;
+        return new Attempt() {
+            @Override
+            public void accept(IBaseResource resource) throws IOException {
+                sink.accept(resource);
+            }
+
+            @Override
+            public void commit() {
+            }
+
+            @Override
+            public void abort() {
+            }
+        };
+    }
+
+    /*
+     * Called once at the end of the run
+     */
+    default void finish() {
+    }
+
+    default ResourceSink andThen(ResourceSink next) {
+        return resource -> {
+            accept(resource);
+            next.accept(resource);
+        };
+    }
+
+    /*
+     * The resources of one attempt at a patient's extract, committed once the patient's data file is complete
+     */
+    interface Attempt extends ResourceSink {
+
+        void commit() throws IOException;
+
+        void abort();
+    }
+}
@@ -8,7 +8,10 @@ public enum AuditType {
     COMPLETED("com.oncolens.data.integrations.audit","Process completed", "completed"),
     ERRORED("com.oncolens.data.integrations.audit","Process errored", "errored"),
     EXCEPTION_OCCURRED("com.oncolens.data.integrations.audit","Exception occurred", "exception_occurred"),
-    VALIDATION_FAILED("com.oncolens.data.integrations.audit","Validation Error occurred", "validation_failed");
+    VALIDATION_FAILED("com.oncolens.data.integrations.audit","Validation Error occurred", "validation_failed"),
+    RETRIED("com.oncolens.data.integrations.audit","Request retried", "retried"),
+    SKIPPED("com.oncolens.data.integrations.audit","Extract skipped", "skipped"),
+    METRICS("com.oncolens.data.integrations.audit","Run metrics", "metrics");
 
     private final String message;
     private final String scope;
@@ -0,0 +1,12 @@
+package com.oncolens.fhirengine.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BulkExportFile {
+    private String type; // Resource type of the lines in the file, OperationOutcome for error files
+    private String url; // Where the NDJSON file can be downloaded from
+    private Long count; // Number of resources in the file, if the server reports it
+}
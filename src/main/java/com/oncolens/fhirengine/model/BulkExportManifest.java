@@ -0,0 +1,20 @@
+package com.oncolens.fhirengine.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Body of the completed $export status request, see https://hl7.org/fhir/uv/bulkdata/export.html
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BulkExportManifest {
+    private String transactionTime;
+    private String request;
+    private boolean requiresAccessToken;
+    private List<BulkExportFile> output = new ArrayList<>();
+    private List<BulkExportFile> error = new ArrayList<>();
+}
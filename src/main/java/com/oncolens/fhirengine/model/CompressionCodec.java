@@ -0,0 +1,72 @@
+package com.oncolens.fhirengine.model;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Streaming compression applied to the data, CCD and audit files before they hit disk and S3. A level of -1 keeps
+ * the codec's own default. Every compressed stream is a self contained gzip member / zstd frame, so compressed
+ * files can be concatenated (segments) and still decode as one stream.
+ */
+public enum CompressionCodec {
+
+    NONE("", null, "NONE"),
+    GZIP(".gz", "gzip", "GZIP"),
+    ZSTD(".zst", "zstd", "ZSTD");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String fileSuffix;
+    private final String contentEncoding;
+    private final String description;
+
+    CompressionCodec(String fileSuffix, String contentEncoding, String description) {
+        this.fileSuffix = fileSuffix;
+        this.contentEncoding = contentEncoding;
+        this.description = description;
+    }
+
+    /*
+     * Closing the returned stream finishes the compressed stream and closes out
+     */
+    public OutputStream wrap(OutputStream out, int level) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level < 0 ? Deflater.DEFAULT_COMPRESSION : level);
+                    }
+                };
+            case ZSTD:
+                return (level < 0) ? new ZstdOutputStream(out) : new ZstdOutputStream(out, level);
+            default:
+                return out;
+        }
+    }
+
+    public byte[] compress(byte[] bytes, int level) throws IOException {
+        if (this == NONE) {
+            return bytes;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (OutputStream out = wrap(bos, level)) {
+            out.write(bytes);
+        }
+        return bos.toByteArray();
+    }
+
+    public String getFileSuffix() {
+        return fileSuffix;
+    }
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+    public String getDescription() {
+        return description;
+    }
+}
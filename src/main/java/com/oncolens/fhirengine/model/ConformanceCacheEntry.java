@@ -0,0 +1,17 @@
+package com.oncolens.fhirengine.model;
+
+import lombok.Data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+@Data
+public class ConformanceCacheEntry {
+    private String fhirBaseURL; // Server the CapabilityStatement / Conformance was read from
+    private String authURL; // Authorization URL found in the security extensions, null if not advertised
+    private String tokenURL; // Token URL found in the security extensions, null if not advertised
+    private Map<String, Set<String>> searchParams = new HashMap<>(); // Search parameter names keyed by resource type
+    private boolean batchSupported; // Whether the server advertises the batch system interaction
+    private long fetchedAt; // Epoch millis of the metadata call, the entry expires conformanceCacheTtlMinutes later
+}
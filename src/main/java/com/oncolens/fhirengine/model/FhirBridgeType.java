@@ -4,32 +4,40 @@ package com.oncolens.fhirengine.model;
 import com.oncolens.fhirengine.FhirBridge;
 import com.oncolens.fhirengine.FhirBridgeDSTU2Epic;
 import com.oncolens.fhirengine.FhirBridgeR4Epic;
+import com.oncolens.fhirengine.FhirBridgeR4EpicBulk;
+
+import java.util.function.Supplier;
 
 public enum FhirBridgeType {
 
 
-    //**DSTU2CERNER(new FhirBridgeDSTU2(), "DSTU2CERNER"),
-    DSTU2EPIC(new FhirBridgeDSTU2Epic(), "DSTU2EPIC"),
-    //**DSTU2ATHENA(new FhirBridgeDSTU2Athena(), "DSTU2ATHENA")
+    //**DSTU2CERNER(FhirBridgeDSTU2::new, "DSTU2CERNER"),
+    DSTU2EPIC(FhirBridgeDSTU2Epic::new, "DSTU2EPIC"),
+    //**DSTU2ATHENA(FhirBridgeDSTU2Athena::new, "DSTU2ATHENA")
+
+    //**R4CERNER(FhirBridgeR4::new, "R4CERNER"),
 
-    //**R4CERNER(new FhirBridgeR4(), "R4CERNER"),
+    R4EPIC(FhirBridgeR4Epic::new, "R4EPIC"),
 
-    R4EPIC(new FhirBridgeR4Epic(), "R4EPIC");
+    R4EPICBULK(FhirBridgeR4EpicBulk::new, "R4EPICBULK");
 
-    private final FhirBridge impl;
+    private final Supplier<FhirBridge> factory;
     private final String description;
 
-    FhirBridgeType(FhirBridge impl, String description) {
-        this.impl = impl;
+    FhirBridgeType(Supplier<FhirBridge> factory, String description) {
+        this.factory = factory;
         this.description = description;
     }
 
-    public FhirBridge getImpl() {
-        return impl;
+    /*
+     * Bridges hold their own client and token and are not thread safe, so every caller (one per extraction worker)
+     * gets a fresh, uninitialized instance.
+     */
+    public FhirBridge newImpl() {
+        return factory.get();
     }
     public String getDescription() {
         return description;
     }
 
 }
-
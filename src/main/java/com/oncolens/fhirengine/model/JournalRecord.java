@@ -0,0 +1,14 @@
+package com.oncolens.fhirengine.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class JournalRecord {
+    private String patientId; // FHIR id of the completed patient
+    private String identifier; // Identifier from the cohort list the patient was selected by
+    private List<String> extracts; // Extract types requested for the patient, all of them are in the uploaded data
+    private SegmentManifestEntry segment; // Where the data went in SEGMENTED output mode, null otherwise
+    private long completedAt; // Epoch millis when the patient's data reached S3
+}
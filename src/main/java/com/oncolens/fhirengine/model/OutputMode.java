@@ -0,0 +1,17 @@
+package com.oncolens.fhirengine.model;
+
+public enum OutputMode {
+
+    PER_PATIENT("PER_PATIENT"), // One data file and one S3 object per patient
+    SEGMENTED("SEGMENTED"); // Patients packed into rolling segments, located through the run's manifest
+
+    private final String description;
+
+    OutputMode(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,10 @@
+package com.oncolens.fhirengine.model;
+
+import lombok.Data;
+
+@Data
+public class PatientIdCacheEntry {
+    private String patientId; // Logical id of the Patient the identifier resolved to
+    private String versionId; // Version of the Patient when it was last seen, null if the server does not version
+    private long resolvedAt; // Epoch millis of the run that last confirmed the mapping
+}
@@ -0,0 +1,12 @@
+package com.oncolens.fhirengine.model;
+
+import lombok.Data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@Data
+public class PatientWatermark {
+    private Map<String, Long> lastUpdated = new HashMap<>(); // Extract type to the epoch millis it is complete up to
+    private long lastFullRefresh; // Epoch millis of the last extract that searched without a _lastUpdated filter
+}
@@ -0,0 +1,34 @@
+package com.oncolens.fhirengine.model;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.oncolens.fhirengine.CountingResourceSink;
+import com.oncolens.fhirengine.NdjsonResourceSink;
+import com.oncolens.fhirengine.ResourceSink;
+import com.oncolens.fhirengine.util.FhirConfig;
+
+import java.util.function.BiFunction;
+
+/*
+ * What the run keeps of the fetched resources besides the patient data files
+ */
+public enum ResourceSinkType {
+
+    NONE((fc, fhirContext) -> ResourceSink.NONE, "NONE"),
+    COUNTS((fc, fhirContext) -> new CountingResourceSink(), "COUNTS"),
+    NDJSON(NdjsonResourceSink::new, "NDJSON");
+
+    private final BiFunction<FhirConfig, FhirContext, ResourceSink> factory;
+    private final String description;
+
+    ResourceSinkType(BiFunction<FhirConfig, FhirContext, ResourceSink> factory, String description) {
+        this.factory = factory;
+        this.description = description;
+    }
+
+    public ResourceSink newSink(FhirConfig fc, FhirContext fhirContext) {
+        return factory.apply(fc, fhirContext);
+    }
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,20 @@
+package com.oncolens.fhirengine.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Builder
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SegmentManifestEntry {
+    private String patientId; // FHIR id of the patient
+    private String identifier; // Identifier from the cohort list the patient was selected by
+    private String segment; // S3 key of the segment holding the patient's NDJSON
+    private long offset; // Byte offset of the patient's first line within the segment
+    private long length; // Number of bytes of the patient's lines, so a ranged GET returns exactly that patient
+    private long resources; // Number of resources (lines) written for the patient
+    private boolean delta; // True when only resources updated since the patient's watermarks were extracted
+}
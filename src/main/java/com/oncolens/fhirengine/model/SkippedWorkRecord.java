@@ -0,0 +1,11 @@
+package com.oncolens.fhirengine.model;
+
+import lombok.Data;
+
+@Data
+public class SkippedWorkRecord {
+    private String patientId; // FHIR id of the patient the extract was skipped for
+    private String extract; // Extract type that was skipped
+    private String reason; // Why, usually the open circuit
+    private long skippedAt; // Epoch millis
+}
@@ -0,0 +1,19 @@
+package com.oncolens.fhirengine.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+import java.util.Map;
+
+@Data
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class TraceSpan {
+    private String traceId; // FHIR id of the patient, or "cohort" for the cohort resolution
+    private long spanId; // Unique within the run
+    private Long parentId; // Null for the root span of a trace
+    private String name; // patient, extract, fetch, request, page, serialize, write, upload, ...
+    private String thread; // Thread the span started on
+    private long startMicros; // Epoch micros
+    private long durationMicros;
+    private Map<String, Object> attributes; // Sizes and labels: extract, endpoint, status, resources, bytes, ...
+}
@@ -0,0 +1,35 @@
+package com.oncolens.fhirengine.util;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+/*
+ * Adds the site's current access token to every request. A 401 marks the token that was sent as rejected, so the
+ * next request (on any worker) goes out with a fresh one.
+ */
+public class AccessTokenInterceptor implements IClientInterceptor {
+
+    private final AccessTokenManager tokenManager;
+    // Requests are executed on the calling thread, so the response is matched to its token per thread
+    private final ThreadLocal<String> sentToken = new ThreadLocal<>();
+
+    public AccessTokenInterceptor(AccessTokenManager tokenManager) {
+        this.tokenManager = tokenManager;
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        String token = tokenManager.getToken();
+        sentToken.set(token);
+        request.addHeader(Constants.HEADER_AUTHORIZATION, Constants.HEADER_AUTHORIZATION_VALPREFIX_BEARER + token);
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) {
+        if (response.getStatus() == Constants.STATUS_HTTP_401_CLIENT_UNAUTHORIZED) {
+            tokenManager.invalidate(sentToken.get());
+        }
+    }
+}
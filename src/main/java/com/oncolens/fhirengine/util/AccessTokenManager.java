@@ -0,0 +1,123 @@
+package com.oncolens.fhirengine.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/*
+ * Holds the access token of a site, shared by every bridge (worker) that talks to it. The token is renewed on a
+ * background thread tokenRefreshAheadSeconds before it expires, so requests keep using a valid token and never wait
+ * for the token endpoint. When the token is missing, expired or was rejected, the first caller fetches a new one
+ * and concurrent callers wait for that single refresh instead of starting their own.
+ */
+@Slf4j
+public class AccessTokenManager {
+
+    private static final Map<String, AccessTokenManager> MANAGERS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "token-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+    // A token is not handed out during its last seconds, it could expire while the request is on the wire
+    private static final long EXPIRY_MARGIN_SECONDS = 10;
+    private static final long RETRY_DELAY_SECONDS = 30;
+    private static final Metrics.Histogram REFRESH_SECONDS = Metrics.getInstance().histogram(
+            "fhir_token_refresh_seconds", "Time to get a new access token from the token endpoint");
+    private static final Metrics.Counter REFRESH_FAILURES = Metrics.getInstance().counter(
+            "fhir_token_refresh_failures_total", "Access token requests that failed");
+
+    private final Supplier<TokenResponse> tokenSource;
+    private final long refreshAheadSeconds;
+    private volatile String token;
+    private volatile long expiresAtMillis;
+    private ScheduledFuture<?> scheduledRefresh;
+
+    private AccessTokenManager(Supplier<TokenResponse> tokenSource, long refreshAheadSeconds) {
+        this.tokenSource = tokenSource;
+        this.refreshAheadSeconds = refreshAheadSeconds;
+    }
+
+    /*
+     * One manager per token endpoint and client id. The token source of the first caller is used for the run.
+     */
+    public static AccessTokenManager getInstance(FhirConfig fc, Supplier<TokenResponse> tokenSource) {
+        return MANAGERS.computeIfAbsent(fc.getTokenURL() + "|" + fc.getClientId(),
+                key -> new AccessTokenManager(tokenSource, fc.getTokenRefreshAheadSeconds()));
+    }
+
+    public String getToken() {
+        String current = token;
+        if (current != null && System.currentTimeMillis() < expiresAtMillis) {
+            return current;
+        }
+        return refresh(current);
+    }
+
+    /*
+     * Called when the server rejected the token. Only the first report for a token forces a refresh, later reports
+     * of the same stale token find it already replaced.
+     */
+    public synchronized void invalidate(String staleToken) {
+        if (staleToken != null && staleToken.equals(token)) {
+            log.info("Access token was rejected, a new one will be requested");
+            expiresAtMillis = 0;
+        }
+    }
+
+    private synchronized String refresh(String staleToken) {
+        if (token != null && !Objects.equals(token, staleToken) && System.currentTimeMillis() < expiresAtMillis) {
+            // Another caller refreshed while this one was waiting for the lock
+            return token;
+        }
+        long start = System.nanoTime();
+        TokenResponse response;
+        try {
+            response = tokenSource.get();
+        } catch (RuntimeException e) {
+            REFRESH_FAILURES.inc();
+            throw e;
+        }
+        REFRESH_SECONDS.observeNanos(System.nanoTime() - start);
+        long now = System.currentTimeMillis();
+        token = response.getAccess_token();
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+        Long expiresIn = response.getExpires_in();
+        if (expiresIn == null || expiresIn <= 0) {
+            // Without expires_in the token is used until the server rejects it
+            log.info("Access token has no expiry, it is renewed when rejected");
+            expiresAtMillis = Long.MAX_VALUE;
+            return token;
+        }
+        expiresAtMillis = now + TimeUnit.SECONDS.toMillis(Math.max(0, expiresIn - EXPIRY_MARGIN_SECONDS));
+        long refreshIn = Math.max(0, expiresIn - Math.min(refreshAheadSeconds, expiresIn / 2));
+        scheduledRefresh = REFRESHER.schedule(this::refreshInBackground, refreshIn, TimeUnit.SECONDS);
+        log.info("Access token valid for {}s, renewing in {}s", expiresIn, refreshIn);
+        return token;
+    }
+
+    private void refreshInBackground() {
+        try {
+            refresh(token);
+        } catch (RuntimeException e) {
+            // The current token is still good until it expires, after that getToken refreshes on the caller's thread
+            log.warn("Background token refresh failed, retrying in {}s", RETRY_DELAY_SECONDS, e);
+            synchronized (this) {
+                if (System.currentTimeMillis() < expiresAtMillis) {
+                    scheduledRefresh = REFRESHER.schedule(this::refreshInBackground, RETRY_DELAY_SECONDS,
+                            TimeUnit.SECONDS);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.oncolens.fhirengine.util;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * AIMD limit on the requests in flight to one FHIR server. A request waits for a free slot before it is sent. While
+ * the server keeps up, every response from a saturated limiter grows the limit by 1/limit, about one request per
+ * round of requests. A 429 or 503 cuts the limit by backoffRatio and holds every request back for the Retry-After
+ * the server asked for. A response slower than latencyTolerance times the baseline latency cuts it by the gentler
+ * latencyBackoffRatio. Baseline and smoothed latency are kept per endpoint (see EndpointKeys), so a slow $operation
+ * or Binary read is judged against its own history and not against fast searches. At most one cut is made per
+ * smoothed round trip, so a burst of throttled responses to the same overload only counts once. The limit starts at
+ * the requests the workers can have in flight and stays within minConcurrency and maxConcurrency.
+ */
+@Slf4j
+public class AdaptiveConcurrencyLimiter implements Interceptor {
+
+    private static final double LATENCY_SMOOTHING = 0.2;
+    // How fast the baseline forgets an old minimum, so it follows the server's load over the day
+    private static final double BASELINE_DRIFT = 1.01;
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+    // Latency is only judged once the baseline has settled, and differences below this are jitter, not load
+    private static final int LATENCY_WARM_UP_SAMPLES = 20;
+    private static final long LATENCY_NOISE_MILLIS = 50;
+
+    private final String name;
+    private final EndpointKeys endpoints;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double latencyBackoffRatio;
+    private final double latencyTolerance;
+
+    private final Map<String, Latency> latencies = new HashMap<>();
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseAt;
+    private long pausedUntil;
+
+    /*
+     * Latency history of one endpoint
+     */
+    private static class Latency {
+        private double smoothedMillis;
+        private double baselineMillis;
+        private long samples;
+    }
+
+    public AdaptiveConcurrencyLimiter(String name, TransportConfig tc, int initialLimit, int maxLimit) {
+        this.name = name;
+        this.endpoints = new EndpointKeys(name);
+        this.maxLimit = Math.max(1, maxLimit);
+        this.minLimit = Math.max(1, Math.min(tc.getMinConcurrency(), this.maxLimit));
+        this.backoffRatio = tc.getBackoffRatio();
+        this.latencyBackoffRatio = tc.getLatencyBackoffRatio();
+        this.latencyTolerance = tc.getLatencyTolerance();
+        // The configured worker count has been fine so far, so start there and only shrink when told to
+        this.limit = Math.max(minLimit, Math.min(initialLimit, this.maxLimit));
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        acquire();
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(chain.request());
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        long latencyMillis = (System.nanoTime() - start) / 1_000_000;
+        String endpoint = endpoints.of(chain.request().url());
+        if (response.code() == 429 || response.code() == 503) {
+            onThrottled(endpoint, FhirUtilBase.parseRetryAfterMillis(response.header("Retry-After"),
+                    DEFAULT_RETRY_AFTER_MILLIS));
+        } else if (response.code() >= 500) {
+            // An error page comes back fast or times out, neither says anything about the server's usual latency
+            release();
+        } else {
+            onResponse(endpoint, latencyMillis);
+        }
+        return response;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private synchronized void acquire() throws InterruptedIOException {
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (now < pausedUntil) {
+                    wait(pausedUntil - now);
+                } else if (inFlight >= (int) limit) {
+                    wait();
+                } else {
+                    inFlight++;
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request slot");
+        }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private synchronized void onResponse(String endpoint, long latencyMillis) {
+        boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+        Latency latency = latencies.computeIfAbsent(endpoint, key -> new Latency());
+        latency.smoothedMillis = (latency.smoothedMillis == 0) ? latencyMillis
+                : latency.smoothedMillis + LATENCY_SMOOTHING * (latencyMillis - latency.smoothedMillis);
+        latency.baselineMillis = (latency.baselineMillis == 0) ? latencyMillis
+                : Math.min(latency.baselineMillis * BASELINE_DRIFT, Math.max(latencyMillis, 1));
+        latency.samples++;
+        if (latency.samples > LATENCY_WARM_UP_SAMPLES
+                && latency.smoothedMillis > Math.max(latency.baselineMillis * latencyTolerance,
+                latency.baselineMillis + LATENCY_NOISE_MILLIS)) {
+            decrease(latency, latencyBackoffRatio, endpoint + " latency " + (long) latency.smoothedMillis
+                    + " ms against a baseline of " + (long) latency.baselineMillis + " ms");
+        } else if (saturated && limit < maxLimit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    private synchronized void onThrottled(String endpoint, long retryAfterMillis) {
+        inFlight--;
+        pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + retryAfterMillis);
+        decrease(latencies.get(endpoint), backoffRatio, endpoint + " throttled, pausing for " + retryAfterMillis
+                + " ms");
+        notifyAll();
+    }
+
+    private void decrease(Latency latency, double ratio, String reason) {
+        long now = System.currentTimeMillis();
+        if (now - lastDecreaseAt < Math.max((latency == null) ? 0 : latency.smoothedMillis, 1)) {
+            return;
+        }
+        lastDecreaseAt = now;
+        int previous = (int) limit;
+        limit = Math.max(minLimit, limit * ratio);
+        if ((int) limit != previous) {
+            log.info("Concurrency limit for {} lowered from {} to {} ({})", name, previous, (int) limit, reason);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.oncolens.fhirengine.util;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.oncolens.fhirengine.model.BulkExportFile;
+import com.oncolens.fhirengine.model.BulkExportManifest;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/*
+ * Client side of the FHIR Bulk Data $export flow: kick-off, status polling and the download of the NDJSON output
+ * files. Requests go through the site's shared OkHttp client with the bridge's access token. Output files are read
+ * line by line straight off the response, never held in memory.
+ */
+@Slf4j
+public class BulkExportClient {
+
+    private static final MediaType FHIR_JSON = MediaType.get("application/fhir+json");
+    private static final String NDJSON = "application/fhir+ndjson";
+
+    /*
+     * Receives every line of an output file
+     */
+    public interface LineHandler {
+        void accept(String line) throws IOException;
+    }
+
+    private final FhirConfig fc;
+    private final OkHttpClient httpClient;
+    private final Supplier<String> accessToken;
+
+    public BulkExportClient(FhirConfig fc, Supplier<String> accessToken) {
+        this.fc = fc;
+        this.httpClient = OkHttpTransport.getClient(fc);
+        this.accessToken = accessToken;
+    }
+
+    /*
+     * Starts a Group export when bulkExportGroupId is set, otherwise a Patient export limited to the given patients.
+     * Returns the status URL to poll.
+     */
+    public String kickOff(Collection<String> resourceTypes, Collection<String> patientIds) throws IOException {
+        Request.Builder request = new Request.Builder()
+                .header("Accept", "application/fhir+json")
+                .header("Prefer", "respond-async")
+                .header("Authorization", "Bearer " + accessToken.get());
+        if (fc.getBulkExportGroupId() != null) {
+            request.url(HttpUrl.get(baseURL() + "Group/" + fc.getBulkExportGroupId() + "/$export").newBuilder()
+                    .addQueryParameter("_type", String.join(",", resourceTypes))
+                    .addQueryParameter("_outputFormat", NDJSON)
+                    .build());
+        } else {
+            request.url(baseURL() + "Patient/$export")
+                    .post(RequestBody.create(FHIR_JSON, exportParameters(resourceTypes, patientIds)));
+        }
+        try (Response response = httpClient.newCall(request.build()).execute()) {
+            if (response.code() != 202 || response.header("Content-Location") == null) {
+                throw new IOException("Bulk export kick-off failed with status " + response.code() + " - "
+                        + bodyExcerpt(response));
+            }
+            log.info("Bulk export of {} accepted, status at {}", resourceTypes, response.header("Content-Location"));
+            return response.header("Content-Location");
+        }
+    }
+
+    /*
+     * Polls the status URL until the export completes, waiting as long as the server's Retry-After asks for
+     * (bulkPollSeconds when it gives none) and at most bulkExportTimeoutMinutes overall
+     */
+    public BulkExportManifest awaitCompletion(String statusURL) throws IOException {
+        long defaultWaitMillis = TimeUnit.SECONDS.toMillis(fc.getBulkPollSeconds());
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(fc.getBulkExportTimeoutMinutes());
+        while (true) {
+            Request request = new Request.Builder().url(statusURL)
+                    .header("Accept", "application/json")
+                    .header("Authorization", "Bearer " + accessToken.get())
+                    .build();
+            long waitMillis;
+            try (Response response = httpClient.newCall(request).execute()) {
+                if (response.code() == 200) {
+                    return FhirUtilBase.JSONMAPPER.readValue(response.body().byteStream(), BulkExportManifest.class);
+                }
+                if (response.code() != 202 && response.code() != 429 && response.code() != 503) {
+                    throw new IOException("Bulk export failed with status " + response.code() + " - "
+                            + bodyExcerpt(response));
+                }
+                waitMillis = FhirUtilBase.parseRetryAfterMillis(response.header("Retry-After"), defaultWaitMillis);
+                log.info("Bulk export in progress ({}), checking again in {} ms",
+                        (response.header("X-Progress") != null) ? response.header("X-Progress") : response.code(),
+                        waitMillis);
+            }
+            if (System.currentTimeMillis() + waitMillis > deadline) {
+                throw new IOException("Bulk export did not complete within " + fc.getBulkExportTimeoutMinutes()
+                        + " minutes, status at " + statusURL);
+            }
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the bulk export", e);
+            }
+        }
+    }
+
+    /*
+     * Streams an output file to the handler one NDJSON line at a time
+     */
+    public void download(BulkExportFile file, boolean requiresAccessToken, LineHandler handler) throws IOException {
+        Request.Builder request = new Request.Builder().url(file.getUrl()).header("Accept", NDJSON);
+        if (requiresAccessToken) {
+            request.header("Authorization", "Bearer " + accessToken.get());
+        }
+        try (Response response = httpClient.newCall(request.build()).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Download of " + file.getUrl() + " failed with status " + response.code());
+            }
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(response.body().byteStream(), StandardCharsets.UTF_8));
+            long lines = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    handler.accept(line);
+                    lines++;
+                }
+            }
+            log.info("Downloaded {} {} resources from {}", lines, file.getType(), file.getUrl());
+        }
+    }
+
+    /*
+     * Tells the server the output files are no longer needed. Failing to do so is not an error, they expire anyway.
+     */
+    public void delete(String statusURL) {
+        Request request = new Request.Builder().url(statusURL).delete()
+                .header("Authorization", "Bearer " + accessToken.get())
+                .build();
+        try (Response response = httpClient.newCall(request).execute()) {
+            log.debug("Bulk export clean up answered {}", response.code());
+        } catch (IOException e) {
+            log.warn("Unable to clean up bulk export {}", statusURL, e);
+        }
+    }
+
+    private String baseURL() {
+        String base = fc.getFhirBaseURL();
+        return base.endsWith("/") ? base : base + "/";
+    }
+
+    private static String exportParameters(Collection<String> resourceTypes, Collection<String> patientIds)
+            throws IOException {
+        ObjectNode parameters = FhirUtilBase.JSONMAPPER.createObjectNode();
+        parameters.put("resourceType", "Parameters");
+        ArrayNode parameter = parameters.putArray("parameter");
+        parameter.addObject().put("name", "_type").put("valueString", String.join(",", resourceTypes));
+        parameter.addObject().put("name", "_outputFormat").put("valueString", NDJSON);
+        for (String patientId : patientIds) {
+            parameter.addObject().put("name", "patient").putObject("valueReference")
+                    .put("reference", "Patient/" + patientId);
+        }
+        return FhirUtilBase.JSONMAPPER.writeValueAsString(parameters);
+    }
+
+    private static String bodyExcerpt(Response response) throws IOException {
+        String body = (response.body() == null) ? "" : response.body().string();
+        return (body.length() > 500) ? body.substring(0, 500) : body;
+    }
+}
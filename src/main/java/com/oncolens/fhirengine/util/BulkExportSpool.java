@@ -0,0 +1,144 @@
+package com.oncolens.fhirengine.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Splits the NDJSON lines of bulk export output files into one spool file per patient, so the per-patient extract
+ * can stream them into the usual data file later on. Only the lines in flight and the buffers of the most recently
+ * written bulkSpoolOpenFiles patients are held in memory. Lines are assigned to a patient by the resource's id for
+ * Patient and by its patient or subject reference otherwise; lines without one are dropped.
+ */
+@Slf4j
+public class BulkExportSpool {
+
+    private final File dir;
+    private final int maxOpenFiles;
+    private final LinkedHashMap<String, Writer> openWriters;
+    private final AtomicLong unassigned = new AtomicLong();
+
+    public BulkExportSpool(File dir, int maxOpenFiles) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir.toPath());
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+        // Access ordered, the first entry is the least recently written patient
+        this.openWriters = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /*
+     * Thread safe, the output files are downloaded in parallel
+     */
+    public void accept(String line) throws IOException {
+        String patientId = patientIdOf(FhirUtilBase.JSONMAPPER.readTree(line));
+        if (patientId == null) {
+            unassigned.incrementAndGet();
+            return;
+        }
+        synchronized (openWriters) {
+            Writer writer = openWriters.get(patientId);
+            if (writer == null) {
+                if (openWriters.size() >= maxOpenFiles) {
+                    Iterator<Writer> eldest = openWriters.values().iterator();
+                    Writer evicted = eldest.next();
+                    eldest.remove();
+                    evicted.close();
+                }
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(getFile(patientId), true), StandardCharsets.UTF_8));
+                openWriters.put(patientId, writer);
+            }
+            writer.write(line);
+            writer.write('\n');
+        }
+    }
+
+    /*
+     * Flushes what has been spooled so far, to be called once every output file has been downloaded
+     */
+    public void close() throws IOException {
+        synchronized (openWriters) {
+            Iterator<Writer> writers = openWriters.values().iterator();
+            while (writers.hasNext()) {
+                writers.next().close();
+                writers.remove();
+            }
+        }
+        if (unassigned.get() > 0) {
+            log.warn("{} exported resources did not reference a patient and were dropped", unassigned.get());
+        }
+    }
+
+    /*
+     * Hands the patient's spooled lines to the handler, if the export returned anything for the patient
+     */
+    public void read(String patientId, BulkExportClient.LineHandler handler) throws IOException {
+        File file = getFile(patientId);
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                handler.accept(line);
+            }
+        }
+    }
+
+    public void delete(String patientId) {
+        getFile(patientId).delete();
+    }
+
+    /*
+     * Removes the spool directory with whatever is left in it, the files of patients that were skipped or failed
+     */
+    public void deleteAll() {
+        try {
+            close();
+        } catch (IOException e) {
+            log.warn("Unable to close the spool files in {}", dir, e);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (!dir.delete()) {
+            log.warn("Unable to remove the bulk export spool {}", dir);
+        }
+    }
+
+    private File getFile(String patientId) {
+        // FHIR ids are limited to letters, digits, '-' and '.', anything else would not be a valid id anyway
+        return new File(dir, patientId.replaceAll("[^A-Za-z0-9.\\-]", "_") + ".ndjson");
+    }
+
+    private static String patientIdOf(JsonNode resource) {
+        if ("Patient".equals(resource.path("resourceType").asText())) {
+            return resource.path("id").asText(null);
+        }
+        for (String field : new String[]{"patient", "subject"}) {
+            // Relative or absolute, the reference ends in Patient/<id>
+            String reference = resource.path(field).path("reference").asText("");
+            int at = reference.lastIndexOf("Patient/");
+            if (at == 0 || (at > 0 && reference.charAt(at - 1) == '/')) {
+                return reference.substring(at + "Patient/".length());
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,185 @@
+package com.oncolens.fhirengine.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.BundleUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Walks the next links of a search result for any FHIR version and hands out the resources one at a time.
+ * With a prefetch depth of 0 each page is requested once the previous one has been consumed. With a depth > 0 the
+ * following pages are loaded on a background thread while the current page is consumed, holding at most that many
+ * pages ahead of the consumer.
+ */
+@Slf4j
+public class BundlePager implements Iterator<IBaseResource>, AutoCloseable {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "page-prefetch-" + THREAD_COUNT.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Object LAST_PAGE = new Object();
+    private static final Metrics.Histogram PAGE_SECONDS = Metrics.getInstance().histogram("fhir_page_load_seconds",
+            "Time to load and parse a following page of search results");
+    private static final Metrics.Counter PAGES = Metrics.getInstance().counter("fhir_pages_total",
+            "Pages of search results handed out, first pages included");
+
+    private final FhirContext fhirContext;
+    private final IGenericClient fhirClient;
+    private final BlockingQueue<Object> prefetchedPages;
+    private final Future<?> prefetcher;
+    // Pages load on the prefetch thread too, their spans belong to the search that created the pager
+    private final Tracer.Span parentSpan = Tracer.current();
+    private IBaseBundle currentBundle;
+    private Iterator<IBaseResource> currentPage;
+    private boolean lastPageSeen;
+    private volatile boolean closed;
+
+    public BundlePager(FhirContext fhirContext, IGenericClient fhirClient, IBaseBundle firstPage, int prefetchDepth) {
+        this.fhirContext = fhirContext;
+        this.fhirClient = fhirClient;
+        this.currentBundle = firstPage;
+        this.currentPage = BundleUtil.toListOfResources(fhirContext, firstPage).iterator();
+        PAGES.inc();
+        if (prefetchDepth > 0 && hasNextLink(firstPage)) {
+            prefetchedPages = new ArrayBlockingQueue<>(prefetchDepth);
+            prefetcher = PREFETCH_EXECUTOR.submit(() -> prefetch(firstPage));
+        } else {
+            prefetchedPages = null;
+            prefetcher = null;
+        }
+    }
+
+    public static List<IBaseResource> loadAllPages(FhirContext fhirContext, IGenericClient fhirClient,
+                                                   IBaseBundle firstPage, int prefetchDepth) {
+        List<IBaseResource> resources = new ArrayList<>();
+        try (BundlePager pager = new BundlePager(fhirContext, fhirClient, firstPage, prefetchDepth)) {
+            pager.forEachRemaining(resources::add);
+        }
+        return resources;
+    }
+
+    public Stream<IBaseResource> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+                .onClose(this::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!currentPage.hasNext()) {
+            IBaseBundle nextBundle = (prefetchedPages == null) ? loadNextPage() : takePrefetchedPage();
+            if (nextBundle == null) {
+                return false;
+            }
+            currentPage = BundleUtil.toListOfResources(fhirContext, nextBundle).iterator();
+            PAGES.inc();
+        }
+        return true;
+    }
+
+    @Override
+    public IBaseResource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentPage.next();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        currentPage = Collections.emptyIterator();
+        if (prefetcher != null) {
+            prefetcher.cancel(true);
+            prefetchedPages.clear();
+        }
+    }
+
+    private boolean hasNextLink(IBaseBundle bundle) {
+        return BundleUtil.getLinkUrlOfType(fhirContext, bundle, IBaseBundle.LINK_NEXT) != null;
+    }
+
+    private IBaseBundle loadNextPage() {
+        if (closed || !hasNextLink(currentBundle)) {
+            return null;
+        }
+        currentBundle = loadPage(currentBundle);
+        return currentBundle;
+    }
+
+    private IBaseBundle loadPage(IBaseBundle previous) {
+        long start = System.nanoTime();
+        try (Tracer.Span span = parentSpan.child("page")) {
+            IBaseBundle bundle = fhirClient.loadPage().next(previous).execute();
+            PAGE_SECONDS.observeNanos(System.nanoTime() - start);
+            return bundle;
+        }
+    }
+
+    private IBaseBundle takePrefetchedPage() {
+        if (lastPageSeen || closed) {
+            return null;
+        }
+        Object page;
+        try {
+            page = prefetchedPages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the next page", e);
+        }
+        if (page == LAST_PAGE) {
+            lastPageSeen = true;
+            return null;
+        }
+        if (page instanceof RuntimeException) {
+            lastPageSeen = true;
+            throw (RuntimeException) page;
+        }
+        if (page instanceof Throwable) {
+            lastPageSeen = true;
+            throw new RuntimeException((Throwable) page);
+        }
+        return (IBaseBundle) page;
+    }
+
+    private void prefetch(IBaseBundle firstPage) {
+        IBaseBundle bundle = firstPage;
+        try {
+            try {
+                while (!closed && hasNextLink(bundle)) {
+                    bundle = loadPage(bundle);
+                    prefetchedPages.put(bundle);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                // Handed to the consumer so the failure surfaces on the thread that asked for the page
+                prefetchedPages.put(t);
+                return;
+            }
+            prefetchedPages.put(LAST_PAGE);
+        } catch (InterruptedException e) {
+            log.debug("Page prefetch cancelled");
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.oncolens.fhirengine.util;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Circuit breakers for the endpoints of one FHIR server, one per resource type or operation (Observation, Binary,
+ * Binary/$autogen-ccd-if, ...). A breaker tracks the outcome of the last circuitWindowSize requests; a request fails
+ * when it throws or ends in a 429 or 5xx after its retries. Once at least circuitMinCalls are recorded and the share
+ * of failures reaches circuitFailureRateThreshold, the circuit opens and requests to that endpoint fail at once with
+ * a CircuitOpenException. After circuitOpenSeconds up to circuitHalfOpenProbes requests are let through; if they
+ * all succeed the circuit closes, a single failure opens it again.
+ */
+@Slf4j
+public class CircuitBreakerInterceptor implements Interceptor {
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final EndpointKeys endpoints;
+    private final TransportConfig tc;
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    public CircuitBreakerInterceptor(FhirConfig fc) {
+        this.endpoints = new EndpointKeys(fc.getFhirBaseURL());
+        this.tc = fc.getTransport();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Breaker breaker = breakers.computeIfAbsent(endpoints.of(chain.request().url()), Breaker::new);
+        breaker.acquire();
+        Response response;
+        try {
+            response = chain.proceed(chain.request());
+        } catch (IOException | RuntimeException e) {
+            breaker.record(false);
+            throw e;
+        }
+        breaker.record(response.code() != 429 && response.code() < 500);
+        return response;
+    }
+
+    private class Breaker {
+        private final String endpoint;
+        private final boolean[] outcomes = new boolean[Math.max(1, tc.getCircuitWindowSize())];
+        private int recorded;
+        private int failures;
+        private int next;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private int probesInFlight;
+        private int probeSuccesses;
+
+        private Breaker(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        private synchronized void acquire() throws CircuitOpenException {
+            if (state == State.OPEN) {
+                long openFor = tc.getCircuitOpenSeconds() * 1000 - (System.currentTimeMillis() - openedAt);
+                if (openFor > 0) {
+                    throw new CircuitOpenException(endpoint, openFor);
+                }
+                log.info("Circuit for {} half open, probing", endpoint);
+                state = State.HALF_OPEN;
+                probesInFlight = 0;
+                probeSuccesses = 0;
+            }
+            if (state == State.HALF_OPEN) {
+                if (probesInFlight + probeSuccesses >= tc.getCircuitHalfOpenProbes()) {
+                    throw new CircuitOpenException(endpoint, 0);
+                }
+                probesInFlight++;
+            }
+        }
+
+        private synchronized void record(boolean success) {
+            if (state == State.HALF_OPEN) {
+                probesInFlight--;
+                if (!success) {
+                    open("probe failed");
+                } else if (++probeSuccesses >= tc.getCircuitHalfOpenProbes()) {
+                    log.info("Circuit for {} closed", endpoint);
+                    state = State.CLOSED;
+                    recorded = 0;
+                    failures = 0;
+                    next = 0;
+                }
+                return;
+            }
+            if (state == State.OPEN) {
+                // Sent before the circuit opened
+                return;
+            }
+            if (recorded == outcomes.length) {
+                failures -= outcomes[next] ? 0 : 1;
+            } else {
+                recorded++;
+            }
+            outcomes[next] = success;
+            failures += success ? 0 : 1;
+            next = (next + 1) % outcomes.length;
+            if (recorded >= tc.getCircuitMinCalls()
+                    && failures >= tc.getCircuitFailureRateThreshold() * recorded) {
+                open(failures + " of the last " + recorded + " requests failed");
+            }
+        }
+
+        private void open(String reason) {
+            log.warn("Circuit for {} opened for {} s, {}", endpoint, tc.getCircuitOpenSeconds(), reason);
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.oncolens.fhirengine.util;
+
+import java.io.IOException;
+
+/*
+ * Thrown instead of sending a request while the circuit of its endpoint is open. HAPI hands it on wrapped in a
+ * FhirClientConnectionException.
+ */
+public class CircuitOpenException extends IOException {
+
+    public CircuitOpenException(String endpoint, long retryInMillis) {
+        super("Circuit open for " + endpoint + ", next probe in " + retryInMillis + " ms");
+    }
+}
@@ -0,0 +1,73 @@
+package com.oncolens.fhirengine.util;
+
+import com.oncolens.fhirengine.model.ConformanceCacheEntry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeps what the bridges need from /metadata (auth and token URLs, supported search parameters) in
+ * conformanceCacheDir, one JSON file per fhirBaseURL. While an entry is younger than conformanceCacheTtlMinutes,
+ * initialize skips the metadata call. Entries are also kept in memory, so re-initialization during a run never
+ * reads the disk. A TTL of 0 disables the cache.
+ */
+@Slf4j
+public class ConformanceCache {
+
+    private static final Map<String, ConformanceCacheEntry> ENTRIES = new ConcurrentHashMap<>();
+
+    private ConformanceCache() {
+    }
+
+    /*
+     * Returns the cached entry for the site, or null when there is none or it has expired
+     */
+    public static ConformanceCacheEntry load(FhirConfig fc) {
+        if (fc.getConformanceCacheTtlMinutes() <= 0) {
+            return null;
+        }
+        ConformanceCacheEntry entry = ENTRIES.get(fc.getFhirBaseURL());
+        if (entry == null) {
+            entry = FhirUtilBase.readJsonLeniently(getCacheFile(fc), ConformanceCacheEntry.class,
+                    "conformance cache");
+            if (entry == null) {
+                return null;
+            }
+        }
+        long ageMillis = System.currentTimeMillis() - entry.getFetchedAt();
+        if (!fc.getFhirBaseURL().equals(entry.getFhirBaseURL())
+                || ageMillis > TimeUnit.MINUTES.toMillis(fc.getConformanceCacheTtlMinutes())) {
+            log.info("Conformance cache for {} is stale", fc.getFhirBaseURL());
+            ENTRIES.remove(fc.getFhirBaseURL());
+            return null;
+        }
+        ENTRIES.put(fc.getFhirBaseURL(), entry);
+        log.info("Using conformance cached {} minutes ago for {}", TimeUnit.MILLISECONDS.toMinutes(ageMillis),
+                fc.getFhirBaseURL());
+        return entry;
+    }
+
+    public static void store(FhirConfig fc, ConformanceCacheEntry entry) {
+        if (fc.getConformanceCacheTtlMinutes() <= 0) {
+            return;
+        }
+        entry.setFhirBaseURL(fc.getFhirBaseURL());
+        entry.setFetchedAt(System.currentTimeMillis());
+        ENTRIES.put(fc.getFhirBaseURL(), entry);
+        File file = getCacheFile(fc);
+        try {
+            FhirUtilBase.writeJsonAtomically(file, entry);
+        } catch (IOException e) {
+            // The cache only saves time, the run goes on without it
+            log.warn("Unable to write conformance cache {}", file, e);
+        }
+    }
+
+    private static File getCacheFile(FhirConfig fc) {
+        return FhirUtilBase.getSiteFile(fc.getConformanceCacheDir(), "conformance", fc.getFhirBaseURL(), ".json");
+    }
+}
@@ -0,0 +1,35 @@
+package com.oncolens.fhirengine.util;
+
+import okhttp3.HttpUrl;
+
+import java.util.List;
+
+/*
+ * Names the endpoint of a request to one FHIR server by its resource type, plus the operation if it is one
+ * (Observation, Binary, Binary/$autogen-ccd-if, ...). Files outside the server, such as bulk export output in a
+ * bucket, are named by their host.
+ */
+public class EndpointKeys {
+
+    private final List<String> basePath;
+    private final String baseHost;
+
+    public EndpointKeys(String fhirBaseURL) {
+        HttpUrl base = HttpUrl.get(fhirBaseURL);
+        this.basePath = base.pathSegments().subList(0,
+                base.pathSegments().get(base.pathSegments().size() - 1).isEmpty()
+                        ? base.pathSegments().size() - 1 : base.pathSegments().size());
+        this.baseHost = base.host();
+    }
+
+    public String of(HttpUrl url) {
+        List<String> segments = url.pathSegments();
+        if (!url.host().equals(baseHost) || segments.size() <= basePath.size()
+                || !segments.subList(0, basePath.size()).equals(basePath)) {
+            return url.host();
+        }
+        String resource = segments.get(basePath.size());
+        String last = segments.get(segments.size() - 1);
+        return (last.startsWith("$") && segments.size() > basePath.size() + 1) ? resource + "/" + last : resource;
+    }
+}
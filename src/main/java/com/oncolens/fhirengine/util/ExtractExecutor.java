@@ -0,0 +1,35 @@
+package com.oncolens.fhirengine.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Bounded pool shared by every bridge for fetching a patient's resource types in parallel. It is sized once from
+ * resourceFetchWorkers, so the number of searches in flight stays capped no matter how many patient workers run.
+ */
+@Slf4j
+public class ExtractExecutor {
+
+    private static ExecutorService executor;
+
+    private ExtractExecutor() {
+    }
+
+    public static synchronized ExecutorService getInstance(FhirConfig fc) {
+        if (executor == null) {
+            log.info("Creating extract executor with {} threads", fc.getResourceFetchWorkers());
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = r -> {
+                Thread t = new Thread(r, "extract-fetch-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+            executor = Executors.newFixedThreadPool(fc.getResourceFetchWorkers(), threadFactory);
+        }
+        return executor;
+    }
+}
@@ -2,7 +2,10 @@ package com.oncolens.fhirengine.util;
 
 import ca.uhn.fhir.context.FhirContext;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.oncolens.fhirengine.model.CompressionCodec;
 import com.oncolens.fhirengine.model.FhirBridgeType;
+import com.oncolens.fhirengine.model.OutputMode;
+import com.oncolens.fhirengine.model.ResourceSinkType;
 import lombok.Data;
 
 import java.util.List;
@@ -37,4 +40,39 @@ public class FhirConfig {
     private String environment;
     private String customer;
     private String siteId;
+    private int patientWorkers = 1;
+    private int resourceFetchWorkers = 1;
+    private int resourceFetchBuffer = 1000;
+    private int pagePrefetchDepth = 0;
+    private ResourceSinkType resourceSinkType = ResourceSinkType.NONE;
+    private String resourceSinkPath;
+    private int s3UploadsInFlight = 4;
+    private long s3MultipartThreshold = 16L * 1024 * 1024;
+    private long s3PartSize = 8L * 1024 * 1024;
+    private OutputMode outputMode = OutputMode.PER_PATIENT;
+    private long segmentMaxBytes = 256L * 1024 * 1024;
+    private int segmentMaxPatients = 5000;
+    private CompressionCodec compressionCodec = CompressionCodec.NONE;
+    private int compressionLevel = -1;
+    private long tokenRefreshAheadSeconds = 300;
+    private TransportConfig transport = new TransportConfig();
+    private String conformanceCacheDir = ".fhir-cache";
+    private long conformanceCacheTtlMinutes = 1440;
+    private int identifierBatchSize = 50;
+    private boolean patientIdCacheEnabled = true;
+    private boolean resume = false;
+    private String journalDir = ".fhir-journal";
+    private int journalSyncEvery = 50;
+    private boolean incremental = false;
+    private int fullRefreshDays = 7;
+    private long watermarkOverlapSeconds = 300;
+    private String bulkExportGroupId;
+    private int bulkPollSeconds = 10;
+    private int bulkExportTimeoutMinutes = 240;
+    private int bulkDownloadWorkers = 4;
+    private String bulkSpoolDir = ".fhir-bulk";
+    private int bulkSpoolOpenFiles = 128;
+    private String metricsFile;
+    private int metricsPort = 0;
+    private boolean tracing = false;
 }
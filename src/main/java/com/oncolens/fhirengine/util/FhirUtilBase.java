@@ -2,11 +2,14 @@ package com.oncolens.fhirengine.util;
 
 
 import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.oncolens.fhirengine.FhirProcessor;
 import com.oncolens.fhirengine.model.AuditEvent;
 import com.oncolens.fhirengine.model.AuditType;
+import com.oncolens.fhirengine.model.CompressionCodec;
 import lombok.Cleanup;
 import lombok.extern.slf4j.Slf4j;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -18,21 +21,32 @@ import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.OperationOutcome;
 
 import java.io.*;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Security;
 import java.security.Signature;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 @Slf4j
 public class FhirUtilBase {
 
     public static final ObjectMapper JSONMAPPER = new ObjectMapper();
+    public static final Metrics.Histogram ENCODE_SECONDS = Metrics.getInstance().histogram("fhir_encode_seconds",
+            "Time to encode a resource to JSON");
+    public static final Metrics.Histogram PARSE_SECONDS = Metrics.getInstance().histogram("fhir_parse_seconds",
+            "Time to parse a resource or Bundle from JSON");
 
     public static List<String> getFileData(String filename) {
         List<String> fileData = new ArrayList<>();
@@ -52,11 +66,17 @@ public class FhirUtilBase {
     }
 
     public static String getJsonForResource(FhirContext ctx, IBaseResource r) {
-        return ctx.newJsonParser().encodeResourceToString(r);
+        long start = System.nanoTime();
+        String json = ctx.newJsonParser().encodeResourceToString(r);
+        ENCODE_SECONDS.observeNanos(System.nanoTime() - start);
+        return json;
     }
 
     public static Bundle getResourceForJson(FhirContext ctx, String bundleString) {
-        return ctx.newJsonParser().parseResource(Bundle.class, bundleString );
+        long start = System.nanoTime();
+        Bundle bundle = ctx.newJsonParser().parseResource(Bundle.class, bundleString );
+        PARSE_SECONDS.observeNanos(System.nanoTime() - start);
+        return bundle;
     }
 
     public static String createJWT(String issuer, String aud, String subject, String idJti, long ttlMillis,
@@ -103,6 +123,51 @@ public class FhirUtilBase {
         return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
     }
 
+    /*
+     * system|value for a token search parameter, with the FHIR search escapes (so several can be OR'ed with commas)
+     * and URL encoding applied
+     */
+    public static String toTokenSearchValue(String system, String value) {
+        return URLEncoder.encode(escapeSearchValue(system) + "|" + escapeSearchValue(value), StandardCharsets.UTF_8);
+    }
+
+    private static String escapeSearchValue(String value) {
+        return value.replace("\\", "\\\\").replace(",", "\\,").replace("|", "\\|").replace("$", "\\$");
+    }
+
+    /*
+     * Appends a _lastUpdated=gt filter to a search URL, or returns it unchanged when there is no watermark
+     */
+    public static String appendLastUpdated(String searchURL, Long since) {
+        if (since == null) {
+            return searchURL;
+        }
+        return searchURL + (searchURL.contains("?") ? "&" : "?") + "_lastUpdated=" + toLastUpdatedSearchValue(since);
+    }
+
+    public static String toLastUpdatedSearchValue(long since) {
+        return "gt" + DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(since));
+    }
+
+    /*
+     * Wait asked for by a Retry-After header, given either in seconds or as an HTTP date
+     */
+    public static long parseRetryAfterMillis(String retryAfter, long defaultMillis) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return defaultMillis;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                OffsetDateTime at = OffsetDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, at.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ex) {
+                return defaultMillis;
+            }
+        }
+    }
+
     public static boolean isRelativeURL(String url) {
         return !url.contains("http");
     }
@@ -180,17 +245,95 @@ public class FhirUtilBase {
         return sw.toString();
     }
 
-    public static void writeBytesToFile(String fileName, String identifier, byte[] bytes) {
+    /*
+     * Same naming as writeBytesToFile, for writers that stream into the file themselves
+     */
+    public static File getOutputFile(String fileName, String identifier) {
+        return new File(fileName + "-" + identifier);
+    }
+
+    /*
+     * A file in dir holding state kept per site or per site and cohort, named prefix-<sha256 of key>suffix so that
+     * any URL makes a valid file name
+     */
+    public static File getSiteFile(String dir, String prefix, String key, String suffix) {
+        return new File(dir, prefix + "-" + sha256(key) + suffix);
+    }
+
+    /*
+     * Written aside and moved in place, so a concurrent reader never sees half a file
+     */
+    public static void writeJsonAtomically(File file, Object value) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            JSONMAPPER.writeValue(tmp, value);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /*
+     * The file's JSON, or null when there is no file or it cannot be read. Only for state that can be rebuilt, the
+     * callers start over from empty.
+     */
+    public static <T> T readJsonLeniently(File file, Class<T> type, String description) {
+        return readJsonLeniently(file, JSONMAPPER.constructType(type), description);
+    }
+
+    public static <T> T readJsonLeniently(File file, TypeReference<T> type, String description) {
+        return readJsonLeniently(file, JSONMAPPER.getTypeFactory().constructType(type), description);
+    }
+
+    private static <T> T readJsonLeniently(File file, JavaType type, String description) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return JSONMAPPER.readValue(file, type);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable {} {}", description, file, e);
+            return null;
+        }
+    }
+
+    private static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static File writeBytesToFile(String fileName, String identifier, byte[] bytes) {
+        return writeBytesToFile(fileName, identifier, bytes, CompressionCodec.NONE, -1);
+    }
+
+    /*
+     * Compresses on the way to disk, the codec's suffix is appended to the file name. Returns the file written, or
+     * null if it could not be written.
+     */
+    public static File writeBytesToFile(String fileName, String identifier, byte[] bytes, CompressionCodec codec,
+                                        int level) {
         try {
-            fileName = fileName + "-" + identifier;
+            fileName = fileName + "-" + identifier + codec.getFileSuffix();
             File file = new File(fileName);
             file.createNewFile();
-            @Cleanup FileOutputStream fileOut = null;
-            fileOut = new FileOutputStream(fileName);
+            @Cleanup OutputStream fileOut = null;
+            fileOut = codec.wrap(new FileOutputStream(fileName), level);
             fileOut.write(bytes);
+            return file;
         } catch (java.io.IOException e) {
             log.error("An error occurred- File not found {}", fileName);
             e.printStackTrace();
+            return null;
         }
     }
 }
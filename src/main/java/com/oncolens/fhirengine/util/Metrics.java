@@ -0,0 +1,291 @@
+package com.oncolens.fhirengine.util;
+
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/*
+ * Counters, histograms and gauges of the run, shared by the whole process. Recording goes through LongAdders, so the
+ * patient workers, page prefetchers and upload threads never block each other on it; the hottest callers keep the
+ * series they record to instead of looking it up by name and labels every time. The registry renders in the
+ * Prometheus text format, written to metricsFile at the end of the run and served on 127.0.0.1:metricsPort while it
+ * runs, and as a summary line for the audit.
+ */
+@Slf4j
+public class Metrics {
+
+    // Seconds, from a cached token to a slow page of a large search or a multipart upload
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60,
+            120, 300};
+    private static final Metrics METRICS = new Metrics();
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+    private HttpServer server;
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return METRICS;
+    }
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observeNanos(long nanos) {
+            observe(nanos / 1e9);
+        }
+
+        public void observe(double seconds) {
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            count.increment();
+            sum.add(seconds);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /*
+         * Upper bound of the bucket the quantile falls in, the largest bound for the overflow bucket
+         */
+        public double quantile(double q) {
+            long total = count.sum();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                if (total > 0 && cumulative >= q * total) {
+                    return BUCKETS[i];
+                }
+            }
+            return BUCKETS[BUCKETS.length - 1];
+        }
+    }
+
+    private static class Gauge {
+        private final DoubleSupplier value;
+
+        private Gauge(DoubleSupplier value) {
+            this.value = value;
+        }
+    }
+
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        // Keyed by the rendered labels
+        private final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        private Object series(String[] labels, Supplier<Object> create) {
+            return series.computeIfAbsent(renderLabels(labels), key -> create.get());
+        }
+    }
+
+    /*
+     * Labels are given as name, value pairs
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").series(labels, Counter::new);
+    }
+
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "histogram").series(labels, Histogram::new);
+    }
+
+    /*
+     * The value is read whenever the metrics are rendered, a later registration under the same labels replaces it
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").series.put(renderLabels(labels), new Gauge(value));
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : new TreeMap<>(families).values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> entry : new TreeMap<>(family.series).entrySet()) {
+                String labels = entry.getKey();
+                Object series = entry.getValue();
+                if (series instanceof Counter) {
+                    sample(out, family.name, labels, null, ((Counter) series).get());
+                } else if (series instanceof Gauge) {
+                    sample(out, family.name, labels, null, ((Gauge) series).value.getAsDouble());
+                } else {
+                    Histogram histogram = (Histogram) series;
+                    long cumulative = 0;
+                    for (int i = 0; i < BUCKETS.length; i++) {
+                        cumulative += histogram.buckets[i].sum();
+                        sample(out, family.name + "_bucket", labels, "le=\"" + BUCKETS[i] + "\"", cumulative);
+                    }
+                    sample(out, family.name + "_bucket", labels, "le=\"+Inf\"", histogram.count.sum());
+                    sample(out, family.name + "_sum", labels, null, histogram.sum.sum());
+                    sample(out, family.name + "_count", labels, null, histogram.count.sum());
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /*
+     * One entry per metric, summed over its labels: totals for counters, count, mean and p50/p99 for histograms
+     */
+    public String toSummary() {
+        List<String> entries = new ArrayList<>();
+        for (Family family : new TreeMap<>(families).values()) {
+            if ("histogram".equals(family.type)) {
+                Histogram merged = new Histogram();
+                for (Object series : family.series.values()) {
+                    Histogram histogram = (Histogram) series;
+                    for (int i = 0; i < merged.buckets.length; i++) {
+                        merged.buckets[i].add(histogram.buckets[i].sum());
+                    }
+                    merged.count.add(histogram.count.sum());
+                    merged.sum.add(histogram.sum.sum());
+                }
+                long count = merged.count.sum();
+                entries.add(family.name + " count=" + count + ((count == 0) ? "" : String.format(
+                        " mean=%.3fs p50<=%ss p99<=%ss", merged.sum.sum() / count, merged.quantile(0.5),
+                        merged.quantile(0.99))));
+            } else {
+                double total = 0;
+                for (Object series : family.series.values()) {
+                    total += (series instanceof Counter) ? ((Counter) series).get()
+                            : ((Gauge) series).value.getAsDouble();
+                }
+                entries.add(family.name + "=" + formatValue(total));
+            }
+        }
+        return String.join(", ", entries);
+    }
+
+    public void writeTo(File file) throws IOException {
+        if (file.getParentFile() != null) {
+            Files.createDirectories(file.getParentFile().toPath());
+        }
+        Files.write(file.toPath(), toPrometheusText().getBytes(StandardCharsets.UTF_8));
+        log.info("Wrote metrics to {}", file.getAbsolutePath());
+    }
+
+    /*
+     * Serves the metrics on 127.0.0.1 only, for a scraper or sidecar running next to the process
+     */
+    public synchronized void startServer(int port) throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        log.info("Serving metrics on http://127.0.0.1:{}/metrics", server.getAddress().getPort());
+    }
+
+    public synchronized void stopServer() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String extraLabel, double value) {
+        out.append(name);
+        if (!labels.isEmpty() || extraLabel != null) {
+            out.append('{').append(labels);
+            if (extraLabel != null) {
+                out.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+            }
+            out.append('}');
+        }
+        out.append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private static String formatValue(double value) {
+        return (value == Math.rint(value) && !Double.isInfinite(value)) ? Long.toString((long) value)
+                : Double.toString(value);
+    }
+
+    private static String renderLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must come as name, value pairs");
+        }
+        StringBuilder rendered = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            String value = (labels[i + 1] == null) ? "" : labels[i + 1];
+            rendered.append((i == 0) ? "" : ",").append(labels[i]).append("=\"")
+                    .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return rendered.toString();
+    }
+}
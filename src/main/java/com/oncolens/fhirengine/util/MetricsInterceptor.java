@@ -0,0 +1,72 @@
+package com.oncolens.fhirengine.util;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+
+/*
+ * Records every request as it goes out on the wire, so each retry counts on its own: the time to the response
+ * headers per endpoint and search category, the status, and the bytes of the body as they are read, before any gzip
+ * is undone. In a trace each request is a span of the calling thread's current span.
+ */
+public class MetricsInterceptor implements Interceptor {
+
+    private final Metrics metrics = Metrics.getInstance();
+    private final EndpointKeys endpoints;
+
+    public MetricsInterceptor(FhirConfig fc) {
+        this.endpoints = new EndpointKeys(fc.getFhirBaseURL());
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String endpoint = endpoints.of(request.url());
+        long start = System.nanoTime();
+        Response response;
+        try (Tracer.Span span = Tracer.span("request").set("endpoint", endpoint)) {
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                metrics.counter("fhir_requests_total", "Requests sent to the FHIR server, by status",
+                        "endpoint", endpoint, "status", "error").inc();
+                span.set("error", e.toString());
+                throw e;
+            }
+            span.set("status", response.code());
+            if (response.body() != null && response.body().contentLength() >= 0) {
+                span.set("bytes", response.body().contentLength());
+            }
+        }
+        metrics.histogram("fhir_request_duration_seconds", "Time from sending a request to its response headers",
+                "endpoint", endpoint, "category", request.url().queryParameter("category"))
+                .observeNanos(System.nanoTime() - start);
+        metrics.counter("fhir_requests_total", "Requests sent to the FHIR server, by status",
+                "endpoint", endpoint, "status", Integer.toString(response.code())).inc();
+        ResponseBody body = response.body();
+        if (body == null) {
+            return response;
+        }
+        Metrics.Counter received = metrics.counter("fhir_response_bytes_total",
+                "Response body bytes received, compressed as sent", "endpoint", endpoint);
+        ForwardingSource counting = new ForwardingSource(body.source()) {
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                long read = super.read(sink, byteCount);
+                if (read > 0) {
+                    received.add(read);
+                }
+                return read;
+            }
+        };
+        return response.newBuilder()
+                .body(ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(counting)))
+                .build();
+    }
+}
@@ -0,0 +1,60 @@
+package com.oncolens.fhirengine.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.oncolens.fhirengine.ResourceSink;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Encodes resources straight into the output stream, one JSON resource per line. Only the write buffer is held in
+ * memory, never the encoded patient record. Not thread safe - a writer belongs to a single patient extract.
+ */
+public class NdjsonWriter implements ResourceSink, Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final IParser parser;
+    private final Writer writer;
+    private long count;
+    private long encodeNanos;
+
+    public NdjsonWriter(FhirContext fhirContext, OutputStream out) {
+        this.parser = fhirContext.newJsonParser();
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    @Override
+    public void accept(IBaseResource resource) throws IOException {
+        long start = System.nanoTime();
+        parser.encodeResourceToWriter(resource, writer);
+        long elapsed = System.nanoTime() - start;
+        FhirUtilBase.ENCODE_SECONDS.observeNanos(elapsed);
+        encodeNanos += elapsed;
+        writer.write('\n');
+        count++;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /*
+     * Time spent encoding so far, including the writes of full buffers to the stream
+     */
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,94 @@
+package com.oncolens.fhirengine.util;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * One OkHttp client (connection pool) per FHIR base URL for the whole run. Bridges plug it into their HAPI client
+ * factory, so worker bridges share connections and a re-initialized bridge keeps the warm TLS connections of the one
+ * it replaces. Every request also goes through the site's circuit breakers, its RetryInterceptor and its
+ * AdaptiveConcurrencyLimiter, in that order; the breakers and the limiter can be turned off. What goes out on the
+ * wire is recorded by a MetricsInterceptor.
+ *
+ * HAPI executes its calls synchronously on the calling thread, so OkHttp's Dispatcher limits, which only apply to
+ * enqueued calls, would cap nothing. The limiter is what caps the requests in flight; with it turned off, they are
+ * bounded by the worker threads only.
+ */
+@Slf4j
+public class OkHttpTransport {
+
+    private static final Map<String, OkHttpClient> CLIENTS = new ConcurrentHashMap<>();
+    private static final Map<String, AdaptiveConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private OkHttpTransport() {
+    }
+
+    public static OkHttpClient getClient(FhirConfig fc) {
+        return CLIENTS.computeIfAbsent(fc.getFhirBaseURL(), key -> newClient(fc));
+    }
+
+    /*
+     * The site's concurrency limiter, null when adaptive concurrency is turned off
+     */
+    public static AdaptiveConcurrencyLimiter getLimiter(FhirConfig fc) {
+        getClient(fc);
+        return LIMITERS.get(fc.getFhirBaseURL());
+    }
+
+    private static OkHttpClient newClient(FhirConfig fc) {
+        TransportConfig tc = fc.getTransport();
+        int concurrency = Math.max(1, fc.getPatientWorkers()) * Math.max(1, fc.getResourceFetchWorkers());
+        int maxIdleConnections = (tc.getMaxIdleConnections() > 0) ? tc.getMaxIdleConnections() : concurrency;
+        log.info("Creating http transport for {} [maxIdleConnections={}, http2={}, adaptiveConcurrency={}]",
+                fc.getFhirBaseURL(), maxIdleConnections, tc.isHttp2(), tc.isAdaptiveConcurrency());
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, tc.getKeepAliveSeconds(), TimeUnit.SECONDS))
+                .connectTimeout(tc.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .readTimeout(tc.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .writeTimeout(tc.getWriteTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .callTimeout(tc.getCallTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .retryOnConnectionFailure(tc.isRetryOnConnectionFailure())
+                .protocols(tc.isHttp2()
+                        ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : Collections.singletonList(Protocol.HTTP_1_1));
+        if (tc.isCircuitBreaker()) {
+            // Sees a request once its retries are over and fails it before any retry while the circuit is open
+            builder.addInterceptor(new CircuitBreakerInterceptor(fc));
+        }
+        // Ahead of the limiter, so that every attempt waits for its own slot
+        builder.addInterceptor(new RetryInterceptor(fc));
+        if (tc.isAdaptiveConcurrency()) {
+            // Page prefetching and bulk downloads add requests beyond one per worker
+            int initialConcurrency = Math.max(concurrency * ((fc.getPagePrefetchDepth() > 0) ? 2 : 1),
+                    fc.getBulkDownloadWorkers());
+            // Room to grow while the server keeps up, the limit only grows when the workers fill it
+            int maxConcurrency = (tc.getMaxConcurrency() > 0) ? tc.getMaxConcurrency()
+                    : (int) Math.ceil(initialConcurrency * Math.max(1.0, tc.getMaxConcurrencyRatio()));
+            AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(fc.getFhirBaseURL(), tc,
+                    initialConcurrency, maxConcurrency);
+            LIMITERS.put(fc.getFhirBaseURL(), limiter);
+            builder.addInterceptor(limiter);
+            Metrics.getInstance().gauge("fhir_concurrency_limit", "Requests the adaptive limiter lets in flight",
+                    limiter::getLimit);
+            Metrics.getInstance().gauge("fhir_requests_in_flight", "Requests holding a slot of the adaptive limiter",
+                    limiter::getInFlight);
+        }
+        builder.addNetworkInterceptor(new MetricsInterceptor(fc));
+        if (!tc.isCompressResponses()) {
+            // OkHttp asks for gzip and decompresses transparently unless the request names an encoding itself
+            builder.addNetworkInterceptor(chain -> chain.proceed(chain.request().newBuilder()
+                    .header("Accept-Encoding", "identity")
+                    .build()));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,92 @@
+package com.oncolens.fhirengine.util;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.oncolens.fhirengine.model.PatientIdCacheEntry;
+import lombok.extern.slf4j.Slf4j;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Remembers across runs which Patient (logical id and version) a cohort identifier resolved to, one JSON file per
+ * site (fhirBaseURL) in conformanceCacheDir, keyed by system|identifier. The bridges fetch known patients by id and
+ * only search by identifier for new ones or for entries that no longer hold.
+ */
+@Slf4j
+public class PatientIdCache {
+
+    private static final Map<String, PatientIdCache> CACHES = new ConcurrentHashMap<>();
+    private static final TypeReference<Map<String, PatientIdCacheEntry>> ENTRIES_TYPE = new TypeReference<>() {
+    };
+
+    private final File file;
+    private final boolean enabled;
+    private final Map<String, PatientIdCacheEntry> entries;
+
+    private PatientIdCache(FhirConfig fc) {
+        this.file = FhirUtilBase.getSiteFile(fc.getConformanceCacheDir(), "patient-ids", fc.getFhirBaseURL(),
+                ".json");
+        this.enabled = fc.isPatientIdCacheEnabled();
+        this.entries = enabled ? read(file) : new HashMap<>();
+    }
+
+    public static PatientIdCache getInstance(FhirConfig fc) {
+        return CACHES.computeIfAbsent(fc.getFhirBaseURL(), key -> new PatientIdCache(fc));
+    }
+
+    public synchronized String getPatientId(String system, String identifier) {
+        PatientIdCacheEntry entry = entries.get(system + "|" + identifier);
+        return (entry == null) ? null : entry.getPatientId();
+    }
+
+    /*
+     * Records every identifier that resolved to exactly one patient and forgets the ones that did not
+     */
+    public synchronized void update(Map<String, List<IBaseResource>> resolvedPatients) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, List<IBaseResource>> resolved : resolvedPatients.entrySet()) {
+            if (resolved.getValue().size() != 1) {
+                entries.remove(resolved.getKey());
+                continue;
+            }
+            IBaseResource patient = resolved.getValue().get(0);
+            PatientIdCacheEntry entry = new PatientIdCacheEntry();
+            entry.setPatientId(patient.getIdElement().getIdPart());
+            entry.setVersionId((patient.getIdElement().getVersionIdPart() != null)
+                    ? patient.getIdElement().getVersionIdPart() : patient.getMeta().getVersionId());
+            entry.setResolvedAt(now);
+            PatientIdCacheEntry previous = entries.put(resolved.getKey(), entry);
+            if (previous != null && previous.getVersionId() != null
+                    && !previous.getVersionId().equals(entry.getVersionId())) {
+                log.debug("Patient {} changed since the last run (version {} -> {})", entry.getPatientId(),
+                        previous.getVersionId(), entry.getVersionId());
+            }
+        }
+    }
+
+    public synchronized void save() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            FhirUtilBase.writeJsonAtomically(file, entries);
+            log.info("Saved {} patient ids to {}", entries.size(), file);
+        } catch (IOException e) {
+            log.warn("Unable to write patient id cache {}", file, e);
+        }
+    }
+
+    private static Map<String, PatientIdCacheEntry> read(File file) {
+        Map<String, PatientIdCacheEntry> entries = FhirUtilBase.readJsonLeniently(file, ENTRIES_TYPE,
+                "patient id cache");
+        return (entries == null) ? new HashMap<>() : entries;
+    }
+}
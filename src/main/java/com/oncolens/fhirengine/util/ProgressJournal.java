@@ -0,0 +1,121 @@
+package com.oncolens.fhirengine.util;
+
+import com.oncolens.fhirengine.model.JournalRecord;
+import com.oncolens.fhirengine.model.SegmentManifestEntry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Append-only record of the patients whose data has reached S3, one JSON line per patient with the extract types it
+ * covers. Lines are fsynced every journalSyncEvery records and on close, so a crash loses at most that many records
+ * and those patients are simply extracted again. With resume on, the journal of the previous run against the same
+ * site and cohort file is read on start and its patients are skipped; otherwise it is started afresh.
+ */
+@Slf4j
+public class ProgressJournal {
+
+    private static ProgressJournal journal;
+
+    private final Map<String, JournalRecord> completed = new HashMap<>();
+    private final int syncEvery;
+    private final FileOutputStream out;
+    private final Writer writer;
+    private int unsynced;
+
+    private ProgressJournal(FhirConfig fc) throws IOException {
+        File file = FhirUtilBase.getSiteFile(fc.getJournalDir(), "journal",
+                fc.getFhirBaseURL() + "|" + fc.getCohortListFile(), ".ndjson");
+        Files.createDirectories(file.getParentFile().toPath());
+        if (fc.isResume() && file.exists()) {
+            readCompleted(file);
+            log.info("Resuming from journal {}, {} patients already completed", file, completed.size());
+        }
+        this.syncEvery = Math.max(1, fc.getJournalSyncEvery());
+        this.out = new FileOutputStream(file, fc.isResume());
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    public static synchronized ProgressJournal getInstance(FhirConfig fc) throws IOException {
+        if (journal == null) {
+            journal = new ProgressJournal(fc);
+        }
+        return journal;
+    }
+
+    /*
+     * Syncs and closes the journal of the run, if one was opened
+     */
+    public static synchronized void closeInstance() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    public synchronized boolean isComplete(String patientId, List<String> extracts) {
+        JournalRecord record = completed.get(patientId);
+        return record != null && record.getExtracts().containsAll(extracts);
+    }
+
+    /*
+     * Manifest entries of patients that an earlier run already packed into uploaded segments
+     */
+    public synchronized List<SegmentManifestEntry> getCompletedSegmentEntries() {
+        List<SegmentManifestEntry> entries = new ArrayList<>();
+        for (JournalRecord record : completed.values()) {
+            if (record.getSegment() != null) {
+                entries.add(record.getSegment());
+            }
+        }
+        return entries;
+    }
+
+    public synchronized void record(JournalRecord record) throws IOException {
+        record.setCompletedAt(System.currentTimeMillis());
+        writer.write(FhirUtilBase.JSONMAPPER.writeValueAsString(record));
+        writer.write('\n');
+        if (++unsynced >= syncEvery) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        writer.flush();
+        out.getFD().sync();
+        unsynced = 0;
+    }
+
+    private synchronized void close() throws IOException {
+        sync();
+        writer.close();
+    }
+
+    private void readCompleted(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    JournalRecord record = FhirUtilBase.JSONMAPPER.readValue(line, JournalRecord.class);
+                    completed.put(record.getPatientId(), record);
+                } catch (IOException e) {
+                    // Only the last line can be torn, by a crash in the middle of a write
+                    log.warn("Ignoring unreadable journal line {}", line);
+                }
+            }
+        }
+    }
+}
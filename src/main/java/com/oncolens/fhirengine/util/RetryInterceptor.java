@@ -0,0 +1,109 @@
+package com.oncolens.fhirengine.util;
+
+import com.oncolens.fhirengine.FhirProcessor;
+import com.oncolens.fhirengine.model.AuditType;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Retries a single failed read (GET or HEAD: a search, a page of results, a Binary) rather than the patient or the
+ * run it belongs to. Connection failures, timeouts and 429/502/503/504 responses are retried up to
+ * retryMaxAttempts, waiting a random time below retryBaseDelayMillis x 2^attempt (capped at retryMaxDelayMillis),
+ * or longer if the server's Retry-After asks for it. Retries draw on a budget shared by the whole run: every
+ * request adds retryBudgetRatio of a retry to it, on top of retryBudgetMin to start with, so a server that is down
+ * for good does not get hammered with retries. Every retry is audited.
+ */
+@Slf4j
+public class RetryInterceptor implements Interceptor {
+
+    private static final Metrics.Counter RETRIES = Metrics.getInstance().counter("fhir_retries_total",
+            "Requests sent again after a failed attempt");
+    private static final Metrics.Counter BUDGET_EXHAUSTED = Metrics.getInstance().counter(
+            "fhir_retry_budget_exhausted_total", "Retries not made because the run's retry budget was used up");
+
+    private final FhirConfig fc;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final double budgetRatio;
+    private double budget;
+
+    public RetryInterceptor(FhirConfig fc) {
+        TransportConfig tc = fc.getTransport();
+        this.fc = fc;
+        this.maxAttempts = Math.max(1, tc.getRetryMaxAttempts());
+        this.baseDelayMillis = tc.getRetryBaseDelayMillis();
+        this.maxDelayMillis = tc.getRetryMaxDelayMillis();
+        this.budgetRatio = tc.getRetryBudgetRatio();
+        this.budget = tc.getRetryBudgetMin();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        boolean idempotent = "GET".equals(request.method()) || "HEAD".equals(request.method());
+        deposit();
+        for (int attempt = 1; ; attempt++) {
+            boolean lastAttempt = !idempotent || attempt >= maxAttempts;
+            Response response;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                if (lastAttempt || e instanceof InterruptedIOException && Thread.currentThread().isInterrupted()
+                        || !withdraw()) {
+                    throw e;
+                }
+                backOff(request, attempt, 0, e.toString());
+                continue;
+            }
+            if (lastAttempt || !isRetryable(response.code()) || !withdraw()) {
+                return response;
+            }
+            long retryAfterMillis = FhirUtilBase.parseRetryAfterMillis(response.header("Retry-After"), 0);
+            response.close();
+            backOff(request, attempt, retryAfterMillis, "status " + response.code());
+        }
+    }
+
+    private static boolean isRetryable(int code) {
+        return code == 429 || code == 502 || code == 503 || code == 504;
+    }
+
+    private synchronized void deposit() {
+        budget += budgetRatio;
+    }
+
+    private synchronized boolean withdraw() {
+        if (budget < 1) {
+            log.warn("Retry budget of the run is used up, not retrying");
+            BUDGET_EXHAUSTED.inc();
+            return false;
+        }
+        budget--;
+        return true;
+    }
+
+    private void backOff(Request request, int attempt, long retryAfterMillis, String reason)
+            throws InterruptedIOException {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        long delayMillis = Math.max(retryAfterMillis, ThreadLocalRandom.current().nextLong(ceiling + 1));
+        log.info("Retrying {} in {} ms after attempt {} failed ({})", request.url(), delayMillis, attempt, reason);
+        RETRIES.inc();
+        FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fc, AuditType.RETRIED,
+                request.url().encodedPath(), FhirProcessor.PROCESSUUID, fc.getCohortListFile(),
+                "Attempt " + attempt + " of " + request.method() + " " + request.url() + " failed (" + reason
+                        + "), retrying in " + delayMillis + " ms"));
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry " + request.url());
+        }
+    }
+}
@@ -1,11 +1,22 @@
 package com.oncolens.fhirengine.util;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
+import com.oncolens.fhirengine.model.CompressionCodec;
 import lombok.extern.slf4j.Slf4j;
 import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 import software.amazon.awssdk.services.secretsmanager.SecretsManagerClient;
@@ -18,8 +29,18 @@ import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.Bucket;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import software.amazon.awssdk.auth.credentials.*;
 
 @Slf4j
@@ -27,11 +48,42 @@ public class S3Access {
 
     private static S3Access s3Access;
 
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final Metrics.Histogram SYNC_UPLOAD_SECONDS = Metrics.getInstance().histogram("s3_upload_seconds",
+            "Time to store an object in S3", "mode", "sync");
+    private static final Metrics.Histogram ASYNC_UPLOAD_SECONDS = Metrics.getInstance().histogram("s3_upload_seconds",
+            "Time to store an object in S3", "mode", "async");
+    private static final Metrics.Counter UPLOAD_FAILURES = Metrics.getInstance().counter("s3_upload_failures_total",
+            "Objects that could not be stored in S3");
+
     private final S3Client s3Client;
+    private final S3AsyncClient s3AsyncClient;
+    private final Semaphore uploadPermits;
+    private final Set<CompletableFuture<Void>> pendingUploads = ConcurrentHashMap.newKeySet();
+    private final long multipartThreshold;
+    private final long partSize;
+    private final CompressionCodec codec;
+    private final int compressionLevel;
 
     private S3Access(FhirConfig fc) {
 
-        s3Client = S3Client.builder().credentialsProvider(getCredentialProvider()).build();
+        S3ClientBuilder clientBuilder = S3Client.builder().credentialsProvider(getCredentialProvider());
+        S3AsyncClientBuilder asyncClientBuilder = S3AsyncClient.builder().credentialsProvider(getCredentialProvider());
+        if (fc.getS3EndPoint() != null && !fc.getS3EndPoint().isEmpty()) {
+            // An S3 compatible store (or a local stand-in) rather than AWS, addressed by path since its host name is
+            // not a bucket's
+            log.info("Using S3 endpoint {}", fc.getS3EndPoint());
+            S3Configuration pathStyle = S3Configuration.builder().pathStyleAccessEnabled(true).build();
+            clientBuilder.endpointOverride(URI.create(fc.getS3EndPoint())).serviceConfiguration(pathStyle);
+            asyncClientBuilder.endpointOverride(URI.create(fc.getS3EndPoint())).serviceConfiguration(pathStyle);
+        }
+        s3Client = clientBuilder.build();
+        s3AsyncClient = asyncClientBuilder.build();
+        uploadPermits = new Semaphore(Math.max(1, fc.getS3UploadsInFlight()));
+        partSize = Math.max(MIN_PART_SIZE, fc.getS3PartSize());
+        multipartThreshold = Math.max(partSize, fc.getS3MultipartThreshold());
+        codec = fc.getCompressionCodec();
+        compressionLevel = fc.getCompressionLevel();
     }
 
     public static AwsCredentialsProvider getCredentialProvider() {
@@ -54,28 +106,46 @@ public class S3Access {
         }*/
     }
 
-    public static S3Access getInstance(FhirConfig fc) {
+    public static synchronized S3Access getInstance(FhirConfig fc) {
         if (s3Access == null) {
             s3Access = new S3Access(fc);
         }
         return s3Access;
     }
 
+    /*
+     * The bytes are compressed with the configured codec before the upload
+     */
     public void upload(byte[] bytes, FhirConfig fc, String docId, String filePath, String fileSuffix,
                        String contentType) throws IOException {
-        final String bucket = "oncofhir-" + fc.getEnvironment() + "-" + fc.getCustomer();
-        String file = filePath + '-' + docId;
-        if (fileSuffix != null) {
-            file = file + fileSuffix;
-        }
+        upload(RequestBody.fromBytes(codec.compress(bytes, compressionLevel)), fc, docId, filePath, fileSuffix,
+                contentType);
+    }
+
+    /*
+     * Streams the file from disk, so large extracts are never loaded into memory for the upload. The file is expected
+     * to have been written through the configured codec already, see CompressionCodec.wrap.
+     */
+    public void upload(File source, FhirConfig fc, String docId, String filePath, String fileSuffix,
+                       String contentType) throws IOException {
+        upload(RequestBody.fromFile(source), fc, docId, filePath, fileSuffix, contentType);
+    }
+
+    private void upload(RequestBody requestBody, FhirConfig fc, String docId, String filePath, String fileSuffix,
+                        String contentType) throws IOException {
+        final String bucket = getBucket(fc);
+        String file = getKey(docId, filePath, fileSuffix);
       //  try {
             long start = System.currentTimeMillis();
 
             PutObjectRequest req = PutObjectRequest.builder()
                     .bucket(bucket)
                     .key(file)
+                    .contentType(contentType)
+                    .contentEncoding(codec.getContentEncoding())
                     .build();
-            final PutObjectResponse putObjectResponse = s3Client.putObject(req, RequestBody.fromBytes(bytes));
+            final PutObjectResponse putObjectResponse = s3Client.putObject(req, requestBody);
+            SYNC_UPLOAD_SECONDS.observe((System.currentTimeMillis() - start) / 1000.0);
             log.debug("Putting object complete. [id={}, bucket={}, file={}, runtime={}ms]",
                     docId, bucket, file, System.currentTimeMillis() - start);
 
@@ -84,4 +154,161 @@ public class S3Access {
    //     }
     }
 
-}
\ No newline at end of file
+    /*
+     * Queues the file for upload on the async client and returns once the upload has started. At most
+     * s3UploadsInFlight uploads run at a time, callers block here until one of them finishes. Files larger than
+     * s3MultipartThreshold go up in s3PartSize parts, one part at a time, so memory stays at one part per upload.
+     * The file must not be modified until awaitUploads has returned. onUploaded (may be null) runs once the object is
+     * stored, and awaitUploads also waits for it. The returned future completes after onUploaded.
+     */
+    public CompletableFuture<Void> uploadAsync(File source, FhirConfig fc, String docId, String filePath, String fileSuffix,
+                            String contentType, Runnable onUploaded) throws IOException {
+        final String bucket = getBucket(fc);
+        final String file = getKey(docId, filePath, fileSuffix);
+        try {
+            uploadPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to upload " + file, e);
+        }
+        long start = System.currentTimeMillis();
+        CompletableFuture<Void> upload;
+        try {
+            upload = (source.length() > multipartThreshold)
+                    ? putMultipart(source, bucket, file, contentType)
+                    : s3AsyncClient.putObject(PutObjectRequest.builder()
+                                    .bucket(bucket)
+                                    .key(file)
+                                    .contentType(contentType)
+                                    .contentEncoding(codec.getContentEncoding())
+                                    .build(),
+                            AsyncRequestBody.fromFile(source)).thenApply(response -> null);
+        } catch (RuntimeException e) {
+            uploadPermits.release();
+            throw e;
+        }
+        upload.whenComplete((ignored, error) -> {
+            uploadPermits.release();
+            if (error == null) {
+                ASYNC_UPLOAD_SECONDS.observe((System.currentTimeMillis() - start) / 1000.0);
+                log.debug("Putting object complete. [id={}, bucket={}, file={}, runtime={}ms]",
+                        docId, bucket, file, System.currentTimeMillis() - start);
+            } else {
+                UPLOAD_FAILURES.inc();
+                log.error("Putting object failed. [id={}, bucket={}, file={}]", docId, bucket, file, error);
+            }
+        });
+        CompletableFuture<Void> uploaded = (onUploaded == null) ? upload : upload.thenRun(onUploaded);
+        pendingUploads.add(uploaded);
+        return uploaded;
+    }
+
+    /*
+     * Waits for every upload queued so far. Fails with the first upload error after all of them have settled.
+     */
+    public void awaitUploads() throws IOException {
+        List<CompletableFuture<Void>> uploads = new ArrayList<>(pendingUploads);
+        log.info("Waiting for {} pending uploads", uploads.size());
+        IOException failure = null;
+        for (CompletableFuture<Void> upload : uploads) {
+            try {
+                upload.join();
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = new IOException("S3 upload failed", e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+            pendingUploads.remove(upload);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private CompletableFuture<Void> putMultipart(File source, String bucket, String file, String contentType) {
+        CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(file)
+                .contentType(contentType)
+                .contentEncoding(codec.getContentEncoding())
+                .build();
+        return s3AsyncClient.createMultipartUpload(createRequest).thenCompose(created -> {
+            String uploadId = created.uploadId();
+            List<CompletedPart> parts = new ArrayList<>();
+            return uploadPart(source, bucket, file, uploadId, 1, parts)
+                    .thenCompose(ignored -> s3AsyncClient.completeMultipartUpload(
+                            CompleteMultipartUploadRequest.builder()
+                                    .bucket(bucket)
+                                    .key(file)
+                                    .uploadId(uploadId)
+                                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                                    .build()))
+                    .handle((completed, error) -> {
+                        if (error == null) {
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        // Leaving the upload open would keep billing for the parts already stored
+                        return s3AsyncClient.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                                .bucket(bucket)
+                                .key(file)
+                                .uploadId(uploadId)
+                                .build())
+                                .handle((aborted, abortError) -> {
+                                    throw (error instanceof CompletionException)
+                                            ? (CompletionException) error : new CompletionException(error);
+                                });
+                    })
+                    .thenCompose(result -> result.thenApply(ignored -> (Void) null));
+        });
+    }
+
+    private CompletableFuture<Void> uploadPart(File source, String bucket, String file, String uploadId,
+                                               int partNumber, List<CompletedPart> parts) {
+        long offset = (partNumber - 1) * partSize;
+        if (offset >= source.length()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        byte[] bytes;
+        try {
+            bytes = readPart(source, offset);
+        } catch (IOException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return s3AsyncClient.uploadPart(builder -> builder
+                        .bucket(bucket)
+                        .key(file)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .contentLength((long) bytes.length),
+                AsyncRequestBody.fromBytes(bytes))
+                .thenCompose(response -> {
+                    parts.add(CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build());
+                    return uploadPart(source, bucket, file, uploadId, partNumber + 1, parts);
+                });
+    }
+
+    private byte[] readPart(File source, long offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+            byte[] bytes = new byte[(int) Math.min(partSize, raf.length() - offset)];
+            raf.seek(offset);
+            raf.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    private static String getBucket(FhirConfig fc) {
+        return "oncofhir-" + fc.getEnvironment() + "-" + fc.getCustomer();
+    }
+
+    String getKey(String docId, String filePath, String fileSuffix) {
+        String file = filePath + '-' + docId;
+        if (fileSuffix != null) {
+            file = file + fileSuffix;
+        }
+        return file + codec.getFileSuffix();
+    }
+}
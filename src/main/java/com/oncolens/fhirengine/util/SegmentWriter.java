@@ -0,0 +1,151 @@
+package com.oncolens.fhirengine.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.oncolens.fhirengine.model.SegmentManifestEntry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/*
+ * Packs the NDJSON files of many patients into rolling segments. A segment is closed and queued for upload once it
+ * reaches segmentMaxBytes or segmentMaxPatients, whichever comes first. Every patient gets a manifest line with the
+ * segment, byte offset and length of its data once that segment has reached S3, and the manifest is uploaded when
+ * the writer is closed and every segment upload has settled, so it never points at a segment that is not there.
+ * Patients are appended whole, so workers extract into their own file and only the append is serialized. With
+ * compression on, every patient is its own gzip member / zstd frame, so a patient's range decodes on its own.
+ */
+@Slf4j
+public class SegmentWriter {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final FhirConfig fc;
+    private final String runId;
+    private final ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    private int segmentNumber;
+    private File segmentFile;
+    private OutputStream segmentOut;
+    private long segmentBytes;
+    private int segmentPatients;
+    private List<Runnable> segmentCallbacks = new ArrayList<>();
+    private final List<CompletableFuture<Void>> segmentUploads = new ArrayList<>();
+
+    /*
+     * carriedOver are the entries of patients an interrupted run already uploaded, so the manifest of the resumed
+     * run covers the whole cohort
+     */
+    public SegmentWriter(FhirConfig fc, String runId, List<SegmentManifestEntry> carriedOver) throws IOException {
+        this.fc = fc;
+        this.runId = runId;
+        for (SegmentManifestEntry entry : carriedOver) {
+            addToManifest(entry);
+        }
+    }
+
+    /*
+     * delta marks an incremental extract, onUploaded is called with the patient's manifest entry once the segment
+     * holding it has reached S3
+     */
+    public synchronized SegmentManifestEntry append(String patientId, String identifier, File patientFile,
+                                                    long resources, boolean delta,
+                                                    Consumer<SegmentManifestEntry> onUploaded)
+            throws IOException {
+        if (segmentOut == null) {
+            openSegment();
+        }
+        long offset = segmentBytes;
+        long length = Files.copy(patientFile.toPath(), segmentOut);
+        segmentBytes += length;
+        segmentPatients++;
+        SegmentManifestEntry entry = SegmentManifestEntry.builder()
+                .patientId(patientId)
+                .identifier(identifier)
+                .segment(S3Access.getInstance(fc).getKey(getSegmentId(), fc.getDataOutputFilePath(), null))
+                .offset(offset)
+                .length(length)
+                .resources(resources)
+                .delta(delta)
+                .build();
+        byte[] manifestLine = manifestLine(entry);
+        segmentCallbacks.add(() -> {
+            manifest.write(manifestLine, 0, manifestLine.length);
+            onUploaded.accept(entry);
+        });
+        if (segmentBytes >= fc.getSegmentMaxBytes() || segmentPatients >= fc.getSegmentMaxPatients()) {
+            closeSegment();
+        }
+        return entry;
+    }
+
+    /*
+     * Uploads the last, partly filled segment, waits for the segment uploads and then uploads the manifest. The
+     * patients of a segment that failed to upload are left out of it, the failure itself surfaces from awaitUploads.
+     */
+    public synchronized void close() throws IOException {
+        if (segmentOut != null) {
+            closeSegment();
+        }
+        for (CompletableFuture<Void> upload : segmentUploads) {
+            try {
+                upload.join();
+            } catch (CompletionException e) {
+                log.warn("A segment failed to upload, its patients are left out of the manifest");
+            }
+        }
+        String manifestId = runId + "-manifest";
+        FhirUtilBase.writeBytesToFile(fc.getDataOutputFilePath(), manifestId, manifest.toByteArray(),
+                fc.getCompressionCodec(), fc.getCompressionLevel());
+        S3Access.getInstance(fc).upload(manifest.toByteArray(), fc, manifestId, fc.getDataOutputFilePath(), null,
+                "text/plain");
+        log.info("Uploaded manifest for {} segments", segmentNumber);
+    }
+
+    private void openSegment() throws IOException {
+        segmentNumber++;
+        segmentFile = FhirUtilBase.getOutputFile(fc.getDataOutputFilePath(),
+                getSegmentId() + fc.getCompressionCodec().getFileSuffix());
+        segmentOut = new FileOutputStream(segmentFile);
+        segmentBytes = 0;
+        segmentPatients = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        segmentOut.close();
+        segmentOut = null;
+        log.info("Closed segment {} with {} patients, {} bytes", segmentNumber, segmentPatients, segmentBytes);
+        List<Runnable> callbacks = segmentCallbacks;
+        segmentCallbacks = new ArrayList<>();
+        segmentUploads.add(S3Access.getInstance(fc).uploadAsync(segmentFile, fc, getSegmentId(),
+                fc.getDataOutputFilePath(), null, "text/plain", () -> callbacks.forEach(Runnable::run)));
+    }
+
+    private void addToManifest(SegmentManifestEntry entry) throws IOException {
+        byte[] line = manifestLine(entry);
+        manifest.write(line, 0, line.length);
+    }
+
+    /*
+     * Written with a single call, lines added from concurrent upload callbacks never interleave
+     */
+    private static byte[] manifestLine(SegmentManifestEntry entry) throws IOException {
+        byte[] json = MAPPER.writeValueAsBytes(entry);
+        byte[] line = new byte[json.length + 1];
+        System.arraycopy(json, 0, line, 0, json.length);
+        line[json.length] = '\n';
+        return line;
+    }
+
+    private String getSegmentId() {
+        return String.format("%s-segment-%05d", runId, segmentNumber);
+    }
+}
@@ -0,0 +1,91 @@
+package com.oncolens.fhirengine.util;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.oncolens.fhirengine.FhirProcessor;
+import com.oncolens.fhirengine.model.AuditType;
+import com.oncolens.fhirengine.model.SkippedWorkRecord;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Extracts the bridges gave up on for a patient because the endpoint behind them was failing, typically while its
+ * circuit was open, or because the server rejected one of their searches. The patient's other extracts still go
+ * out, but the skipped ones are left out of its journal record and their watermarks do not move, so a later run
+ * with resume on extracts them again once the endpoint has recovered. Each skip is audited and appended to
+ * journalDir/skipped-<site and cohort>.ndjson for reference.
+ */
+@Slf4j
+public class SkippedWork {
+
+    private static SkippedWork skippedWork;
+
+    private final FhirConfig fc;
+    private final File file;
+    private final Map<String, Set<String>> skipped = new HashMap<>();
+
+    private SkippedWork(FhirConfig fc) {
+        this.fc = fc;
+        this.file = FhirUtilBase.getSiteFile(fc.getJournalDir(), "skipped",
+                fc.getFhirBaseURL() + "|" + fc.getCohortListFile(), ".ndjson");
+    }
+
+    public static synchronized SkippedWork getInstance(FhirConfig fc) {
+        if (skippedWork == null) {
+            skippedWork = new SkippedWork(fc);
+        }
+        return skippedWork;
+    }
+
+    public synchronized void record(String patientId, String extract, Throwable cause) {
+        skipped.computeIfAbsent(patientId, key -> new HashSet<>()).add(extract);
+        log.warn("Skipped {} for patient {}: {}", extract, patientId, cause.getMessage());
+        FhirProcessor.auditEventList.add(FhirUtilBase.processAuditEvent(fc, AuditType.SKIPPED, "Patient/" + patientId,
+                FhirProcessor.PROCESSUUID, fc.getCohortListFile(), "Skipped " + extract
+                        + ", left for a later resumed run - " + cause.getMessage()));
+        SkippedWorkRecord record = new SkippedWorkRecord();
+        record.setPatientId(patientId);
+        record.setExtract(extract);
+        record.setReason(cause.getMessage());
+        record.setSkippedAt(System.currentTimeMillis());
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            try (OutputStream out = new FileOutputStream(file, true)) {
+                out.write(FhirUtilBase.JSONMAPPER.writeValueAsString(record).getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            log.warn("Unable to write skipped work to {}", file, e);
+        }
+    }
+
+    /*
+     * Failures that are down to the endpoint rather than the request: the connection, a 429 or 5xx after the
+     * transport's retries, or an open circuit
+     */
+    public static boolean isEndpointFailure(Throwable t) {
+        if (t instanceof FhirClientConnectionException) {
+            return true;
+        }
+        if (t instanceof BaseServerResponseException) {
+            int status = ((BaseServerResponseException) t).getStatusCode();
+            return status == 429 || status >= 500;
+        }
+        return false;
+    }
+
+    public synchronized Set<String> getSkipped(String patientId) {
+        return new HashSet<>(skipped.getOrDefault(patientId, Collections.emptySet()));
+    }
+}
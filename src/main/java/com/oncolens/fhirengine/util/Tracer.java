@@ -0,0 +1,211 @@
+package com.oncolens.fhirengine.util;
+
+import com.oncolens.fhirengine.model.TraceSpan;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Optional span trace of the run, one tree per patient: the extract, its fetchers, every request and following page,
+ * serialization, the local write and the upload. Each span is written as a JSON line to
+ * auditOutputFilePath-trace when it ends, and the file goes to S3 next to the audit. With tracing off every span is
+ * the shared NOOP span, so instrumented code costs a thread local read and nothing is allocated. With it on a span
+ * costs an object and a buffered line, against requests that take milliseconds.
+ *
+ * A span started with child becomes the current span of its thread until it is closed, so nested code and the
+ * transport pick it up through Tracer.span. Work handed to another thread starts its span from a parent captured
+ * beforehand; detached starts a span that is ended elsewhere, typically on a completion thread.
+ */
+@Slf4j
+public class Tracer {
+
+    public static final Span NOOP = new Span(null, null, null, null, false);
+    private static final ThreadLocal<Span> CURRENT = ThreadLocal.withInitial(() -> NOOP);
+    private static final AtomicLong SPAN_IDS = new AtomicLong();
+    // Converts System.nanoTime to epoch micros, so durations stay monotonic
+    private static final long EPOCH_MICROS_AT_NANO_ZERO = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+    private static Tracer tracer;
+
+    private final FhirConfig fc;
+    private final File file;
+    private Writer writer;
+
+    private Tracer(FhirConfig fc) {
+        this.fc = fc;
+        this.file = FhirUtilBase.getOutputFile(fc.getAuditOutputFilePath(),
+                "trace" + fc.getCompressionCodec().getFileSuffix());
+    }
+
+    public static synchronized Tracer getInstance(FhirConfig fc) {
+        if (tracer == null) {
+            tracer = new Tracer(fc);
+        }
+        return tracer;
+    }
+
+    /*
+     * Root span of a trace, made current on the calling thread. The NOOP span when tracing is off.
+     */
+    public Span start(String traceId, String name) {
+        if (!fc.isTracing()) {
+            return NOOP;
+        }
+        return new Span(this, traceId, null, name, true);
+    }
+
+    /*
+     * Current span of the calling thread, NOOP outside a trace
+     */
+    public static Span current() {
+        return CURRENT.get();
+    }
+
+    /*
+     * Child of the calling thread's current span, made current in its place
+     */
+    public static Span span(String name) {
+        return CURRENT.get().child(name);
+    }
+
+    private synchronized void write(TraceSpan span) {
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(fc.getCompressionCodec().wrap(
+                        new FileOutputStream(file), fc.getCompressionLevel()), StandardCharsets.UTF_8));
+            }
+            writer.write(FhirUtilBase.JSONMAPPER.writeValueAsString(span));
+            writer.write('\n');
+        } catch (IOException e) {
+            // The trace is a diagnostic, losing it must not fail the run
+            log.warn("Unable to write trace span {} of {}", span.getName(), span.getTraceId(), e);
+        }
+    }
+
+    /*
+     * Closes the trace file and returns it, null when no span was written
+     */
+    public synchronized File close() throws IOException {
+        if (writer == null) {
+            return null;
+        }
+        writer.close();
+        writer = null;
+        return file;
+    }
+
+    public static class Span implements AutoCloseable {
+        private final Tracer tracer;
+        private final String traceId;
+        private final long spanId;
+        private final Long parentId;
+        private final String name;
+        private final String thread;
+        private final long startNanos;
+        private final Span previous;
+        private Map<String, Object> attributes;
+        private boolean ended;
+
+        private Span(Tracer tracer, String traceId, Long parentId, String name, boolean makeCurrent) {
+            this.tracer = tracer;
+            this.traceId = traceId;
+            this.parentId = parentId;
+            this.name = name;
+            if (tracer == null) {
+                spanId = 0;
+                thread = null;
+                startNanos = 0;
+                previous = null;
+                return;
+            }
+            this.spanId = SPAN_IDS.incrementAndGet();
+            this.thread = Thread.currentThread().getName();
+            this.startNanos = System.nanoTime();
+            this.previous = makeCurrent ? CURRENT.get() : null;
+            if (makeCurrent) {
+                CURRENT.set(this);
+            }
+        }
+
+        public boolean isRecording() {
+            return tracer != null;
+        }
+
+        /*
+         * Child span made current on the calling thread until it is closed, which may be another thread than the
+         * one this span runs on
+         */
+        public Span child(String name) {
+            return (tracer == null) ? NOOP : new Span(tracer, traceId, spanId, name, true);
+        }
+
+        /*
+         * Child span that does not become current, to be ended with close from any thread
+         */
+        public Span detached(String name) {
+            return (tracer == null) ? NOOP : new Span(tracer, traceId, spanId, name, false);
+        }
+
+        public synchronized Span set(String key, Object value) {
+            if (tracer != null) {
+                if (attributes == null) {
+                    attributes = new LinkedHashMap<>();
+                }
+                attributes.put(key, value);
+            }
+            return this;
+        }
+
+        /*
+         * Records a span that has already happened, such as time summed over many short calls
+         */
+        public void record(String name, long startNanos, long durationNanos, Map<String, Object> attributes) {
+            if (tracer != null) {
+                tracer.write(toTraceSpan(traceId, SPAN_IDS.incrementAndGet(), spanId, name,
+                        Thread.currentThread().getName(), startNanos, durationNanos, attributes));
+            }
+        }
+
+        @Override
+        public void close() {
+            if (tracer == null) {
+                return;
+            }
+            long durationNanos = System.nanoTime() - startNanos;
+            TraceSpan span;
+            synchronized (this) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+                span = toTraceSpan(traceId, spanId, parentId, name, thread, startNanos, durationNanos, attributes);
+            }
+            if (previous != null && CURRENT.get() == this) {
+                CURRENT.set(previous);
+            }
+            tracer.write(span);
+        }
+    }
+
+    private static TraceSpan toTraceSpan(String traceId, long spanId, Long parentId, String name, String thread,
+                                         long startNanos, long durationNanos, Map<String, Object> attributes) {
+        TraceSpan span = new TraceSpan();
+        span.setTraceId(traceId);
+        span.setSpanId(spanId);
+        span.setParentId(parentId);
+        span.setName(name);
+        span.setThread(thread);
+        span.setStartMicros(EPOCH_MICROS_AT_NANO_ZERO + startNanos / 1000);
+        span.setDurationMicros(durationNanos / 1000);
+        span.setAttributes(attributes);
+        return span;
+    }
+}
@@ -0,0 +1,39 @@
+package com.oncolens.fhirengine.util;
+
+import lombok.Data;
+
+/*
+ * HTTP settings for the FHIR clients, read from the transport section of the config. Connection counts of 0 are
+ * derived from patientWorkers x resourceFetchWorkers, the number of searches that can be in flight at once. The
+ * requests in flight are capped by the adaptive concurrency limiter, between minConcurrency and maxConcurrency.
+ */
+@Data
+public class TransportConfig {
+    private int maxIdleConnections = 0;
+    private long keepAliveSeconds = 300;
+    private long connectTimeoutMillis = 10000;
+    private long readTimeoutMillis = 60000;
+    private long writeTimeoutMillis = 60000;
+    private long callTimeoutMillis = 0; // 0 means no limit for the whole call
+    private boolean http2 = true;
+    private boolean compressResponses = true;
+    private boolean retryOnConnectionFailure = true;
+    private boolean adaptiveConcurrency = true;
+    private int minConcurrency = 1;
+    private int maxConcurrency = 0; // 0 means maxConcurrencyRatio times the requests the workers can have in flight
+    private double maxConcurrencyRatio = 2.0;
+    private double backoffRatio = 0.5; // Applied to the limit on a 429 or 503
+    private double latencyBackoffRatio = 0.9; // Applied to the limit when latency rises above the tolerance
+    private double latencyTolerance = 3.0; // Multiple of the baseline latency still considered healthy
+    private int retryMaxAttempts = 4; // Including the first one, only reads are retried
+    private long retryBaseDelayMillis = 500;
+    private long retryMaxDelayMillis = 30000;
+    private double retryBudgetRatio = 0.1; // Retries earned by every request
+    private int retryBudgetMin = 50; // Retries available before any have been earned
+    private boolean circuitBreaker = true;
+    private int circuitWindowSize = 20; // Requests per endpoint the failure rate is taken over
+    private int circuitMinCalls = 10;
+    private double circuitFailureRateThreshold = 0.5;
+    private long circuitOpenSeconds = 60;
+    private int circuitHalfOpenProbes = 3;
+}
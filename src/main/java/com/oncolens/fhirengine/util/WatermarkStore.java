@@ -0,0 +1,107 @@
+package com.oncolens.fhirengine.util;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.oncolens.fhirengine.model.PatientWatermark;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * High-water marks for incremental extraction, one JSON file per site (fhirBaseURL) in conformanceCacheDir, keyed by
+ * patient id and extract type. A mark is the start of the last extract that reached S3, less watermarkOverlapSeconds
+ * for clock skew against the server, and the bridges only ask for resources with a _lastUpdated after it. Every
+ * fullRefreshDays a patient is extracted in full again, which is how deleted resources drop out of the output.
+ */
+@Slf4j
+public class WatermarkStore {
+
+    private static final Map<String, WatermarkStore> STORES = new ConcurrentHashMap<>();
+    private static final TypeReference<Map<String, PatientWatermark>> WATERMARKS_TYPE = new TypeReference<>() {
+    };
+
+    private final File file;
+    private final boolean enabled;
+    private final long fullRefreshMillis;
+    private final long overlapMillis;
+    private final Map<String, PatientWatermark> watermarks;
+
+    private WatermarkStore(FhirConfig fc) {
+        this.file = FhirUtilBase.getSiteFile(fc.getConformanceCacheDir(), "watermarks", fc.getFhirBaseURL(),
+                ".json");
+        this.enabled = fc.isIncremental();
+        this.fullRefreshMillis = TimeUnit.DAYS.toMillis(fc.getFullRefreshDays());
+        this.overlapMillis = TimeUnit.SECONDS.toMillis(fc.getWatermarkOverlapSeconds());
+        this.watermarks = enabled ? read(file) : new HashMap<>();
+    }
+
+    public static WatermarkStore getInstance(FhirConfig fc) {
+        return STORES.computeIfAbsent(fc.getFhirBaseURL(), key -> new WatermarkStore(fc));
+    }
+
+    /*
+     * True when the patient's next extract has to search without a _lastUpdated filter, which is always the case
+     * with incremental mode off
+     */
+    public synchronized boolean isFullRefreshDue(String patientId) {
+        if (!enabled) {
+            return true;
+        }
+        PatientWatermark watermark = watermarks.get(patientId);
+        return watermark == null
+                || (fullRefreshMillis > 0 && System.currentTimeMillis() - watermark.getLastFullRefresh() >= fullRefreshMillis);
+    }
+
+    /*
+     * The marks the patient's searches can be limited by, empty when a full extract is due
+     */
+    public synchronized Map<String, Long> getWatermarks(String patientId) {
+        if (isFullRefreshDue(patientId)) {
+            return Collections.emptyMap();
+        }
+        return new HashMap<>(watermarks.get(patientId).getLastUpdated());
+    }
+
+    /*
+     * Moves the patient's marks up to the given extract start, once the data of that extract is safely in S3
+     */
+    public synchronized void update(String patientId, Collection<String> extracts, long startedAt,
+                                    boolean fullRefresh) {
+        if (!enabled) {
+            return;
+        }
+        PatientWatermark watermark = watermarks.computeIfAbsent(patientId, key -> new PatientWatermark());
+        if (fullRefresh) {
+            watermark.getLastUpdated().clear();
+            watermark.setLastFullRefresh(startedAt);
+        }
+        for (String extract : extracts) {
+            watermark.getLastUpdated().merge(extract, startedAt - overlapMillis, Math::max);
+        }
+    }
+
+    public synchronized void save() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            FhirUtilBase.writeJsonAtomically(file, watermarks);
+            log.info("Saved watermarks of {} patients to {}", watermarks.size(), file);
+        } catch (IOException e) {
+            log.warn("Unable to write watermarks {}", file, e);
+        }
+    }
+
+    private static Map<String, PatientWatermark> read(File file) {
+        Map<String, PatientWatermark> watermarks = FhirUtilBase.readJsonLeniently(file, WATERMARKS_TYPE,
+                "watermarks");
+        // Without marks every patient is extracted in full, nothing is missed
+        return (watermarks == null) ? new HashMap<>() : watermarks;
+    }
+}
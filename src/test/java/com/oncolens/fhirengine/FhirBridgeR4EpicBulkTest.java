@@ -0,0 +1,261 @@
+package com.oncolens.fhirengine;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.oncolens.fhirengine.model.FhirBridgeType;
+import com.oncolens.fhirengine.model.JournalRecord;
+import com.oncolens.fhirengine.util.FhirConfig;
+import com.oncolens.fhirengine.util.FhirUtilBase;
+import com.oncolens.fhirengine.util.ProgressJournal;
+import com.oncolens.fhirengine.util.TokenResponse;
+import com.sun.net.httpserver.HttpExchange;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.oncolens.fhirengine.FhirTestServer.FHIR_JSON;
+import static com.oncolens.fhirengine.FhirTestServer.cohort;
+import static com.oncolens.fhirengine.FhirTestServer.ids;
+import static com.oncolens.fhirengine.FhirTestServer.send;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * The cohort's resources come from one $export: kick-off, status polls paced by the server's Retry-After, the
+ * manifest, and the NDJSON output files, whose lines are split by patient and handed to each patient's extract
+ */
+class FhirBridgeR4EpicBulkTest {
+
+    private static final String TOKEN = "bulk-token";
+    private static final List<String> PATIENTS = Arrays.asList("p1", "p2", "p3");
+    private static final int PENDING_POLLS = 2;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    // The NDJSON output files by name, each mixing the lines of every patient
+    private final Map<String, List<Resource>> outputFiles = new LinkedHashMap<>();
+    private final List<Long> pollTimes = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> downloadAuthorizations = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger deletes = new AtomicInteger();
+    private String kickOffBody;
+    private FhirTestServer server;
+
+    @TempDir
+    Path workDir;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        FhirProcessor.auditEventList.clear();
+        List<Resource> observations = new ArrayList<>();
+        List<Resource> conditions = new ArrayList<>();
+        for (int n = 0; n < 3; n++) {
+            for (String patientId : PATIENTS) {
+                observations.add(observation(patientId + "-obs" + n, patientId));
+                if (n < 2) {
+                    conditions.add(condition(patientId + "-cond" + n, patientId));
+                }
+            }
+        }
+        outputFiles.put("observation.ndjson", observations);
+        outputFiles.put("condition.ndjson", conditions);
+        server = new FhirTestServer().route(this::handle);
+        for (String patientId : PATIENTS) {
+            server.addPatient(patientId, "MRN-" + patientId);
+        }
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        server.close();
+        FhirProcessor.auditEventList.clear();
+        ProgressJournal.closeInstance();
+    }
+
+    @Test
+    void exportedLinesReachTheirPatientsExtract() throws IOException {
+        FhirConfig fc = config();
+        FhirBridgeR4EpicBulk bridge = newBridge(fc);
+        List<IBaseResource> patients = new ArrayList<>();
+        List<String> identifiers = bridge.createPatientCohort(cohort("MRN-p1", "MRN-p2", "MRN-p3"), "patientid",
+                patients);
+        assertEquals(3, patients.size());
+
+        // Kick-off for the cohort's patients and the extracts' resource types
+        assertTrue(kickOffBody.contains("Observation,Condition"), kickOffBody);
+        for (String patientId : PATIENTS) {
+            assertTrue(kickOffBody.contains("Patient/" + patientId), kickOffBody);
+        }
+        // Polled until complete, each time waiting as long as Retry-After asked for
+        assertEquals(PENDING_POLLS + 1, pollTimes.size());
+        for (int n = 1; n < pollTimes.size(); n++) {
+            assertTrue(pollTimes.get(n) - pollTimes.get(n - 1) >= 900,
+                    "Poll " + n + " came after " + (pollTimes.get(n) - pollTimes.get(n - 1)) + " ms");
+        }
+        assertEquals(Arrays.asList("Bearer " + TOKEN, "Bearer " + TOKEN), downloadAuthorizations);
+        assertEquals(1, deletes.get());
+
+        for (int n = 0; n < patients.size(); n++) {
+            String patientId = patients.get(n).getIdElement().getIdPart();
+            List<IBaseResource> written = new ArrayList<>();
+            bridge.createPatientExtracts(patients.get(n), identifiers.get(n),
+                    new ArrayList<>(fc.getExtracts()), written::add);
+
+            assertTrue(written.get(0) instanceof Patient);
+            assertEquals(patientId, written.get(0).getIdElement().getIdPart());
+            // The output files are downloaded in parallel, only the lines of each file keep their order
+            List<String> spooled = ids(written.subList(1, written.size()));
+            assertEquals(Arrays.asList(patientId + "-obs0", patientId + "-obs1", patientId + "-obs2"),
+                    spooled.stream().filter(id -> id.contains("-obs")).collect(Collectors.toList()));
+            assertEquals(Arrays.asList(patientId + "-cond0", patientId + "-cond1"),
+                    spooled.stream().filter(id -> id.contains("-cond")).collect(Collectors.toList()));
+            assertEquals(5, spooled.size());
+            for (IBaseResource resource : written.subList(1, written.size())) {
+                Reference subject = (resource instanceof Observation) ? ((Observation) resource).getSubject()
+                        : ((Condition) resource).getSubject();
+                assertEquals("Patient/" + patientId, subject.getReference());
+            }
+            assertFalse(new File(new File(fc.getBulkSpoolDir(), FhirProcessor.PROCESSUUID),
+                    patientId + ".ndjson").exists());
+        }
+        // Nothing but the cohort resolution went through searches
+        assertEquals(1, server.getPatientSearches().size());
+        assertTrue(server.getUnknownRequests().isEmpty(), server.getUnknownRequests().toString());
+        assertTrue(FhirProcessor.auditEventList.isEmpty());
+    }
+
+    @Test
+    void resumedRunExportsOnlyIncompletePatientsAndRemovesTheSpool() throws IOException {
+        FhirConfig fc = config();
+        // An earlier run completed p2
+        JournalRecord record = new JournalRecord();
+        record.setPatientId("p2");
+        record.setIdentifier("MRN-p2");
+        record.setExtracts(fc.getExtracts());
+        ProgressJournal.getInstance(fc).record(record);
+        ProgressJournal.closeInstance();
+        fc.setResume(true);
+
+        FhirBridgeR4EpicBulk bridge = newBridge(fc);
+        bridge.createPatientCohort(cohort("MRN-p1", "MRN-p2", "MRN-p3"), "patientid", new ArrayList<>());
+
+        assertTrue(kickOffBody.contains("Patient/p1"), kickOffBody);
+        assertFalse(kickOffBody.contains("Patient/p2"), kickOffBody);
+        assertTrue(kickOffBody.contains("Patient/p3"), kickOffBody);
+        File spoolDir = new File(fc.getBulkSpoolDir(), FhirProcessor.PROCESSUUID);
+        assertTrue(spoolDir.isDirectory());
+        // Nobody extracted p1 or p3, their spool files go with the directory
+        bridge.finish();
+        assertFalse(spoolDir.exists());
+    }
+
+    private FhirConfig config() {
+        FhirConfig fc = server.config(workDir, FhirBridgeType.R4EPICBULK);
+        fc.setExtracts(Arrays.asList("observation", "condition"));
+        fc.setBulkSpoolDir(workDir.resolve("spool").toString());
+        // Without a Retry-After the polls would follow each other immediately
+        fc.setBulkPollSeconds(0);
+        fc.setBulkExportTimeoutMinutes(1);
+        return fc;
+    }
+
+    private static FhirBridgeR4EpicBulk newBridge(FhirConfig fc) {
+        FhirBridgeR4EpicBulk bridge = new FhirBridgeR4EpicBulk() {
+            @Override
+            public TokenResponse requestAccessToken() {
+                TokenResponse token = new TokenResponse();
+                token.setAccess_token(TOKEN);
+                token.setToken_type("Bearer");
+                token.setExpires_in(3600L);
+                return token;
+            }
+        };
+        bridge.initialize(fc);
+        return bridge;
+    }
+
+    private static Observation observation(String id, String patientId) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.setSubject(new Reference("Patient/" + patientId));
+        return observation;
+    }
+
+    private static Condition condition(String id, String patientId) {
+        Condition condition = new Condition();
+        condition.setId(id);
+        condition.setSubject(new Reference("Patient/" + patientId));
+        return condition;
+    }
+
+    /*
+     * The $export kick-off, status, output files and cancellation, the cohort searches are left to the server
+     */
+    private boolean handle(HttpExchange exchange, String path) throws IOException {
+        String root = server.getRoot();
+        if (path.endsWith("/Patient/$export")) {
+            kickOffBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Location", root + "/fhir/bulkstatus/1");
+            send(exchange, 202, FHIR_JSON, new byte[0]);
+        } else if (path.endsWith("/bulkstatus/1") && "DELETE".equals(exchange.getRequestMethod())) {
+            deletes.incrementAndGet();
+            send(exchange, 202, FHIR_JSON, new byte[0]);
+        } else if (path.endsWith("/bulkstatus/1")) {
+            pollTimes.add(System.currentTimeMillis());
+            if (pollTimes.size() <= PENDING_POLLS) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.getResponseHeaders().set("X-Progress", "Exporting " + pollTimes.size());
+                send(exchange, 202, FHIR_JSON, new byte[0]);
+            } else {
+                send(exchange, 200, "application/json", manifest(root));
+            }
+        } else if (path.contains("/bulkfiles/")) {
+            downloadAuthorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+            StringBuilder ndjson = new StringBuilder();
+            for (Resource resource : outputFiles.get(path.substring(path.lastIndexOf('/') + 1))) {
+                ndjson.append(fhirContext.newJsonParser().encodeResourceToString(resource)).append('\n');
+            }
+            send(exchange, 200, "application/fhir+ndjson", ndjson.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private byte[] manifest(String root) throws IOException {
+        ObjectNode manifest = FhirUtilBase.JSONMAPPER.createObjectNode();
+        manifest.put("transactionTime", "2021-06-01T00:00:00Z");
+        manifest.put("request", root + "/fhir/Patient/$export");
+        manifest.put("requiresAccessToken", true);
+        ArrayNode output = manifest.putArray("output");
+        for (Map.Entry<String, List<Resource>> file : outputFiles.entrySet()) {
+            output.addObject()
+                    .put("type", file.getValue().get(0).fhirType())
+                    .put("url", root + "/fhir/bulkfiles/" + file.getKey())
+                    .put("count", file.getValue().size());
+        }
+        manifest.putArray("error");
+        return FhirUtilBase.JSONMAPPER.writeValueAsBytes(manifest);
+    }
+}
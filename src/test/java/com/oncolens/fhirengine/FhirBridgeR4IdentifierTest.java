@@ -0,0 +1,163 @@
+package com.oncolens.fhirengine;
+
+import com.oncolens.fhirengine.model.AuditEvent;
+import com.oncolens.fhirengine.model.AuditType;
+import com.oncolens.fhirengine.model.FhirBridgeType;
+import com.sun.net.httpserver.HttpExchange;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.oncolens.fhirengine.FhirTestServer.MRN;
+import static com.oncolens.fhirengine.FhirTestServer.cohort;
+import static com.oncolens.fhirengine.FhirTestServer.ids;
+import static com.oncolens.fhirengine.FhirTestServer.parameter;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Cohort lines are resolved to patients in batches, either as one batch Bundle or as one identifier search with
+ * comma separated values, and every patient found is handed back to the cohort line it was requested for
+ */
+class FhirBridgeR4IdentifierTest {
+
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    private boolean batchSupported;
+    private boolean rejectOrSearch;
+    private FhirTestServer server;
+
+    @TempDir
+    Path workDir;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        FhirProcessor.auditEventList.clear();
+        server = new FhirTestServer().route(this::handle).conformance(rest -> {
+            if (batchSupported) {
+                rest.addInteraction().setCode(CapabilityStatement.SystemRestfulInteraction.BATCH);
+            }
+        });
+        for (int n = 1; n <= 5; n++) {
+            server.addPatient("p" + n, "MRN" + n);
+        }
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+        FhirProcessor.auditEventList.clear();
+    }
+
+    @Test
+    void orSearchIsDemuxedBackToCohortLines() {
+        List<IBaseResource> patients = new ArrayList<>();
+        List<String> identifiers = newBridge().createPatientCohort(cohort("MRN3", "MRN1", "MRN5"), "patientid",
+                patients);
+
+        assertEquals(Arrays.asList("MRN3", "MRN1", "MRN5"), identifiers);
+        assertEquals(Arrays.asList("p3", "p1", "p5"), ids(patients));
+        assertEquals(1, server.getPatientSearches().size());
+        assertTrue(server.getPatientSearches().get(0).contains(","), server.getPatientSearches().get(0));
+        assertTrue(batchSizes.isEmpty());
+    }
+
+    @Test
+    void batchBundleIsDemuxedBackToCohortLines() {
+        batchSupported = true;
+        List<IBaseResource> patients = new ArrayList<>();
+        List<String> identifiers = newBridge().createPatientCohort(cohort("MRN2", "MRN4", "MRN1"), "patientid",
+                patients);
+
+        assertEquals(Arrays.asList("MRN2", "MRN4", "MRN1"), identifiers);
+        assertEquals(Arrays.asList("p2", "p4", "p1"), ids(patients));
+        assertEquals(Collections.singletonList(3), batchSizes);
+    }
+
+    @Test
+    void zeroOrSeveralMatchesFailValidation() {
+        // MRN2 is carried by a second record as well, MRN9 by none
+        server.addPatient("p2-duplicate", "MRN2");
+        List<IBaseResource> patients = new ArrayList<>();
+        List<String> identifiers = newBridge().createPatientCohort(cohort("MRN1", "MRN2", "MRN9", "MRN3"),
+                "patientid", patients);
+
+        assertEquals(Arrays.asList("MRN1", "MRN3"), identifiers);
+        assertEquals(Arrays.asList("p1", "p3"), ids(patients));
+        List<String> failed = FhirProcessor.auditEventList.stream()
+                .filter(event -> AuditType.VALIDATION_FAILED.getMessage().equals(event.getMessage()))
+                .map(AuditEvent::getSubject)
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList("Patient:" + MRN + ",MRN2", "Patient:" + MRN + ",MRN9"), failed);
+    }
+
+    @Test
+    void rejectedOrSearchFallsBackToOneSearchPerIdentifier() {
+        rejectOrSearch = true;
+        List<IBaseResource> patients = new ArrayList<>();
+        List<String> identifiers = newBridge().createPatientCohort(cohort("MRN4", "MRN2", "MRN3"), "patientid",
+                patients);
+
+        assertEquals(Arrays.asList("MRN4", "MRN2", "MRN3"), identifiers);
+        assertEquals(Arrays.asList("p4", "p2", "p3"), ids(patients));
+        // The rejected OR search, then one search per identifier
+        List<String> patientSearches = server.getPatientSearches();
+        assertEquals(4, patientSearches.size());
+        assertTrue(patientSearches.get(0).contains(","), patientSearches.get(0));
+        for (String search : patientSearches.subList(1, 4)) {
+            assertFalse(search.contains(","), search);
+        }
+    }
+
+    private FhirBridgeR4 newBridge() {
+        FhirBridgeR4 bridge = new FhirBridgeR4();
+        bridge.initialize(server.config(workDir, FhirBridgeType.R4EPIC));
+        return bridge;
+    }
+
+    /*
+     * Rejects OR searches when asked to, and answers batch Bundles entry by entry
+     */
+    private boolean handle(HttpExchange exchange, String path) throws IOException {
+        if (path.endsWith("/Patient")) {
+            if (!rejectOrSearch || !parameter(exchange.getRequestURI().getRawQuery(), "identifier").contains(",")) {
+                return false;
+            }
+            OperationOutcome outcome = new OperationOutcome();
+            outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.NOTSUPPORTED);
+            server.send(exchange, 400, outcome);
+            return true;
+        }
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            return false;
+        }
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        Bundle batch = (Bundle) (body.trim().startsWith("{") ? server.getFhirContext().newJsonParser()
+                : server.getFhirContext().newXmlParser()).parseResource(body);
+        batchSizes.add(batch.getEntry().size());
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.BATCHRESPONSE);
+        for (Bundle.BundleEntryComponent entry : batch.getEntry()) {
+            String url = entry.getRequest().getUrl();
+            response.addEntry().setResource(server.searchSet(parameter(url.substring(url.indexOf('?') + 1),
+                    "identifier"))).getResponse().setStatus("200 OK");
+        }
+        server.send(exchange, 200, response);
+        return true;
+    }
+}
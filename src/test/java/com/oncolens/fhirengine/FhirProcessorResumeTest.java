@@ -0,0 +1,52 @@
+package com.oncolens.fhirengine;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import com.oncolens.fhirengine.model.JournalRecord;
+import com.oncolens.fhirengine.util.FhirConfig;
+import com.oncolens.fhirengine.util.ProgressJournal;
+import com.oncolens.fhirengine.util.SkippedWork;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static com.oncolens.fhirengine.FhirTestServer.EXTRACTS;
+import static com.oncolens.fhirengine.FhirTestServer.journalConfig;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * An extract skipped for a failing endpoint stays out of the patient's journal record, so a resumed run does not
+ * take the patient as complete
+ */
+class FhirProcessorResumeTest {
+
+    @TempDir
+    Path journalDir;
+
+    @AfterEach
+    void closeJournal() throws IOException {
+        ProgressJournal.closeInstance();
+        FhirProcessor.auditEventList.clear();
+    }
+
+    @Test
+    void skippedExtractsAreRunAgainOnResume() throws IOException {
+        FhirConfig fc = journalConfig(journalDir, false);
+        SkippedWork.getInstance(fc).record("resume-p1", "procedure",
+                new FhirClientConnectionException("Circuit open for Procedure"));
+        JournalRecord record = FhirProcessor.newJournalRecord(fc, "resume-p1", "MRN1", EXTRACTS);
+        assertEquals(Arrays.asList("observation", "condition"), record.getExtracts());
+        ProgressJournal.getInstance(fc).record(record);
+        ProgressJournal.getInstance(fc).record(FhirProcessor.newJournalRecord(fc, "resume-p2", "MRN2", EXTRACTS));
+        ProgressJournal.closeInstance();
+
+        ProgressJournal resumed = ProgressJournal.getInstance(journalConfig(journalDir, true));
+        assertFalse(resumed.isComplete("resume-p1", EXTRACTS));
+        assertTrue(resumed.isComplete("resume-p2", EXTRACTS));
+    }
+}
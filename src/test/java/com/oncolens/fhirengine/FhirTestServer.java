@@ -0,0 +1,238 @@
+package com.oncolens.fhirengine;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.oncolens.fhirengine.model.FhirBridgeType;
+import com.oncolens.fhirengine.util.FhirConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.UriType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/*
+ * An R4 server on a local port for the bridge tests. It answers /metadata with the SMART oauth-uris the bridges look
+ * for and Patient identifier searches from the patients added to it, a test's route gets every other request first.
+ * Also makes the configs of the tests, for this server or for tests that never reach one.
+ */
+public class FhirTestServer implements AutoCloseable {
+
+    public static final String OAUTH_URIS = "http://fhir-registry.smarthealthit.org/StructureDefinition/oauth-uris";
+    public static final String MRN = "urn:oid:1.2.3.4";
+    public static final String FHIR_JSON = "application/fhir+json;charset=utf-8";
+    public static final List<String> EXTRACTS = Arrays.asList("observation", "condition", "procedure");
+
+    /*
+     * Returns false to leave the request to the server's own handling
+     */
+    public interface Route {
+        boolean handle(HttpExchange exchange, String path) throws IOException;
+    }
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+    // The patients the server holds, by system|value of each identifier they carry
+    private final Map<String, List<Patient>> patientsByIdentifier = new ConcurrentHashMap<>();
+    private final List<String> patientSearches = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> unknownRequests = Collections.synchronizedList(new ArrayList<>());
+    private final HttpServer server;
+    private Route route = (exchange, path) -> false;
+    private Consumer<CapabilityStatement.CapabilityStatementRestComponent> conformance = rest -> { };
+
+    public FhirTestServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fhir", this::handle);
+        server.start();
+    }
+
+    public FhirTestServer route(Route route) {
+        this.route = route;
+        return this;
+    }
+
+    /*
+     * Adds to the rest component of the CapabilityStatement, applied on every /metadata request
+     */
+    public FhirTestServer conformance(Consumer<CapabilityStatement.CapabilityStatementRestComponent> conformance) {
+        this.conformance = conformance;
+        return this;
+    }
+
+    public String getRoot() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public FhirContext getFhirContext() {
+        return fhirContext;
+    }
+
+    /*
+     * The query strings of the Patient searches, in the order they came in
+     */
+    public List<String> getPatientSearches() {
+        return patientSearches;
+    }
+
+    /*
+     * The requests that were answered with a 404
+     */
+    public List<String> getUnknownRequests() {
+        return unknownRequests;
+    }
+
+    public void addPatient(String id, String mrn) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        patient.addIdentifier().setSystem(MRN).setValue(mrn);
+        patientsByIdentifier.computeIfAbsent(MRN + "|" + mrn, key -> new ArrayList<>()).add(patient);
+    }
+
+    public FhirConfig config(Path workDir, FhirBridgeType fhirBridgeType) {
+        FhirConfig fc = new FhirConfig();
+        fc.setFhirBaseURL(getRoot() + "/fhir");
+        fc.setFhirBridgeType(fhirBridgeType);
+        fc.setFhirAuthNameSpace(OAUTH_URIS);
+        fc.setFhirAuthUrlKey("authorize");
+        fc.setFhirTokenUrlKey("token");
+        fc.setSiteId("site");
+        fc.setFhirSourceSystem("epic");
+        fc.setFhirVersion("R4");
+        fc.setCohortListFile("cohort.csv");
+        fc.setDataOutputFilePath(workDir.resolve("data").toString());
+        fc.setCcdOutputFilePath(workDir.resolve("ccd").toString());
+        fc.setAuditOutputFilePath(workDir.resolve("audit").toString());
+        fc.setConformanceCacheDir(workDir.resolve("cache").toString());
+        fc.setJournalDir(workDir.resolve("journal").toString());
+        fc.setPatientIdCacheEnabled(false);
+        return fc;
+    }
+
+    /*
+     * For the journal tests, which never reach a server
+     */
+    public static FhirConfig journalConfig(Path journalDir, boolean resume) {
+        FhirConfig fc = new FhirConfig();
+        fc.setFhirBaseURL("https://fhir.example.org/api/FHIR/R4");
+        fc.setFhirBridgeType(FhirBridgeType.R4EPIC);
+        fc.setCohortListFile("cohort.csv");
+        fc.setJournalDir(journalDir.toString());
+        fc.setResume(resume);
+        return fc;
+    }
+
+    /*
+     * Cohort lines for the given MRNs
+     */
+    public static List<String> cohort(String... mrns) {
+        return Arrays.stream(mrns).map(mrn -> MRN + "," + mrn).collect(Collectors.toList());
+    }
+
+    public static List<String> ids(List<IBaseResource> resources) {
+        return resources.stream().map(resource -> resource.getIdElement().getIdPart()).collect(Collectors.toList());
+    }
+
+    /*
+     * The patients carrying any of the comma separated system|value tokens, each once
+     */
+    public Bundle searchSet(String identifiers) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        List<Patient> found = new ArrayList<>();
+        for (String token : identifiers.split("(?<!\\\\),")) {
+            for (Patient patient : patientsByIdentifier.getOrDefault(token.replace("\\,", ","),
+                    Collections.emptyList())) {
+                if (!found.contains(patient)) {
+                    found.add(patient);
+                }
+            }
+        }
+        found.forEach(patient -> bundle.addEntry().setResource(patient));
+        bundle.setTotal(found.size());
+        return bundle;
+    }
+
+    public static String parameter(String query, String name) {
+        for (String pair : query.split("&")) {
+            String[] nameValue = pair.split("=", 2);
+            if (nameValue[0].equals(name)) {
+                return URLDecoder.decode(nameValue[1], StandardCharsets.UTF_8);
+            }
+        }
+        return "";
+    }
+
+    public byte[] encode(Resource resource) {
+        return fhirContext.newJsonParser().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void send(HttpExchange exchange, int status, Resource resource) throws IOException {
+        send(exchange, status, FHIR_JSON, encode(resource));
+    }
+
+    public static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, (body.length == 0) ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith("/metadata")) {
+                send(exchange, 200, capabilityStatement());
+                return;
+            }
+            String query = exchange.getRequestURI().getRawQuery();
+            if (path.endsWith("/Patient")) {
+                patientSearches.add(query);
+            }
+            if (route.handle(exchange, path)) {
+                return;
+            }
+            if (path.endsWith("/Patient")) {
+                send(exchange, 200, searchSet(parameter(query, "identifier")));
+            } else {
+                unknownRequests.add(exchange.getRequestURI().toString());
+                send(exchange, 404, new OperationOutcome());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private CapabilityStatement capabilityStatement() {
+        CapabilityStatement cnf = new CapabilityStatement();
+        CapabilityStatement.CapabilityStatementRestComponent rest = cnf.addRest();
+        Extension oauthUris = rest.getSecurity().addExtension().setUrl(OAUTH_URIS);
+        oauthUris.addExtension("authorize", new UriType(getRoot() + "/oauth2/authorize"));
+        oauthUris.addExtension("token", new UriType(getRoot() + "/oauth2/token"));
+        rest.addResource().setType("Patient").addSearchParam().setName("identifier");
+        conformance.accept(rest);
+        return cnf;
+    }
+}
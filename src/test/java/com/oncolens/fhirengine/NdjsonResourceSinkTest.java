@@ -0,0 +1,66 @@
+package com.oncolens.fhirengine;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.oncolens.fhirengine.util.FhirConfig;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+ * Only committed attempts reach the run-wide NDJSON file, a retried or skipped attempt leaves nothing behind
+ */
+class NdjsonResourceSinkTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @TempDir
+    Path workDir;
+
+    @Test
+    void abortedAttemptsWriteNothing() throws IOException {
+        Path output = workDir.resolve("resources.ndjson");
+        FhirConfig fc = new FhirConfig();
+        fc.setResourceSinkPath(output.toString());
+        NdjsonResourceSink sink = new NdjsonResourceSink(fc, fhirContext);
+
+        // A first attempt at p1 that is retried, then a skipped attempt at p2
+        ResourceSink.Attempt retried = sink.begin("p1");
+        retried.accept(observation("p1-obs0", "p1"));
+        retried.abort();
+        ResourceSink.Attempt committed = sink.begin("p1");
+        committed.accept(observation("p1-obs0", "p1"));
+        ResourceSink.Attempt skipped = sink.begin("p2");
+        skipped.accept(observation("p2-obs0", "p2"));
+        committed.accept(observation("p1-obs1", "p1"));
+        committed.commit();
+        skipped.abort();
+        sink.finish();
+
+        List<String> lines = Files.readAllLines(output);
+        assertEquals(Arrays.asList("p1-obs0", "p1-obs1"), lines.stream()
+                .map(line -> fhirContext.newJsonParser().parseResource(line).getIdElement().getIdPart())
+                .collect(Collectors.toList()));
+        // No staging file is left next to the output
+        try (Stream<Path> files = Files.list(workDir)) {
+            assertEquals(Arrays.asList(output), files.collect(Collectors.toList()));
+        }
+    }
+
+    private static Observation observation(String id, String patientId) {
+        Observation observation = new Observation();
+        observation.setId(id);
+        observation.setSubject(new Reference("Patient/" + patientId));
+        return observation;
+    }
+}
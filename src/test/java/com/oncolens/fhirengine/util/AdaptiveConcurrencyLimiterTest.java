@@ -0,0 +1,77 @@
+package com.oncolens.fhirengine.util;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * The limit is cut when the server throttles and grows only while the requests in flight fill it
+ */
+class AdaptiveConcurrencyLimiterTest {
+
+    private static final String BASE_URL = "https://fhir.example.org/api/FHIR/R4";
+
+    private final ScriptedServer server = new ScriptedServer();
+
+    @Test
+    void throttlingCutsTheLimitAndPausesRequests() throws IOException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(BASE_URL, new TransportConfig(), 8, 16);
+        OkHttpClient client = server.answer(429, 200).retryAfter("1").client(limiter);
+
+        assertEquals(429, send(client));
+        assertEquals(4, limiter.getLimit());
+        // Held back for the Retry-After the server asked for
+        assertEquals(200, send(client));
+        long waited = server.getRequestTimes().get(1) - server.getRequestTimes().get(0);
+        assertTrue(waited >= 900, "Sent after " + waited + " ms");
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void limitGrowsOnlyWhenSaturated() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(BASE_URL, new TransportConfig(), 2, 3);
+        OkHttpClient client = server.latency(100).client(limiter);
+
+        // One request at a time leaves a slot free, the limit stays
+        for (int n = 0; n < 3; n++) {
+            assertEquals(200, send(client));
+        }
+        assertEquals(2, limiter.getLimit());
+
+        // Two at a time fill it, each of those responses adds 1/limit until the maximum
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 6; round++) {
+                List<Future<Integer>> responses = new ArrayList<>();
+                for (int n = 0; n < 2; n++) {
+                    responses.add(executor.submit(() -> send(client)));
+                }
+                for (Future<Integer> response : responses) {
+                    assertEquals(200, response.get());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(3, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    private static int send(OkHttpClient client) throws IOException {
+        Request request = new Request.Builder().url(BASE_URL + "/Observation?patient=p1").build();
+        try (Response response = client.newCall(request).execute()) {
+            return response.code();
+        }
+    }
+}
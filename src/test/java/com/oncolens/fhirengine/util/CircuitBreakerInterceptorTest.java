@@ -0,0 +1,89 @@
+package com.oncolens.fhirengine.util;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/*
+ * A breaker opens on the failure rate of its endpoint, lets probes through once it has been open long enough, and
+ * closes when they all succeed or opens again on the first that fails
+ */
+class CircuitBreakerInterceptorTest {
+
+    private static final String BASE_URL = "https://fhir.example.org/api/FHIR/R4";
+    private static final int WINDOW = 4;
+    private static final int PROBES = 2;
+
+    private final ScriptedServer server = new ScriptedServer();
+
+    @Test
+    void opensHalfOpensAndCloses() throws IOException, InterruptedException {
+        OkHttpClient client = server.answer(500).client(new CircuitBreakerInterceptor(config()));
+        for (int n = 0; n < WINDOW; n++) {
+            assertEquals(500, send(client, "Observation"));
+        }
+
+        // Open: the endpoint fails without a request, the other endpoints are not affected
+        assertThrows(CircuitOpenException.class, () -> send(client, "Observation"));
+        assertEquals(WINDOW, server.getRequestTimes().size());
+        server.answer(200);
+        assertEquals(200, send(client, "Condition"));
+
+        // Half open once the open time is up: the probes go through and close the circuit
+        Thread.sleep(1100);
+        for (int n = 0; n < PROBES; n++) {
+            assertEquals(200, send(client, "Observation"));
+        }
+        // Closed: a single failure is not enough to open it again
+        server.answer(500, 200);
+        assertEquals(500, send(client, "Observation"));
+        for (int n = 0; n < WINDOW; n++) {
+            assertEquals(200, send(client, "Observation"));
+        }
+    }
+
+    @Test
+    void failedProbeOpensTheCircuitAgain() throws IOException, InterruptedException {
+        OkHttpClient client = server.answer(503).client(new CircuitBreakerInterceptor(config()));
+        for (int n = 0; n < WINDOW; n++) {
+            send(client, "Observation");
+        }
+        assertThrows(CircuitOpenException.class, () -> send(client, "Observation"));
+
+        Thread.sleep(1100);
+        assertEquals(503, send(client, "Observation"));
+        int sent = server.getRequestTimes().size();
+        // Open for another circuitOpenSeconds, even though the server recovered
+        server.answer(200);
+        assertThrows(CircuitOpenException.class, () -> send(client, "Observation"));
+        assertEquals(sent, server.getRequestTimes().size());
+
+        Thread.sleep(1100);
+        assertEquals(200, send(client, "Observation"));
+    }
+
+    private static FhirConfig config() {
+        FhirConfig fc = new FhirConfig();
+        fc.setFhirBaseURL(BASE_URL);
+        TransportConfig tc = fc.getTransport();
+        tc.setCircuitWindowSize(WINDOW);
+        tc.setCircuitMinCalls(WINDOW);
+        tc.setCircuitFailureRateThreshold(0.5);
+        tc.setCircuitOpenSeconds(1);
+        tc.setCircuitHalfOpenProbes(PROBES);
+        return fc;
+    }
+
+    private static int send(OkHttpClient client, String resourceType) throws IOException {
+        Request request = new Request.Builder().url(BASE_URL + "/" + resourceType + "?patient=p1").build();
+        try (Response response = client.newCall(request).execute()) {
+            return response.code();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.oncolens.fhirengine.util;
+
+import com.oncolens.fhirengine.model.JournalRecord;
+import com.oncolens.fhirengine.model.SegmentManifestEntry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.oncolens.fhirengine.FhirTestServer.EXTRACTS;
+import static com.oncolens.fhirengine.FhirTestServer.journalConfig;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * What a resumed run reads back from the journal of the run before it
+ */
+class ProgressJournalTest {
+
+    @TempDir
+    Path journalDir;
+
+    @AfterEach
+    void closeJournal() throws IOException {
+        ProgressJournal.closeInstance();
+    }
+
+    @Test
+    void tornLastLineIsIgnored() throws IOException {
+        FhirConfig fc = journalConfig(journalDir, false);
+        ProgressJournal.getInstance(fc).record(record("p1", EXTRACTS));
+        ProgressJournal.getInstance(fc).record(record("p2", EXTRACTS));
+        ProgressJournal.closeInstance();
+        // A crash in the middle of the third write
+        File file = journalFile();
+        String third = FhirUtilBase.JSONMAPPER.writeValueAsString(record("p3", EXTRACTS));
+        Files.write(file.toPath(), third.substring(0, third.length() / 2).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        ProgressJournal resumed = ProgressJournal.getInstance(journalConfig(journalDir, true));
+        assertTrue(resumed.isComplete("p1", EXTRACTS));
+        assertTrue(resumed.isComplete("p2", EXTRACTS));
+        assertFalse(resumed.isComplete("p3", EXTRACTS));
+    }
+
+    @Test
+    void completeOnlyForExtractsTheRecordCovers() throws IOException {
+        ProgressJournal.getInstance(journalConfig(journalDir, false))
+                .record(record("p1", Arrays.asList("observation", "condition")));
+        ProgressJournal.closeInstance();
+
+        ProgressJournal resumed = ProgressJournal.getInstance(journalConfig(journalDir, true));
+        assertTrue(resumed.isComplete("p1", Collections.singletonList("observation")));
+        assertTrue(resumed.isComplete("p1", Arrays.asList("condition", "observation")));
+        assertFalse(resumed.isComplete("p1", EXTRACTS));
+        assertFalse(resumed.isComplete("p2", Collections.singletonList("observation")));
+    }
+
+    @Test
+    void segmentEntriesCarryOver() throws IOException {
+        SegmentManifestEntry entry = SegmentManifestEntry.builder()
+                .patientId("p1")
+                .identifier("MRN1")
+                .segment("data-run-segment-00001.gz")
+                .offset(4096)
+                .length(812)
+                .resources(17)
+                .build();
+        JournalRecord inSegment = record("p1", EXTRACTS);
+        inSegment.setSegment(entry);
+        ProgressJournal.getInstance(journalConfig(journalDir, false)).record(inSegment);
+        ProgressJournal.getInstance(journalConfig(journalDir, false)).record(record("p2", EXTRACTS));
+        ProgressJournal.closeInstance();
+
+        assertEquals(Collections.singletonList(entry),
+                ProgressJournal.getInstance(journalConfig(journalDir, true)).getCompletedSegmentEntries());
+    }
+
+    @Test
+    void journalStartsAfreshWithoutResume() throws IOException {
+        ProgressJournal.getInstance(journalConfig(journalDir, false)).record(record("p1", EXTRACTS));
+        ProgressJournal.closeInstance();
+
+        assertFalse(ProgressJournal.getInstance(journalConfig(journalDir, false)).isComplete("p1", EXTRACTS));
+    }
+
+    private File journalFile() {
+        File[] files = journalDir.toFile().listFiles((dir, name) -> name.startsWith("journal-"));
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static JournalRecord record(String patientId, List<String> extracts) {
+        JournalRecord record = new JournalRecord();
+        record.setPatientId(patientId);
+        record.setIdentifier("MRN-" + patientId);
+        record.setExtracts(extracts);
+        return record;
+    }
+}
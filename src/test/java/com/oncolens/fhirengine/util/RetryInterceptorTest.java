@@ -0,0 +1,108 @@
+package com.oncolens.fhirengine.util;
+
+import com.oncolens.fhirengine.FhirProcessor;
+import com.oncolens.fhirengine.model.FhirBridgeType;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Which failed requests are sent again, how long a retry waits and when the run's retry budget says no more
+ */
+class RetryInterceptorTest {
+
+    private static final String BASE_URL = "https://fhir.example.org/api/FHIR/R4";
+
+    private final ScriptedServer server = new ScriptedServer();
+
+    @AfterEach
+    void clearAudit() {
+        FhirProcessor.auditEventList.clear();
+    }
+
+    @Test
+    void retriesStopOnceTheBudgetIsUsedUp() throws IOException {
+        FhirConfig fc = config();
+        fc.getTransport().setRetryMaxAttempts(10);
+        fc.getTransport().setRetryBudgetMin(2);
+        fc.getTransport().setRetryBudgetRatio(0);
+        OkHttpClient client = server.answer(503).client(new RetryInterceptor(fc));
+
+        // The two retries of the budget, then the 503 is handed back
+        try (Response response = client.newCall(get()).execute()) {
+            assertEquals(503, response.code());
+        }
+        assertEquals(3, server.getRequestTimes().size());
+        // Nothing left for the next request
+        try (Response response = client.newCall(get()).execute()) {
+            assertEquals(503, response.code());
+        }
+        assertEquals(4, server.getRequestTimes().size());
+        assertEquals(2, FhirProcessor.auditEventList.size());
+    }
+
+    @Test
+    void postIsNotRetried() throws IOException {
+        FhirConfig fc = config();
+        Request post = new Request.Builder().url(BASE_URL)
+                .post(RequestBody.create(MediaType.parse("application/fhir+json"), "{}"))
+                .build();
+
+        try (Response response = server.answer(503, 200).client(new RetryInterceptor(fc)).newCall(post).execute()) {
+            assertEquals(503, response.code());
+        }
+        assertEquals(1, server.getRequestTimes().size());
+        // Nor is one that timed out, the server may have acted on it
+        AtomicInteger attempts = new AtomicInteger();
+        OkHttpClient timingOut = new OkHttpClient.Builder()
+                .addInterceptor(new RetryInterceptor(fc))
+                .addInterceptor(chain -> {
+                    attempts.incrementAndGet();
+                    throw new SocketTimeoutException("Read timed out");
+                })
+                .build();
+        assertThrows(SocketTimeoutException.class, () -> timingOut.newCall(post).execute());
+        assertEquals(1, attempts.get());
+        assertTrue(FhirProcessor.auditEventList.isEmpty());
+    }
+
+    @Test
+    void retryWaitsForRetryAfter() throws IOException {
+        // The backoff alone would retry within a millisecond
+        OkHttpClient client = server.answer(429, 200).retryAfter("1").client(new RetryInterceptor(config()));
+
+        try (Response response = client.newCall(get()).execute()) {
+            assertEquals(200, response.code());
+        }
+        List<Long> requestTimes = server.getRequestTimes();
+        assertEquals(2, requestTimes.size());
+        long waited = requestTimes.get(1) - requestTimes.get(0);
+        assertTrue(waited >= 1000, "Retried after " + waited + " ms");
+    }
+
+    private static FhirConfig config() {
+        FhirConfig fc = new FhirConfig();
+        fc.setFhirBaseURL(BASE_URL);
+        fc.setFhirBridgeType(FhirBridgeType.R4EPIC);
+        fc.getTransport().setRetryBaseDelayMillis(1);
+        fc.getTransport().setRetryMaxDelayMillis(1);
+        return fc;
+    }
+
+    private static Request get() {
+        return new Request.Builder().url(BASE_URL + "/Observation?patient=p1").build();
+    }
+}
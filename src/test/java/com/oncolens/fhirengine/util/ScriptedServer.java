@@ -0,0 +1,91 @@
+package com.oncolens.fhirengine.util;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Stands in for the FHIR server behind the interceptor under test of the transport tests. Requests are answered from
+ * a script of status codes, the last of which is repeated from then on, and nothing goes out on the network.
+ */
+class ScriptedServer implements Interceptor {
+
+    private final List<Long> requestTimes = Collections.synchronizedList(new ArrayList<>());
+    private int[] codes = {200};
+    private int answered;
+    private String retryAfter;
+    private long latencyMillis;
+
+    /*
+     * The script for the requests from now on
+     */
+    synchronized ScriptedServer answer(int... codes) {
+        this.codes = codes;
+        this.answered = 0;
+        return this;
+    }
+
+    /*
+     * Sent with every response that is not a 2xx
+     */
+    synchronized ScriptedServer retryAfter(String retryAfter) {
+        this.retryAfter = retryAfter;
+        return this;
+    }
+
+    synchronized ScriptedServer latency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    OkHttpClient client(Interceptor underTest) {
+        return new OkHttpClient.Builder()
+                .addInterceptor(underTest)
+                .addInterceptor(this)
+                .build();
+    }
+
+    /*
+     * When each request reached the server, in order
+     */
+    List<Long> getRequestTimes() {
+        return requestTimes;
+    }
+
+    @Override
+    public Response intercept(Chain chain) {
+        requestTimes.add(System.currentTimeMillis());
+        int code;
+        String header;
+        long sleepMillis;
+        synchronized (this) {
+            code = codes[Math.min(answered++, codes.length - 1)];
+            header = retryAfter;
+            sleepMillis = latencyMillis;
+        }
+        if (sleepMillis > 0) {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Response.Builder response = new Response.Builder()
+                .request(chain.request())
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("status " + code)
+                .body(ResponseBody.create(MediaType.parse("application/fhir+json"), "{}"));
+        if ((code < 200 || code >= 300) && header != null) {
+            response.header("Retry-After", header);
+        }
+        return response.build();
+    }
+}
@@ -0,0 +1,107 @@
+package com.oncolens.fhirengine.util;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.oncolens.fhirengine.model.CompressionCodec;
+import com.oncolens.fhirengine.model.SegmentManifestEntry;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * A patient's slice of a segment, read by the offset and length of its manifest entry, must decode on its own
+ */
+class SegmentWriterTest {
+
+    private static final int PATIENTS = 3;
+
+    @TempDir
+    Path workDir;
+
+    @BeforeAll
+    static void region() {
+        // S3Access builds its clients on first use, nothing is uploaded while the segment stays open
+        if (System.getenv("AWS_REGION") == null && System.getProperty("aws.region") == null) {
+            System.setProperty("aws.region", "us-east-1");
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = CompressionCodec.class, names = {"GZIP", "ZSTD"})
+    void patientSliceDecodesOnItsOwn(CompressionCodec codec) throws IOException {
+        FhirConfig fc = new FhirConfig();
+        fc.setDataOutputFilePath(workDir.resolve("data").toString());
+        fc.setCompressionCodec(codec);
+        fc.setSegmentMaxBytes(Long.MAX_VALUE);
+        fc.setSegmentMaxPatients(Integer.MAX_VALUE);
+        String runId = "run-" + codec.name().toLowerCase();
+        SegmentWriter segmentWriter = new SegmentWriter(fc, runId, Collections.emptyList());
+
+        List<String> ndjson = new ArrayList<>();
+        List<SegmentManifestEntry> entries = new ArrayList<>();
+        for (int n = 0; n < PATIENTS; n++) {
+            String patientId = "patient" + n;
+            String lines = patientLines(patientId, 10 + n * 7);
+            ndjson.add(lines);
+            File patientFile = workDir.resolve(patientId + codec.getFileSuffix()).toFile();
+            try (OutputStream out = codec.wrap(new FileOutputStream(patientFile), -1)) {
+                out.write(lines.getBytes(StandardCharsets.UTF_8));
+            }
+            entries.add(segmentWriter.append(patientId, "MRN" + n, patientFile, 10 + n * 7, false, entry -> { }));
+        }
+
+        File segment = FhirUtilBase.getOutputFile(fc.getDataOutputFilePath(),
+                runId + "-segment-00001" + codec.getFileSuffix());
+        assertEquals(entries.get(PATIENTS - 1).getOffset() + entries.get(PATIENTS - 1).getLength(), segment.length());
+        for (int n = 0; n < PATIENTS; n++) {
+            SegmentManifestEntry entry = entries.get(n);
+            assertEquals("patient" + n, entry.getPatientId());
+            assertTrue(entry.getSegment().contains(runId + "-segment-00001"));
+            assertEquals(ndjson.get(n), decode(codec, readRange(segment, entry.getOffset(), entry.getLength())));
+        }
+        // The frames concatenated still decode as one stream
+        assertEquals(String.join("", ndjson), decode(codec, readRange(segment, 0, segment.length())));
+    }
+
+    private static String patientLines(String patientId, int resources) {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < resources; i++) {
+            lines.append("{\"resourceType\":\"Observation\",\"id\":\"").append(patientId).append('-').append(i)
+                    .append("\",\"subject\":{\"reference\":\"Patient/").append(patientId).append("\"}}\n");
+        }
+        return lines.toString();
+    }
+
+    private static byte[] readRange(File file, long offset, long length) throws IOException {
+        byte[] bytes = new byte[(int) length];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(offset);
+            in.readFully(bytes);
+        }
+        return bytes;
+    }
+
+    private static String decode(CompressionCodec codec, byte[] bytes) throws IOException {
+        InputStream raw = new ByteArrayInputStream(bytes);
+        try (InputStream in = (codec == CompressionCodec.GZIP) ? new GZIPInputStream(raw) : new ZstdInputStream(raw)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}